@@ -0,0 +1,112 @@
+package cadenza.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import cadenza.core.CadenzaData;
+import cadenza.core.Cue;
+import cadenza.core.Keyboard;
+import cadenza.core.LocationNumber;
+import cadenza.core.Note;
+import cadenza.core.NoteRange;
+import cadenza.core.Patch;
+import cadenza.core.PatchAssignment;
+import cadenza.core.Song;
+import cadenza.core.Synthesizer;
+import cadenza.core.effects.Compressor;
+import cadenza.core.effects.GraphicEQ;
+import cadenza.core.patchmerge.SplitPatchMerge;
+import cadenza.core.patchmerge.VelocityPatchMerge;
+import cadenza.core.patchusage.PatchUsage;
+import cadenza.core.patchusage.SimplePatchUsage;
+import cadenza.synths.Synthesizers;
+
+/**
+ * Builds synthetic Cadenza data for the benchmarks.  The show is a single
+ * JV-1080 on all 16 channels, played from two keyboards, with a number of
+ * songs each having a number of cues.  Every cue layers simple patch usages
+ * across the main keyboard, nests a velocity merge inside a split merge on
+ * the secondary keyboard, and gives every patch usage an effect chain.
+ * Consecutive cues share half of their patches, as a real show would.
+ *
+ * @author Matt Putnam
+ */
+public final class BenchmarkData {
+  public static final String SYNTH_NAME = "Roland JV-1080";
+  
+  private BenchmarkData() {}
+  
+  /**
+   * @return a JV-1080 with no expansions on all 16 channels
+   */
+  public static Synthesizer createSynthesizer() {
+    return new Synthesizer(SYNTH_NAME, Synthesizers.getBanksForSynth(SYNTH_NAME),
+        Collections.emptyMap(), IntStream.range(0, 16).boxed().collect(Collectors.toList()));
+  }
+  
+  /**
+   * Builds the data
+   * @param songCount the number of songs
+   * @param cuesPerSong the number of cues in each song
+   * @param layers the number of layered patch usages on the main keyboard
+   *               in each cue
+   * @return the data
+   */
+  public static CadenzaData create(int songCount, int cuesPerSong, int layers) {
+    final CadenzaData data = new CadenzaData();
+    
+    final Synthesizer synth = createSynthesizer();
+    data.synthesizers.add(synth);
+    
+    final List<Patch> patches = Synthesizers.loadPatches(synth);
+    data.patches.addAll(patches);
+    
+    final Keyboard main = new Keyboard(Note.A0, Note.C8, Note.A0, Note.C8, "Main", true, 0);
+    final Keyboard secondary = new Keyboard(Note.A0, Note.C8, Note.A0, Note.C8, "Secondary", false, 1);
+    data.keyboards.add(main);
+    data.keyboards.add(secondary);
+    
+    int patchIndex = 0;
+    for (int s = 1; s <= songCount; ++s) {
+      final Song song = new Song(LocationNumber.parse(String.valueOf(s)), "Song " + s);
+      data.songs.add(song);
+      
+      for (int c = 1; c <= cuesPerSong; ++c) {
+        final Cue cue = new Cue(song, LocationNumber.parse(String.valueOf(c*10)));
+        
+        for (int l = 0; l < layers; ++l)
+          cue.patchAssignments.add(withEffects(new SimplePatchUsage(
+              patches.get((patchIndex + l) % patches.size()), new NoteRange(main, false))));
+        
+        final NoteRange secondaryRange = new NoteRange(secondary, false);
+        final PatchAssignment lower = withEffects(new SimplePatchUsage(
+            patches.get((patchIndex + layers) % patches.size()), secondaryRange));
+        final PatchAssignment soft = withEffects(new SimplePatchUsage(
+            patches.get((patchIndex + layers + 1) % patches.size()), secondaryRange));
+        final PatchAssignment loud = withEffects(new SimplePatchUsage(
+            patches.get((patchIndex + layers + 2) % patches.size()), secondaryRange));
+        cue.patchAssignments.add(new SplitPatchMerge(lower, new VelocityPatchMerge(soft, loud, 100, 10),
+            60, SplitPatchMerge.DEFAULT_BUFFER_SIZE));
+        
+        cue.effects.add(new Compressor(90, 2.0));
+        
+        data.cues.add(cue);
+        patchIndex += Math.max(1, (layers+3) / 2);
+      }
+    }
+    
+    return data;
+  }
+  
+  private static PatchUsage withEffects(PatchUsage patchUsage) {
+    final int[] levels = new int[128];
+    for (int i = 0; i < levels.length; ++i)
+      levels[i] = (i % 12) - 6;
+    
+    patchUsage.effects.add(new GraphicEQ(levels));
+    patchUsage.effects.add(new Compressor(100, 3.0));
+    return patchUsage;
+  }
+}
@@ -0,0 +1,50 @@
+package cadenza.benchmark;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Receiver that stands in for a MIDI output device.  It counts the messages
+ * and bytes sent to it, reading each message so that the work of building
+ * it can't be optimized away.
+ *
+ * @author Matt Putnam
+ */
+public final class CountingReceiver implements Receiver {
+  private long _messageCount;
+  private long _byteCount;
+  private int _checksum;
+  
+  @Override
+  public void send(MidiMessage message, long timeStamp) {
+    ++_messageCount;
+    _byteCount += message.getLength();
+    _checksum = 31*_checksum + message.getStatus();
+  }
+  
+  /**
+   * @return the number of messages sent
+   */
+  public long getMessageCount() {
+    return _messageCount;
+  }
+  
+  /**
+   * @return the total length of the messages sent
+   */
+  public long getByteCount() {
+    return _byteCount;
+  }
+  
+  /**
+   * @return a hash of the status bytes sent, to be consumed by a Blackhole
+   */
+  public int getChecksum() {
+    return _checksum;
+  }
+  
+  @Override
+  public void close() {
+    // nothing to release
+  }
+}
@@ -0,0 +1,71 @@
+package cadenza.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cadenza.core.CadenzaData;
+import cadenza.core.Cue;
+import cadenza.core.LocationNumber;
+import cadenza.core.Song;
+
+/**
+ * Measures {@link Cue#findCueIndex}, used by location jumps and the goto
+ * dialog.  Half the lookups name a measure between two cues, and some name
+ * only a song.
+ *
+ * @author Matt Putnam
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CueLookupBenchmark {
+  private static final int CUES_PER_SONG = 20;
+  
+  /** The number of songs in the show */
+  @Param({"10", "40"})
+  public int songs;
+  
+  private List<Cue> _cues;
+  private Song[] _songs;
+  private LocationNumber[] _measures;
+  private int _index;
+  
+  @Setup
+  public void setup() {
+    final CadenzaData data = BenchmarkData.create(songs, CUES_PER_SONG, 1);
+    _cues = data.cues;
+    
+    final Random random = new Random(1080);
+    _songs = new Song[1024];
+    _measures = new LocationNumber[_songs.length];
+    for (int i = 0; i < _songs.length; ++i) {
+      _songs[i] = data.songs.get(random.nextInt(songs));
+      final int measure = random.nextInt(CUES_PER_SONG*10 + 10);
+      _measures[i] = (i % 8 == 0) ? null : LocationNumber.parse(String.valueOf(measure + 1));
+    }
+  }
+  
+  @Benchmark
+  public int findCueIndex() {
+    final int index = _index;
+    _index = (index+1) % _songs.length;
+    
+    return Cue.findCueIndex(_cues, _songs[index], _measures[index]);
+  }
+}
@@ -0,0 +1,87 @@
+package cadenza.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cadenza.control.PerformanceController;
+import cadenza.core.CadenzaData;
+
+/**
+ * Measures cue changes, which send the patch changes and volumes for the
+ * new cue and recompile its routing.  Advancing through the show in order
+ * uses the precomputed transition plans; jumping to an arbitrary cue plans
+ * on the spot.
+ *
+ * @author Matt Putnam
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CueTransitionBenchmark {
+  /** The number of layered patch usages on the main keyboard */
+  @Param({"1", "4", "12"})
+  public int layers;
+  
+  private CountingReceiver _receiver;
+  private PerformanceController _controller;
+  private int _cueCount;
+  
+  private int[] _jumps;
+  private int _jumpIndex;
+  
+  @Setup
+  public void setup() {
+    final CadenzaData data = BenchmarkData.create(8, 16, layers);
+    _cueCount = data.cues.size();
+    _receiver = new CountingReceiver();
+    _controller = new PerformanceController(data, null);
+    _controller.setReceiver(_receiver);
+    _controller.goTo(0);
+    
+    final Random random = new Random(1080);
+    _jumps = random.ints(1024, 0, _cueCount).toArray();
+  }
+  
+  @TearDown
+  public void tearDown() {
+    _controller.shutdown();
+  }
+  
+  /**
+   * Advances to the next cue, wrapping back to the start of the show
+   */
+  @Benchmark
+  public int advance() {
+    final int next = _controller.getCurrentCueIndex() + 1;
+    _controller.goTo(next == _cueCount ? 0 : next);
+    return _receiver.getChecksum();
+  }
+  
+  /**
+   * Jumps to a random cue
+   */
+  @Benchmark
+  public int jump() {
+    final int index = _jumpIndex;
+    _jumpIndex = (index+1) % _jumps.length;
+    
+    _controller.goTo(_jumps[index]);
+    return _receiver.getChecksum();
+  }
+}
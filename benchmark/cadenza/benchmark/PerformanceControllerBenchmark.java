@@ -0,0 +1,124 @@
+package cadenza.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cadenza.control.PerformanceController;
+import cadenza.core.CadenzaData;
+
+/**
+ * Measures routing of input messages through
+ * {@link PerformanceController#send(javax.sound.midi.MidiMessage)}, from
+ * the keyboard channel lookup through triggers, patch assignments, effects
+ * and held note tracking, to the output receiver.  The controller runs
+ * without a GUI or event loop, so each call is handled on the benchmark
+ * thread.
+ *
+ * @author Matt Putnam
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PerformanceControllerBenchmark {
+  private static final int LOW_NOTE = 36;
+  private static final int NOTE_COUNT = 61;
+  
+  /** The number of layered patch usages on the main keyboard */
+  @Param({"1", "4", "12"})
+  public int layers;
+  
+  private CountingReceiver _receiver;
+  private PerformanceController _controller;
+  
+  /** Note on and off messages for both keyboards, interleaved */
+  private ShortMessage[] _noteOns;
+  private ShortMessage[] _noteOffs;
+  private ShortMessage[] _controlChanges;
+  private int _noteIndex;
+  private int _controlIndex;
+  
+  @Setup
+  public void setup() throws InvalidMidiDataException {
+    final CadenzaData data = BenchmarkData.create(4, 8, layers);
+    _receiver = new CountingReceiver();
+    _controller = new PerformanceController(data, null);
+    _controller.setReceiver(_receiver);
+    _controller.goTo(0);
+    
+    _noteOns = new ShortMessage[2*NOTE_COUNT];
+    _noteOffs = new ShortMessage[2*NOTE_COUNT];
+    for (int i = 0; i < _noteOns.length; ++i) {
+      final int channel = i % 2;
+      final int midiNumber = LOW_NOTE + i/2;
+      _noteOns[i] = new ShortMessage(ShortMessage.NOTE_ON, channel, midiNumber, 40 + (i*7) % 87);
+      _noteOffs[i] = new ShortMessage(ShortMessage.NOTE_OFF, channel, midiNumber, 0);
+    }
+    
+    _controlChanges = new ShortMessage[128];
+    for (int i = 0; i < _controlChanges.length; ++i)
+      _controlChanges[i] = new ShortMessage(ShortMessage.CONTROL_CHANGE, i % 2, 1, i);
+  }
+  
+  @TearDown
+  public void tearDown() {
+    _controller.shutdown();
+  }
+  
+  /**
+   * A note on followed by its note off
+   */
+  @Benchmark
+  public int noteOnOff() {
+    final int index = _noteIndex;
+    _noteIndex = (index+1) % _noteOns.length;
+    
+    _controller.send(_noteOns[index]);
+    _controller.send(_noteOffs[index]);
+    return _receiver.getChecksum();
+  }
+  
+  /**
+   * A four note chord, held while the next one is played
+   */
+  @Benchmark
+  public int overlappingChords() {
+    final int index = _noteIndex;
+    _noteIndex = (index+8) % _noteOns.length;
+    
+    for (int i = 0; i < 8; i += 2)
+      _controller.send(_noteOns[(index+i) % _noteOns.length]);
+    for (int i = 0; i < 8; i += 2)
+      _controller.send(_noteOffs[(index+i+_noteOns.length-8) % _noteOns.length]);
+    return _receiver.getChecksum();
+  }
+  
+  /**
+   * A modulation wheel movement
+   */
+  @Benchmark
+  public int controlChange() {
+    final int index = _controlIndex;
+    _controlIndex = (index+1) % _controlChanges.length;
+    
+    _controller.send(_controlChanges[index]);
+    return _receiver.getChecksum();
+  }
+}
@@ -0,0 +1,48 @@
+package cadenza.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cadenza.core.Patch;
+import cadenza.core.Synthesizer;
+import cadenza.synths.Synthesizers;
+
+/**
+ * Measures {@link Synthesizers#loadPatches}, which the patch editors and
+ * the orphaned patch remapper call repeatedly.  The patches are read from
+ * disk once and cached, so this measures the cache lookup and the copy of
+ * the patch list returned to each caller.
+ *
+ * @author Matt Putnam
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SynthesizersBenchmark {
+  private Synthesizer _synthesizer;
+  
+  @Setup
+  public void setup() {
+    _synthesizer = BenchmarkData.createSynthesizer();
+    Synthesizers.loadPatches(_synthesizer);
+  }
+  
+  @Benchmark
+  public List<Patch> loadPatches() {
+    return Synthesizers.loadPatches(_synthesizer);
+  }
+}
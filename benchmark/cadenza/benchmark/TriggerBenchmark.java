@@ -0,0 +1,98 @@
+package cadenza.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cadenza.core.Keyboard;
+import cadenza.core.Note;
+import cadenza.core.NoteRange;
+import cadenza.core.trigger.Trigger;
+import cadenza.core.trigger.TriggerIndex;
+import cadenza.core.trigger.predicates.ChordPredicate;
+import cadenza.core.trigger.predicates.ControlValuePredicate;
+import cadenza.core.trigger.predicates.NoteOnPredicate;
+
+import common.tuple.Pair;
+
+/**
+ * Measures {@link Trigger#receive} for each way of combining predicates,
+ * and the same trigger reached through a {@link TriggerIndex}.
+ * The triggers hold a chord, a note, and a control value predicate, and are
+ * fed ordinary playing that never fires them, which is what every trigger
+ * in the current cue sees for almost every message.
+ *
+ * @author Matt Putnam
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark {
+  /** AND, AND_INORDER, or OR */
+  @Param({"AND", "AND_INORDER", "OR"})
+  public String mode;
+  
+  private Trigger _trigger;
+  private TriggerIndex _triggerIndex;
+  private ShortMessage[] _messages;
+  private int _index;
+  
+  @Setup
+  public void setup() throws InvalidMidiDataException {
+    final Keyboard keyboard = new Keyboard(0);
+    
+    _trigger = new Trigger();
+    _trigger.AND = !mode.equals("OR");
+    _trigger.inorder = mode.equals("AND_INORDER");
+    _trigger.predicates.add(new ChordPredicate(Arrays.asList(
+        Pair.make(keyboard, Integer.valueOf(60)),
+        Pair.make(keyboard, Integer.valueOf(64)),
+        Pair.make(keyboard, Integer.valueOf(67)))));
+    _trigger.predicates.add(new NoteOnPredicate(new NoteRange(keyboard, Note.valueOf(21))));
+    _trigger.predicates.add(new ControlValuePredicate(keyboard, 64, 127));
+    _trigger.reset();
+    _triggerIndex = TriggerIndex.compile(Arrays.asList(_trigger));
+    
+    // a scale with the pedal half down, which never completes the chord
+    _messages = new ShortMessage[3*25];
+    for (int i = 0; i < 25; ++i) {
+      final int midiNumber = 48 + i;
+      _messages[3*i] = new ShortMessage(ShortMessage.NOTE_ON, 0, midiNumber, 80);
+      _messages[3*i+1] = new ShortMessage(ShortMessage.NOTE_OFF, 0, midiNumber, 0);
+      _messages[3*i+2] = new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 64);
+    }
+  }
+  
+  @Benchmark
+  public void receive() {
+    final int index = _index;
+    _index = (index+1) % _messages.length;
+    
+    _trigger.receive(_messages[index], null);
+  }
+  
+  @Benchmark
+  public void dispatch() {
+    final int index = _index;
+    _index = (index+1) % _messages.length;
+    
+    _triggerIndex.dispatch(_messages[index], null);
+  }
+}
@@ -1,5 +1,6 @@
 package cadenza.control;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
 
@@ -15,10 +16,13 @@ import cadenza.core.CadenzaData;
 public abstract class CadenzaController {
   private final CadenzaData _data;
   
-  private Receiver _receiver;
+  private volatile Receiver _receiver;
+  
+  private final ShortMessagePool _messagePool;
   
   public CadenzaController(CadenzaData data) {
     _data = data;
+    _messagePool = new ShortMessagePool();
   }
   
   protected final CadenzaData getData() {
@@ -35,7 +39,7 @@ public abstract class CadenzaController {
     notifyReceiver();
   }
   
-  protected synchronized final Receiver getReceiver() {
+  protected final Receiver getReceiver() {
     return _receiver;
   }
   
@@ -43,6 +47,25 @@ public abstract class CadenzaController {
     return _receiver != null;
   }
   
+  /**
+   * Sends a channel message to the receiver.  If the receiver is known to
+   * be done with the message when <tt>send</tt> returns, the message is
+   * encoded into a preallocated slot from a ring of messages, without
+   * allocating; any other receiver is given a new message it may keep (see
+   * {@link ShortMessagePool}).  Does nothing if the receiver is not set.
+   * @param command the command, e.g. {@link javax.sound.midi.ShortMessage#NOTE_ON}
+   * @param channel the output channel
+   * @param data1 the first data byte
+   * @param data2 the second data byte
+   * @throws InvalidMidiDataException if the values are not valid MIDI
+   */
+  protected final void sendMessage(int command, int channel, int data1, int data2)
+      throws InvalidMidiDataException {
+    final Receiver receiver = _receiver;
+    if (receiver != null)
+      receiver.send(_messagePool.encode(receiver, command, channel, data1, data2), -1);
+  }
+  
   /**
    * Called by {@link #setReceiver(Receiver)} after the new receiver is set.
    * Subclasses should use this to re-send setup information.
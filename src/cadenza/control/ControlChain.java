@@ -0,0 +1,168 @@
+package cadenza.control;
+
+import java.util.List;
+
+import javax.sound.midi.ShortMessage;
+
+import cadenza.core.effects.ControlEffect;
+
+/**
+ * <p>The {@link ControlEffect}s for one output control of a cue, compiled by
+ * the {@link RoutingTable}.  The curves and ranges of the effects are fused
+ * into a single 128-entry table.  The chain keeps what it last sent, so
+ * that values the curve maps to the same output aren't sent again.  If
+ * any effect smooths or rate limits the control, a change is sent as a
+ * ramp of values scheduled on the {@link NoteDispatcher}, and a new value
+ * replaces whatever of the previous ramp hasn't been sent yet, starting
+ * from where it had got to.</p>
+ *
+ * <p>Only used by the thread processing input.</p>
+ *
+ * @author Matt Putnam
+ */
+final class ControlChain {
+  /** The least time between the steps of a ramp */
+  private static final long MIN_STEP_NANOS = 5000000L;
+
+  private final int _channel;
+  private final int _control;
+
+  private final byte[] _table;
+  private final long _nanosPerUnit;
+  private final int _deadband;
+  private final long _minIntervalNanos;
+
+  /*
+   * The last ramp, which is _steps values from _from to _to, the first
+   * sent at _start and each following _stepNanos later.  Before anything
+   * is sent _to is -1.
+   */
+  private int _from;
+  private int _to = -1;
+  private int _steps;
+  private long _start;
+  private long _stepNanos;
+  private long _lastSentNanos = Long.MIN_VALUE;
+
+  /**
+   * Compiles a chain
+   * @param channel the output channel
+   * @param control the output control number
+   * @param effects the effects, in order
+   */
+  ControlChain(int channel, int control, List<ControlEffect> effects) {
+    _channel = channel;
+    _control = control;
+
+    _table = new byte[128];
+    for (int value = 0; value < 128; ++value) {
+      int result = value;
+      for (final ControlEffect effect : effects)
+        result = Math.max(0, Math.min(127, effect.process(result)));
+      _table[value] = (byte) result;
+    }
+
+    int smoothingMillis = 0;
+    int deadband = 0;
+    int minIntervalMillis = 0;
+    for (final ControlEffect effect : effects) {
+      smoothingMillis = Math.max(smoothingMillis, effect.getSmoothingMillis());
+      deadband = Math.max(deadband, effect.getDeadband());
+      minIntervalMillis = Math.max(minIntervalMillis, effect.getMinIntervalMillis());
+    }
+    _nanosPerUnit = smoothingMillis * 1000000L / 127;
+    _deadband = deadband;
+    _minIntervalNanos = minIntervalMillis * 1000000L;
+  }
+
+  /**
+   * @return whether the chain smooths or rate limits the control, so it
+   *         needs a dispatcher to schedule values on
+   */
+  boolean isTimed() {
+    return _nanosPerUnit > 0 || _minIntervalNanos > 0;
+  }
+
+  /**
+   * Receives an input value.  Any values to send later are scheduled on
+   * the dispatcher.
+   * @param value the input value
+   * @param now the current time, in System.nanoTime() terms
+   * @param dispatcher the dispatcher to schedule on, only needed if the
+   *                   chain {@link #isTimed() is timed}
+   * @return the value to send now, or -1 for none
+   */
+  int receive(int value, long now, NoteDispatcher dispatcher) {
+    final int target = _table[value];
+    if (target == _to)
+      return -1;
+    if (_to != -1 && Math.abs(target - _to) < _deadband && target != 0 && target != 127)
+      return -1;
+
+    // where the last ramp had got to
+    final int sent = _to == -1 || now < _start ? 0 : (int) Math.min(_steps, (now - _start) / Math.max(1, _stepNanos) + 1);
+    final int current;
+    if (sent > 0) {
+      current = stepValue(sent-1);
+      _lastSentNanos = _start + (sent-1) * _stepNanos;
+    } else {
+      current = _from;
+    }
+    if (sent < _steps)
+      dispatcher.cancel(this);
+
+    final int delta = Math.abs(target - (_to == -1 ? target : current));
+    final long duration = delta * _nanosPerUnit;
+    final long spacing = Math.max(_minIntervalNanos, MIN_STEP_NANOS);
+
+    _from = _to == -1 ? target : current;
+    _to = target;
+    _steps = duration == 0 ? 1 : (int) Math.max(1, Math.min(delta, duration / spacing));
+    _stepNanos = _steps == 1 ? 0 : duration / _steps;
+    _start = _lastSentNanos == Long.MIN_VALUE ? now : Math.max(now, _lastSentNanos + _minIntervalNanos);
+
+    for (int step = (_start == now ? 1 : 0); step < _steps; ++step)
+      dispatcher.schedule(ShortMessage.CONTROL_CHANGE, _channel, _control, stepValue(step), _start + step*_stepNanos, this);
+
+    if (_start == now) {
+      _lastSentNanos = now;
+      return stepValue(0);
+    }
+    return -1;
+  }
+
+  /**
+   * Moves the chain straight to an input value, without smoothing.  Used to
+   * bring a new chain up to the position of its input control.
+   * @param value the input value
+   * @param now the current time, in System.nanoTime() terms
+   * @return the value to send
+   */
+  int jumpTo(int value, long now) {
+    _from = _to = _table[value];
+    _steps = 1;
+    _start = now;
+    _stepNanos = 0;
+    _lastSentNanos = now;
+    return _to;
+  }
+
+  /**
+   * @return the value the chain last sent or scheduled, or -1 if none
+   */
+  int getValue() {
+    return _to;
+  }
+
+  /**
+   * @param now the current time, in System.nanoTime() terms
+   * @return whether some of the last ramp hasn't been sent yet
+   */
+  boolean isRamping(long now) {
+    return _to != -1 && now < _start + (_steps-1) * _stepNanos;
+  }
+
+  private int stepValue(int step) {
+    return _from + (_to - _from) * (step+1) / _steps;
+  }
+}
@@ -0,0 +1,106 @@
+package cadenza.control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import cadenza.core.Keyboard;
+import cadenza.core.tracker.CCTracker;
+
+/**
+ * <p>Works out the control changes that bring the output channels of a new
+ * cue up to the current positions of the input controllers, so that a
+ * patch entered in the middle of a swell comes in at the right level.  The
+ * tracked input values are sent through the new cue's
+ * {@link RoutingTable}, so the control map and control effects apply just
+ * as they would to the next move of the controller.</p>
+ *
+ * <p>Only values that differ from what was last sent on the channel are
+ * included, and the messages are batched in channel order.  Controls that
+ * aren't positions are never replayed: bank select, data entry and
+ * (N)RPN, which are parts of sequences, sostenuto, which depends on
+ * which notes were held when it was pressed, channel mode messages, and
+ * the sustain pedal, which the controller catches up separately.</p>
+ *
+ * @author Matt Putnam
+ */
+final class ControlReplay {
+  private ControlReplay() {}
+
+  /**
+   * @param control an input control number
+   * @return whether the control's position can be replayed
+   */
+  static boolean isReplayable(int control) {
+    return !(control == 0 || control == 32             // bank select
+          || control == 6 || control == 38             // data entry
+          || control == 64                             // sustain, caught up separately
+          || control == 66                             // sostenuto
+          || (96 <= control && control <= 101)         // (N)RPN
+          || control >= 120);                          // channel mode
+  }
+
+  /**
+   * Computes the control changes for a cue.  If more than one keyboard has
+   * a value for the same control, the first keyboard's is used.
+   * @param table the compiled routing table of the new cue.  Its control
+   *              chains are moved to the replayed values.
+   * @param keyboards the input keyboards
+   * @param sentControls the value last sent for each output control, or -1
+   *                     if unknown, indexed [channel * 128 + control].
+   *                     Updated with the returned messages.
+   * @param volumeChannels the output channels that were just sent their
+   *                       patch's volume, which keeps them from being sent
+   *                       CC7, bit N set for channel N
+   * @param now the current time, in System.nanoTime() terms
+   * @return the messages to send, in channel order
+   * @throws InvalidMidiDataException if a message can't be built (shouldn't happen)
+   */
+  static List<ShortMessage> compute(RoutingTable table, Keyboard[] keyboards, int[] sentControls,
+      int volumeChannels, long now) throws InvalidMidiDataException {
+    final int[] inputs = new int[128];
+    Arrays.fill(inputs, -1);
+    for (final Keyboard keyboard : keyboards) {
+      if (keyboard.channel < 0 || keyboard.channel >= 16)
+        continue;
+
+      final CCTracker.Snapshot snapshot = CCTracker.getInstance().snapshot(keyboard.channel);
+      if (snapshot.isEmpty())
+        continue;
+      for (int control = 0; control < 128; ++control)
+        if (inputs[control] == -1 && isReplayable(control))
+          inputs[control] = snapshot.getValue(control);
+    }
+
+    final int[] outputs = new int[16*128];
+    Arrays.fill(outputs, -1);
+    for (int control = 0; control < 128; ++control) {
+      if (inputs[control] == -1)
+        continue;
+
+      final int[] routes = table.getControlRoutes(control);
+      final ControlChain[] chains = table.getControlChains(control);
+      for (int i = 0; i < routes.length; ++i) {
+        final int channel = RoutingTable.channelOfControl(routes[i]);
+        final int output = RoutingTable.controlOf(routes[i]);
+        if (!isReplayable(output) || (output == 7 && (volumeChannels & (1 << channel)) != 0))
+          continue;
+
+        final ControlChain chain = chains.length == 0 ? null : chains[i];
+        outputs[channel*128 + output] = chain == null ? inputs[control] : chain.jumpTo(inputs[control], now);
+      }
+    }
+
+    final List<ShortMessage> result = new ArrayList<>();
+    for (int i = 0; i < outputs.length; ++i) {
+      if (outputs[i] != -1 && outputs[i] != sentControls[i]) {
+        result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, i / 128, i % 128, outputs[i]));
+        sentControls[i] = outputs[i];
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,308 @@
+package cadenza.control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cadenza.core.CadenzaData;
+import cadenza.core.Cue;
+import cadenza.core.Patch;
+import cadenza.core.Synthesizer;
+import cadenza.core.patchusage.PatchUsage;
+import cadenza.delegate.PatchChangeDelegate;
+
+import common.collection.ListAdapter;
+import common.collection.ListEvent;
+
+/**
+ * <p>Plans the channel allocation and patch changes for moving from one cue
+ * to another.  Planning used to be done in full on every cue change; now the
+ * planner walks the cue list in order and precomputes the transition into
+ * each cue from the one before it, assuming the show is performed in order.
+ * Advancing then just replays the cached plan.  Any other jump (reversing,
+ * goTo, or arriving with a different channel map than the plan expects) is
+ * planned on the spot, exactly as before.</p>
+ *
+ * <p>The planner listens to the cue, patch, and synthesizer lists.  Cue
+ * edits mark just the changed cues, and the next lookup re-walks the list,
+ * keeping every plan whose starting state is unchanged.  Patch and
+ * synthesizer edits throw away all plans.</p>
+ *
+ * @author Matt Putnam
+ */
+final class CueTransitionPlanner {
+  private static final Logger LOG = LogManager.getLogger(CueTransitionPlanner.class);
+  
+  private static final MidiMessage[] NO_MESSAGES = new MidiMessage[0];
+  
+  /**
+   * The plan for moving from one cue into another
+   *
+   * @author Matt Putnam
+   */
+  static final class Transition {
+    /** The cue being left, or <tt>null</tt> if loading from scratch */
+    final Cue from;
+    
+    /** The cue being entered */
+    final Cue to;
+    
+    /** The channel assignments this plan expects to start from */
+    final Map<PatchUsage, Integer> fromAssignments;
+    
+    /** The channel assignments of the new cue */
+    final Map<PatchUsage, Integer> toAssignments;
+    
+    /** The channels that need a patch change, in order */
+    final int[] patchChangeChannels;
+    
+    /** The patch to select on each of {@link #patchChangeChannels} */
+    final Patch[] patchChangePatches;
+    
+    /** The messages that select each of {@link #patchChangePatches} */
+    final MidiMessage[][] patchChanges;
+    
+    /** The volume for each assigned PatchUsage, packed (channel &lt;&lt; 7 | volume) */
+    final int[] volumes;
+    
+    /** Any error building the patch changes, or <tt>null</tt> */
+    final InvalidMidiDataException error;
+    
+    private Transition(Cue from, Cue to, Map<PatchUsage, Integer> fromAssignments,
+        Map<PatchUsage, Integer> toAssignments, int[] patchChangeChannels, Patch[] patchChangePatches,
+        MidiMessage[][] patchChanges, int[] volumes, InvalidMidiDataException error) {
+      this.from = from;
+      this.to = to;
+      this.fromAssignments = fromAssignments;
+      this.toAssignments = toAssignments;
+      this.patchChangeChannels = patchChangeChannels;
+      this.patchChangePatches = patchChangePatches;
+      this.patchChanges = patchChanges;
+      this.volumes = volumes;
+      this.error = error;
+    }
+  }
+  
+  private final CadenzaData _data;
+  
+  /** Sequential plans, keyed by the cue they enter */
+  private Map<Cue, Transition> _plans = new IdentityHashMap<>();
+  
+  /** Cues edited since the plans were last built */
+  private final Set<Cue> _modified = Collections.newSetFromMap(new IdentityHashMap<>());
+  
+  private boolean _dirty = true;
+  
+  CueTransitionPlanner(CadenzaData data) {
+    _data = data;
+    
+    _data.cues.addListener(new ListAdapter<Cue>() {
+      @Override
+      public void anyChange(ListEvent<Cue> event) {
+        cueChanged(event.getElement());
+      }
+    });
+    _data.patches.addListener(new ListAdapter<Patch>() {
+      @Override
+      public void anyChange(ListEvent<Patch> event) {
+        invalidateAll();
+      }
+    });
+    _data.synthesizers.addListener(new ListAdapter<Synthesizer>() {
+      @Override
+      public void anyChange(ListEvent<Synthesizer> event) {
+        invalidateAll();
+      }
+    });
+  }
+  
+  private synchronized void cueChanged(Cue cue) {
+    if (cue == null)
+      _plans.clear();
+    else
+      _modified.add(cue);
+    _dirty = true;
+  }
+  
+  /**
+   * Throws away all plans.  They are rebuilt on the next lookup.
+   */
+  synchronized void invalidateAll() {
+    _plans.clear();
+    _modified.clear();
+    _dirty = true;
+  }
+  
+  /**
+   * Gets the plan for a cue change, using the precomputed plan if it applies
+   * and planning it on the spot otherwise
+   * @param from the cue being left, or <tt>null</tt> if loading from scratch
+   * @param to the cue being entered
+   * @param currentAssignments the current channel assignments
+   * @param loadedPatches the patch known to be selected on each channel, or
+   *                      <tt>null</tt> if not tracked.  Only used when
+   *                      planning on the spot.
+   * @return the transition plan
+   */
+  synchronized Transition getTransition(Cue from, Cue to, Map<PatchUsage, Integer> currentAssignments,
+      Patch[] loadedPatches) {
+    if (_dirty)
+      rebuild();
+    
+    final Transition cached = _plans.get(to);
+    if (cached != null && cached.error == null && cached.from == from
+        && cached.fromAssignments.equals(currentAssignments))
+      return cached;
+    
+    return plan(from, to, currentAssignments, _data.synthesizers, loadedPatches);
+  }
+  
+  /**
+   * Walks the cue list and plans each sequential transition, keeping
+   * existing plans whose cues and starting channel map are unchanged.
+   */
+  synchronized void rebuild() {
+    final Map<Cue, Transition> plans = new IdentityHashMap<>();
+    
+    Cue from = null;
+    Map<PatchUsage, Integer> assignments = Collections.emptyMap();
+    int reused = 0;
+    for (final Cue to : _data.cues) {
+      final Transition old = _plans.get(to);
+      final Transition transition;
+      if (old != null && old.from == from && !_modified.contains(to) && !_modified.contains(from)
+          && old.fromAssignments.equals(assignments)) {
+        transition = old;
+        ++reused;
+      } else {
+        transition = plan(from, to, assignments, _data.synthesizers, null);
+      }
+      
+      plans.put(to, transition);
+      from = to;
+      assignments = transition.toAssignments;
+    }
+    
+    LOG.debug("Planned " + (plans.size() - reused) + " cue transitions, reused " + reused);
+    
+    _plans = plans;
+    _modified.clear();
+    _dirty = false;
+  }
+  
+  /**
+   * Plans a cue change.  If a patch from the old cue is reused in the new
+   * cue, then it keeps its channel and no patch change is sent.  If there
+   * are more available channels than are needed, channels not currently in
+   * use are preferred, to avoid sending patch changes on sounding channels.
+   * If the patch is known to be selected already on an available channel
+   * (because it was preloaded), that channel is used.
+   * @param from the cue being left, or <tt>null</tt> if loading from scratch
+   * @param to the cue being entered
+   * @param fromAssignments the channel assignments before the change
+   * @param synthesizers the synthesizers and their channels
+   * @param loadedPatches the patch known to be selected on each channel, or
+   *                      <tt>null</tt> if not tracked
+   * @return the transition plan
+   */
+  static Transition plan(Cue from, Cue to, Map<PatchUsage, Integer> fromAssignments,
+      List<Synthesizer> synthesizers, Patch[] loadedPatches) {
+    final Map<PatchUsage, Integer> toAssignments = new HashMap<>();
+    
+    final List<PatchUsage> oldPatchUsages = from == null ? Collections.emptyList()
+                                                         : from.getPatchUsages();
+    final List<PatchUsage> newPatchUsages = to.getPatchUsages();
+    
+    final Map<Synthesizer, List<Integer>> availableChannels = new HashMap<>();
+    for (final Synthesizer synth : synthesizers) {
+      // sort available channels by synth, and move currently assigned ones to
+      // the back of the list, so they get used last:
+      final List<Integer> synthChannels = new ArrayList<>(synth.getChannels());
+      for (final Integer i : fromAssignments.values())
+        if (synthChannels.remove(i))
+          synthChannels.add(i);
+      
+      availableChannels.put(synth, synthChannels);
+    }
+    
+    final List<PatchUsage> unassigned = new LinkedList<>();
+    
+    matchPatches:
+    for (final PatchUsage newUsage : newPatchUsages) {
+      final Patch patch = newUsage.patch;
+      for (final PatchUsage oldUsage : oldPatchUsages) {
+        if (patch == oldUsage.patch && fromAssignments.containsKey(oldUsage)) {
+          final Integer channel = fromAssignments.get(oldUsage);
+          LOG.debug("Patch '" + patch.name + "' was already assigned, keeping on channel " + channel);
+          toAssignments.put(newUsage, channel);
+          availableChannels.get(patch.getSynthesizer()).remove(channel);
+          continue matchPatches;
+        }
+      }
+      
+      // none found, reassign
+      unassigned.add(newUsage);
+    }
+    
+    final int[] patchChangeChannels = new int[unassigned.size()];
+    final Patch[] patchChangePatches = new Patch[unassigned.size()];
+    final MidiMessage[][] patchChanges = new MidiMessage[unassigned.size()][];
+    int count = 0;
+    InvalidMidiDataException error = null;
+    for (final PatchUsage pu : unassigned) {
+      final List<Integer> available = availableChannels.get(pu.patch.getSynthesizer());
+      if (available.isEmpty()) {
+        LOG.warn("Not enough channels assigned to "
+            + pu.patch.getSynthesizer().getName() + ", patch '" + pu.patch.name + "' not assigned.");
+        continue;
+      }
+      
+      final Integer channel = available.remove(findLoaded(available, pu.patch, loadedPatches));
+      LOG.debug("Patch '" + pu.patch.name + "' assigned to channel " + channel);
+      toAssignments.put(pu, channel);
+      if (error == null) {
+        try {
+          patchChanges[count] = PatchChangeDelegate.buildPatchChange(pu.patch, channel.intValue()).toArray(NO_MESSAGES);
+          patchChangeChannels[count] = channel.intValue();
+          patchChangePatches[count] = pu.patch;
+          ++count;
+        } catch (InvalidMidiDataException e) {
+          error = e;
+        }
+      }
+    }
+    
+    final int[] volumes = newPatchUsages.stream()
+                                        .filter(toAssignments::containsKey)
+                                        .mapToInt(pu -> (toAssignments.get(pu).intValue() << 7) | pu.volume)
+                                        .toArray();
+    
+    return new Transition(from, to, fromAssignments, toAssignments,
+        Arrays.copyOf(patchChangeChannels, count), Arrays.copyOf(patchChangePatches, count),
+        Arrays.copyOf(patchChanges, count), volumes, error);
+  }
+  
+  /**
+   * @return the index of the first available channel that already has the
+   *         patch selected, or 0 if there is none
+   */
+  private static int findLoaded(List<Integer> available, Patch patch, Patch[] loadedPatches) {
+    if (loadedPatches != null)
+      for (int i = 0; i < available.size(); ++i)
+        if (loadedPatches[available.get(i).intValue()] == patch)
+          return i;
+    return 0;
+  }
+}
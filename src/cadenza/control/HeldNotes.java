@@ -0,0 +1,182 @@
+package cadenza.control;
+
+import java.util.Arrays;
+
+/**
+ * <p>Tracks the output notes sounding for each held input key, so that the
+ * matching note offs can be sent when the key is released.  This is the
+ * allocation-free replacement for a map of (Keyboard, MidiNumber) to a set
+ * of (MidiChannel, MidiNumber) pairs.</p>
+ *
+ * <p>Storage is a flat primitive array indexed by [keyboard index][input
+ * note][voice], with each output voice packed into a single int.  Each input
+ * key can hold up to {@link #VOICES_PER_KEY} output voices; any beyond that
+ * are dropped (and counted, see {@link #getDroppedVoiceCount()}).</p>
+ *
+ * This class is not threadsafe; the PerformanceController guards access.
+ *
+ * @author Matt Putnam
+ */
+final class HeldNotes {
+  /** The maximum number of output voices tracked for a single input key */
+  static final int VOICES_PER_KEY = 32;
+  
+  private int[] _voices;
+  private int[] _counts;
+  private int[] _channelVoices;
+  private int _keyboardCount;
+  
+  // Written only by the performance thread, read by the diagnostics
+  private volatile int _activeVoices;
+  private int _droppedVoices;
+  
+  /**
+   * Creates a tracker sized for the given number of keyboards
+   * @param keyboardCount the number of input keyboards
+   */
+  HeldNotes(int keyboardCount) {
+    _keyboardCount = keyboardCount;
+    _voices = new int[keyboardCount * 128 * VOICES_PER_KEY];
+    _counts = new int[keyboardCount * 128];
+    _channelVoices = new int[keyboardCount * 16];
+  }
+  
+  /**
+   * Packs an output voice into a single int
+   * @param channel the output channel, 0-15
+   * @param midiNumber the output MIDI number, 0-127
+   * @return the packed voice
+   */
+  static int pack(int channel, int midiNumber) {
+    return (channel << 7) | midiNumber;
+  }
+  
+  /**
+   * @param voice a packed voice
+   * @return the output channel of the voice
+   */
+  static int channelOf(int voice) {
+    return voice >>> 7;
+  }
+  
+  /**
+   * @param voice a packed voice
+   * @return the output MIDI number of the voice
+   */
+  static int midiNumberOf(int voice) {
+    return voice & 0x7F;
+  }
+  
+  /**
+   * Changes the number of keyboards tracked.  Notes held on keyboards that
+   * still exist are kept.
+   * @param keyboardCount the new number of input keyboards
+   */
+  void resize(int keyboardCount) {
+    if (keyboardCount == _keyboardCount)
+      return;
+    
+    final int kept = Math.min(keyboardCount, _keyboardCount);
+    for (int key = kept*128; key < _keyboardCount*128; ++key)
+      _activeVoices -= _counts[key];
+    
+    _voices = Arrays.copyOf(_voices, keyboardCount * 128 * VOICES_PER_KEY);
+    _counts = Arrays.copyOf(_counts, keyboardCount * 128);
+    _channelVoices = Arrays.copyOf(_channelVoices, keyboardCount * 16);
+    _keyboardCount = keyboardCount;
+  }
+  
+  /**
+   * Records an output voice for an input key
+   * @param keyboardIndex the index of the input keyboard
+   * @param inputMidiNumber the input MIDI number
+   * @param channel the output channel
+   * @param midiNumber the output MIDI number
+   * @return <tt>true</tt> if the voice was recorded, <tt>false</tt> if the key
+   *         already holds the maximum number of voices
+   */
+  boolean add(int keyboardIndex, int inputMidiNumber, int channel, int midiNumber) {
+    final int key = keyboardIndex*128 + inputMidiNumber;
+    final int count = _counts[key];
+    if (count == VOICES_PER_KEY) {
+      ++_droppedVoices;
+      return false;
+    }
+    
+    _voices[key*VOICES_PER_KEY + count] = pack(channel, midiNumber);
+    _counts[key] = count+1;
+    ++_channelVoices[keyboardIndex*16 + channel];
+    ++_activeVoices;
+    return true;
+  }
+  
+  /**
+   * @param keyboardIndex the index of the input keyboard
+   * @param inputMidiNumber the input MIDI number
+   * @return the number of output voices held by the input key
+   */
+  int count(int keyboardIndex, int inputMidiNumber) {
+    return _counts[keyboardIndex*128 + inputMidiNumber];
+  }
+  
+  /**
+   * @param keyboardIndex the index of the input keyboard
+   * @param inputMidiNumber the input MIDI number
+   * @param i the voice number, less than {@link #count(int, int)}
+   * @return the packed output voice
+   */
+  int get(int keyboardIndex, int inputMidiNumber, int i) {
+    return _voices[(keyboardIndex*128 + inputMidiNumber)*VOICES_PER_KEY + i];
+  }
+  
+  /**
+   * Forgets all output voices of an input key
+   * @param keyboardIndex the index of the input keyboard
+   * @param inputMidiNumber the input MIDI number
+   */
+  void release(int keyboardIndex, int inputMidiNumber) {
+    final int key = keyboardIndex*128 + inputMidiNumber;
+    final int count = _counts[key];
+    for (int i = 0; i < count; ++i)
+      --_channelVoices[keyboardIndex*16 + channelOf(_voices[key*VOICES_PER_KEY + i])];
+    _activeVoices -= count;
+    _counts[key] = 0;
+  }
+  
+  /**
+   * Forgets all output voices
+   */
+  void clear() {
+    Arrays.fill(_counts, 0);
+    Arrays.fill(_channelVoices, 0);
+    _activeVoices = 0;
+  }
+  
+  /**
+   * @param keyboardIndex the index of the input keyboard
+   * @return a bit mask of the output channels that have voices held from
+   *         the keyboard, bit N set for channel N
+   */
+  int getChannelMask(int keyboardIndex) {
+    int mask = 0;
+    for (int channel = 0; channel < 16; ++channel)
+      if (_channelVoices[keyboardIndex*16 + channel] > 0)
+        mask |= 1 << channel;
+    return mask;
+  }
+  
+  /**
+   * @return the total number of output voices currently held
+   */
+  int getActiveVoiceCount() {
+    return _activeVoices;
+  }
+  
+  /**
+   * @return the number of voices that could not be tracked because their
+   *         input key was already full
+   */
+  int getDroppedVoiceCount() {
+    return _droppedVoices;
+  }
+}
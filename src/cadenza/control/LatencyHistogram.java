@@ -0,0 +1,126 @@
+package cadenza.control;
+
+import java.util.Arrays;
+
+/**
+ * <p>Log-linear histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram.  Values below 64ns get their own bucket; above that each
+ * power of 2 is split into 32 buckets, so any recorded value is reported to
+ * within about 3%.  Values up to about 18 minutes are tracked, anything
+ * larger is counted in the last bucket.</p>
+ *
+ * <p>Recording is a couple of shifts and an array increment, and never
+ * allocates.  There must be a single writer; other threads may read at any
+ * time, and will see approximate values while recording is in progress.
+ * Any thread may {@link #reset()}: the histogram reads as empty right away,
+ * and the writer clears it before its next recording.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+  
+  private final long[] _counts = new long[BUCKET_COUNT];
+  private long _totalCount;
+  private long _totalNanos;
+  private long _max;
+  
+  /** Set by {@link #reset()}, and cleared by the writer when it applies it */
+  private volatile boolean _resetRequested;
+  
+  private static int bucketOf(long nanos) {
+    if (nanos < LINEAR_LIMIT)
+      return nanos < 0 ? 0 : (int) nanos;
+    
+    final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent >= MAX_EXPONENT)
+      return BUCKET_COUNT-1;
+    
+    final int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+    return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+  
+  private static long lowerBoundOf(int bucket) {
+    if (bucket < LINEAR_LIMIT)
+      return bucket;
+    
+    final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+  }
+  
+  /**
+   * Records a latency
+   * @param nanos the latency, in nanoseconds
+   */
+  public void record(long nanos) {
+    if (_resetRequested) {
+      // clear the flag first, so a reset requested meanwhile isn't lost
+      _resetRequested = false;
+      Arrays.fill(_counts, 0);
+      _totalCount = 0;
+      _totalNanos = 0;
+      _max = 0;
+    }
+    
+    ++_counts[bucketOf(nanos)];
+    ++_totalCount;
+    _totalNanos += nanos;
+    if (nanos > _max)
+      _max = nanos;
+  }
+  
+  /**
+   * Clears all recorded values.  May be called from any thread.
+   */
+  public void reset() {
+    _resetRequested = true;
+  }
+  
+  /**
+   * @return the number of values recorded
+   */
+  public long getCount() {
+    return _resetRequested ? 0 : _totalCount;
+  }
+  
+  /**
+   * @return the mean of the recorded values, in nanoseconds
+   */
+  public long getMean() {
+    final long count = getCount();
+    return count == 0 ? 0 : _totalNanos / count;
+  }
+  
+  /**
+   * @return the largest recorded value, in nanoseconds
+   */
+  public long getMax() {
+    return _resetRequested ? 0 : _max;
+  }
+  
+  /**
+   * Gets a percentile of the recorded values
+   * @param percentile the percentile, 0-100
+   * @return the lower bound of the bucket holding the percentile, in
+   *         nanoseconds, or 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    final long count = getCount();
+    if (count == 0)
+      return 0;
+    
+    final long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket) {
+      seen += _counts[bucket];
+      if (seen >= target)
+        return Math.min(lowerBoundOf(bucket), _max);
+    }
+    return _max;
+  }
+}
@@ -0,0 +1,215 @@
+package cadenza.control;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.midi.ShortMessage;
+
+import cadenza.core.Cue;
+
+import common.midi.MidiUtilities;
+
+/**
+ * <p>Records how long the {@link PerformanceController} takes to handle each
+ * input message.  Three timestamps are taken per message: when it arrived
+ * from the input device, when routing started (after any wait in the event
+ * loop), and when the last resulting <tt>Receiver.send</tt> returned.  The
+ * latencies between them are aggregated into {@link LatencyHistogram}s by
+ * message type, plus an input to output histogram for each cue.</p>
+ *
+ * <p>Recording is off by default and costs one volatile read when off.
+ * When on, it takes two extra calls to System.nanoTime() and a few array
+ * increments per message, and doesn't allocate except the first time a cue
+ * is entered.  Only the performance thread records; reports can be built
+ * from any thread.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class LatencyRecorder {
+  public static enum MessageType {
+    NOTE_ON("Note on"),
+    NOTE_OFF("Note off"),
+    CONTROL_CHANGE("Control change"),
+    OTHER("Other");
+    
+    private final String _display;
+    private MessageType(String display) {
+      _display = display;
+    }
+    
+    @Override
+    public String toString() {
+      return _display;
+    }
+  }
+  
+  public static enum Stage {
+    QUEUE("Input to routing"),
+    ROUTING("Routing to output"),
+    TOTAL("Input to output");
+    
+    private final String _display;
+    private Stage(String display) {
+      _display = display;
+    }
+    
+    @Override
+    public String toString() {
+      return _display;
+    }
+  }
+  
+  private static final double[] REPORTED_PERCENTILES = { 50, 90, 99, 99.9 };
+  
+  private volatile boolean _enabled = false;
+  
+  private final LatencyHistogram[][] _histograms;
+  private final Map<Cue, LatencyHistogram> _cueHistograms = new IdentityHashMap<>();
+  private volatile LatencyHistogram _currentCueHistogram;
+  
+  LatencyRecorder() {
+    _histograms = new LatencyHistogram[MessageType.values().length][Stage.values().length];
+    for (final LatencyHistogram[] byStage : _histograms)
+      for (int i = 0; i < byStage.length; ++i)
+        byStage[i] = new LatencyHistogram();
+  }
+  
+  /**
+   * @return <tt>true</tt> if latencies are being recorded
+   */
+  public boolean isEnabled() {
+    return _enabled;
+  }
+  
+  /**
+   * Turns recording on or off
+   * @param enabled whether or not to record latencies
+   */
+  public void setEnabled(boolean enabled) {
+    _enabled = enabled;
+  }
+  
+  /**
+   * Notifies the recorder that a new cue was entered, so that following
+   * messages are counted against it
+   * @param cue the cue entered
+   */
+  synchronized void cueChanged(Cue cue) {
+    LatencyHistogram histogram = _cueHistograms.get(cue);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      _cueHistograms.put(cue, histogram);
+    }
+    _currentCueHistogram = histogram;
+  }
+  
+  /**
+   * Records the handling of one input message
+   * @param sm the input message
+   * @param inputNanos when the message arrived
+   * @param routingNanos when routing started
+   * @param outputNanos when output finished
+   */
+  void record(ShortMessage sm, long inputNanos, long routingNanos, long outputNanos) {
+    final LatencyHistogram[] byStage = _histograms[typeOf(sm).ordinal()];
+    byStage[Stage.QUEUE.ordinal()].record(routingNanos - inputNanos);
+    byStage[Stage.ROUTING.ordinal()].record(outputNanos - routingNanos);
+    byStage[Stage.TOTAL.ordinal()].record(outputNanos - inputNanos);
+    
+    final LatencyHistogram cueHistogram = _currentCueHistogram;
+    if (cueHistogram != null)
+      cueHistogram.record(outputNanos - inputNanos);
+  }
+  
+  private static MessageType typeOf(ShortMessage sm) {
+    if (MidiUtilities.isNoteOn(sm))
+      return MessageType.NOTE_ON;
+    else if (MidiUtilities.isNoteOff(sm))
+      return MessageType.NOTE_OFF;
+    else if (MidiUtilities.isControlChange(sm))
+      return MessageType.CONTROL_CHANGE;
+    else
+      return MessageType.OTHER;
+  }
+  
+  /**
+   * @param type the message type
+   * @param stage the stage
+   * @return the histogram for the type and stage.  Do not record to it.
+   */
+  public LatencyHistogram getHistogram(MessageType type, Stage stage) {
+    return _histograms[type.ordinal()][stage.ordinal()];
+  }
+  
+  /**
+   * Clears all recorded latencies.  May be called from any thread; the
+   * histograms are cleared by the performance thread before it next
+   * records to them.
+   */
+  public synchronized void reset() {
+    for (final LatencyHistogram[] byStage : _histograms)
+      for (final LatencyHistogram histogram : byStage)
+        histogram.reset();
+    _cueHistograms.values().forEach(LatencyHistogram::reset);
+  }
+  
+  /**
+   * Builds a plain text report of the recorded latencies
+   * @param cues the cues, in order, to report per-cue latencies for
+   * @return the report
+   */
+  public synchronized String buildReport(List<Cue> cues) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-32s %10s %10s", "Latency (microseconds)", "count", "mean"));
+    for (final double percentile : REPORTED_PERCENTILES)
+      sb.append(String.format(" %10s", "p" + format(percentile)));
+    sb.append(String.format(" %10s%n", "max"));
+    
+    for (final MessageType type : MessageType.values())
+      for (final Stage stage : Stage.values())
+        appendRow(sb, type + ": " + stage, getHistogram(type, stage));
+    
+    sb.append(String.format("%nInput to output, by cue%n"));
+    for (final Cue cue : new ArrayList<>(cues)) {
+      final LatencyHistogram histogram = _cueHistograms.get(cue);
+      if (histogram != null && histogram.getCount() > 0)
+        appendRow(sb, cue.song + " m." + cue.measureNumber, histogram);
+    }
+    
+    return sb.toString();
+  }
+  
+  private static void appendRow(StringBuilder sb, String label, LatencyHistogram histogram) {
+    sb.append(String.format("%-32s %10d %10s", label, Long.valueOf(histogram.getCount()), micros(histogram.getMean())));
+    for (final double percentile : REPORTED_PERCENTILES)
+      sb.append(String.format(" %10s", micros(histogram.getPercentile(percentile))));
+    sb.append(String.format(" %10s%n", micros(histogram.getMax())));
+  }
+  
+  private static String micros(long nanos) {
+    return String.format("%.1f", Double.valueOf(nanos / 1000.0));
+  }
+  
+  private static String format(double percentile) {
+    return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+  }
+  
+  /**
+   * Writes a report of the recorded latencies to a file.  This is an IO
+   * operation and should not be called from the Swing Event thread.
+   * @param file the file to write
+   * @param cues the cues, in order, to report per-cue latencies for
+   * @throws IOException If any IO exception occurs
+   */
+  public void writeReport(File file, List<Cue> cues) throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+      writer.write(buildReport(cues));
+    }
+  }
+}
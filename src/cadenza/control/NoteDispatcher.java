@@ -0,0 +1,348 @@
+package cadenza.control;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Sends channel messages at scheduled times, for notes played in time with
+ * the metronome.  Messages are held in a heap ordered by due time (and by
+ * the order they were scheduled, for equal times) and sent by a dedicated
+ * high priority thread, which parks until shortly before the earliest one
+ * is due and then spins the rest of the way, as the metronome clock
+ * does.</p>
+ *
+ * <p>If the output device keeps a clock (its microsecond position is not
+ * -1), messages are instead handed to it a little early with a timestamp
+ * converted to the device's clock, and the device does the final timing.
+ * Timestamps never go backwards, so a message scheduled for now can't be
+ * played ahead of one already handed over.</p>
+ *
+ * <p>Every message has an owner, so that an owner going away can drop the
+ * notes it has pending with {@link #flush(Object)}, or replace what it has
+ * pending after {@link #cancel(Object)}.</p>
+ *
+ * <p>A note off is usually scheduled when its note on is, from an estimate
+ * of when the next note will start.  If the same owner then schedules the
+ * same note to start again before that note off, the note off is moved up
+ * to go just ahead of the new note on, so the new note isn't cut off.</p>
+ *
+ * @author Matt Putnam
+ */
+final class NoteDispatcher {
+  private static final Logger LOG = LogManager.getLogger(NoteDispatcher.class);
+  
+  /**
+   * How close to the due time to stop waiting and start spinning, the same
+   * as the metronome clock
+   */
+  private static final long SPIN_NANOS = 200000L;
+  
+  /** How early to hand a message to an output device that keeps a clock */
+  private static final long DEVICE_LEAD_NANOS = 2000000L;
+  
+  private final ShortMessagePool _messagePool = new ShortMessagePool();
+  
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _wakeup = _lock.newCondition();
+  private final Thread _thread;
+  private volatile boolean _running = true;
+  
+  private Receiver _receiver;
+  private MidiDevice _deviceClock;
+  private long _lastTimestamp = -1;
+  
+  // The heap, as parallel arrays
+  private long[] _due = new long[64];
+  private long[] _sequence = new long[64];
+  private int[] _packed = new int[64];
+  private Object[] _owners = new Object[64];
+  private int _size;
+  private long _nextSequence;
+  
+  /**
+   * Creates and starts a dispatcher
+   */
+  NoteDispatcher() {
+    _thread = new Thread(this::run, "Cadenza Note Dispatcher");
+    _thread.setDaemon(true);
+    _thread.setPriority(Thread.MAX_PRIORITY);
+    _thread.start();
+  }
+  
+  /**
+   * Sets where to send messages
+   * @param receiver the receiver, or <tt>null</tt> to drop messages
+   * @param deviceClock the device to timestamp messages against, or
+   *                    <tt>null</tt> to time them here
+   */
+  void setReceiver(Receiver receiver, MidiDevice deviceClock) {
+    _lock.lock();
+    try {
+      _receiver = receiver;
+      _deviceClock = deviceClock;
+      _lastTimestamp = -1;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Schedules a channel message
+   * @param command the command, e.g. {@link ShortMessage#NOTE_ON}
+   * @param channel the output channel
+   * @param data1 the first data byte
+   * @param data2 the second data byte
+   * @param dueNanos when to send it, in System.nanoTime() terms
+   * @param owner the owner of the message, for {@link #flush(Object)}
+   */
+  void schedule(int command, int channel, int data1, int data2, long dueNanos, Object owner) {
+    _lock.lock();
+    try {
+      final int packed = command | channel | (data1 << 8) | (data2 << 16);
+      if (isNoteOn(packed))
+        advanceNoteOffs(packed, dueNanos, owner);
+      push(dueNanos, packed, owner);
+      if (_due[0] == dueNanos)
+        _wakeup.signal();
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Drops the pending note ons of the given owner, and makes its pending
+   * note offs due immediately
+   * @param owner the owner
+   */
+  void flush(Object owner) {
+    _lock.lock();
+    try {
+      final long now = System.nanoTime();
+      int kept = 0;
+      for (int i = 0; i < _size; ++i) {
+        if (_owners[i] == owner) {
+          if (isNoteOn(_packed[i]))
+            continue;
+          _due[i] = Math.min(_due[i], now);
+        }
+        move(i, kept++);
+      }
+      for (int i = kept; i < _size; ++i)
+        _owners[i] = null;
+      _size = kept;
+      
+      for (int i = _size/2 - 1; i >= 0; --i)
+        siftDown(i);
+      _wakeup.signal();
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Drops every pending message of the given owner
+   * @param owner the owner
+   */
+  void cancel(Object owner) {
+    _lock.lock();
+    try {
+      int kept = 0;
+      for (int i = 0; i < _size; ++i)
+        if (_owners[i] != owner)
+          move(i, kept++);
+      for (int i = kept; i < _size; ++i)
+        _owners[i] = null;
+      _size = kept;
+      
+      for (int i = _size/2 - 1; i >= 0; --i)
+        siftDown(i);
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Moves the owner's pending note offs for a note that are due after it
+   * is next played up to when it is played.  They were scheduled before
+   * the note on, so they still go ahead of it.
+   */
+  private void advanceNoteOffs(int noteOn, long dueNanos, Object owner) {
+    final int key = noteOn & 0xFF0F;
+    for (int i = 0; i < _size; ++i) {
+      if (_owners[i] == owner && !isNoteOn(_packed[i]) && isNote(_packed[i]) && (_packed[i] & 0xFF0F) == key
+          && _due[i] - dueNanos > 0) {
+        _due[i] = dueNanos;
+        siftUp(i);
+      }
+    }
+  }
+  
+  private static boolean isNote(int packed) {
+    final int command = packed & 0xF0;
+    return command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF;
+  }
+  
+  private static boolean isNoteOn(int packed) {
+    return (packed & 0xF0) == ShortMessage.NOTE_ON && (packed >>> 16) != 0;
+  }
+  
+  private void run() {
+    _lock.lock();
+    try {
+      while (_running) {
+        if (_size == 0) {
+          _wakeup.await();
+          continue;
+        }
+        
+        final long now = System.nanoTime();
+        final long remaining = _due[0] - now;
+        final long lead = _deviceClock == null ? SPIN_NANOS : DEVICE_LEAD_NANOS;
+        if (remaining > lead) {
+          _wakeup.awaitNanos(remaining - lead);
+        } else if (remaining > 0 && _deviceClock == null) {
+          // spin without the lock, so messages can still be scheduled
+          _lock.unlock();
+          try {
+            while (System.nanoTime() < now + remaining && _running)
+              Thread.yield();
+          } finally {
+            _lock.lock();
+          }
+        } else {
+          final long dueNanos = _due[0];
+          final int packed = _packed[0];
+          pop();
+          transmit(packed, dueNanos, now);
+        }
+      }
+    } catch (InterruptedException e) {
+      return;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  private void transmit(int packed, long dueNanos, long now) {
+    final Receiver receiver = _receiver;
+    if (receiver == null)
+      return;
+    
+    long timestamp = -1;
+    if (_deviceClock != null) {
+      final long position = _deviceClock.getMicrosecondPosition();
+      if (position != -1) {
+        timestamp = Math.max(position + Math.max(0, dueNanos - now) / 1000, _lastTimestamp);
+        _lastTimestamp = timestamp;
+      }
+    }
+    
+    try {
+      receiver.send(_messagePool.encode(receiver, packed & 0xF0, packed & 0x0F, (packed >>> 8) & 0x7F, (packed >>> 16) & 0x7F), timestamp);
+    } catch (InvalidMidiDataException e) {
+      LOG.error("Error sending scheduled message", e);
+    }
+  }
+  
+  private void push(long dueNanos, int packed, Object owner) {
+    if (_size == _due.length) {
+      final int capacity = _size * 2;
+      _due = Arrays.copyOf(_due, capacity);
+      _sequence = Arrays.copyOf(_sequence, capacity);
+      _packed = Arrays.copyOf(_packed, capacity);
+      _owners = Arrays.copyOf(_owners, capacity);
+    }
+    
+    _due[_size] = dueNanos;
+    _sequence[_size] = _nextSequence++;
+    _packed[_size] = packed;
+    _owners[_size] = owner;
+    
+    siftUp(_size++);
+  }
+  
+  private void siftUp(int index) {
+    while (index > 0) {
+      final int parent = (index-1) / 2;
+      if (!before(index, parent))
+        return;
+      swap(index, parent);
+      index = parent;
+    }
+  }
+  
+  private void pop() {
+    --_size;
+    move(_size, 0);
+    _owners[_size] = null;
+    siftDown(0);
+  }
+  
+  private void siftDown(int index) {
+    while (true) {
+      final int left = 2*index + 1;
+      if (left >= _size)
+        return;
+      
+      final int right = left + 1;
+      final int child = (right < _size && before(right, left)) ? right : left;
+      if (!before(child, index))
+        return;
+      swap(index, child);
+      index = child;
+    }
+  }
+  
+  private boolean before(int a, int b) {
+    final long diff = _due[a] - _due[b];
+    return diff < 0 || (diff == 0 && _sequence[a] < _sequence[b]);
+  }
+  
+  private void move(int from, int to) {
+    _due[to] = _due[from];
+    _sequence[to] = _sequence[from];
+    _packed[to] = _packed[from];
+    _owners[to] = _owners[from];
+  }
+  
+  private void swap(int a, int b) {
+    final long due = _due[a];
+    final long sequence = _sequence[a];
+    final int packed = _packed[a];
+    final Object owner = _owners[a];
+    move(b, a);
+    _due[b] = due;
+    _sequence[b] = sequence;
+    _packed[b] = packed;
+    _owners[b] = owner;
+  }
+  
+  /**
+   * @return the number of messages waiting to be sent
+   */
+  int getPending() {
+    _lock.lock();
+    try {
+      return _size;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Stops the dispatcher.  Anything still scheduled is discarded.
+   */
+  void shutdown() {
+    _running = false;
+    _thread.interrupt();
+  }
+}
@@ -0,0 +1,381 @@
+package cadenza.control;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>Receiver that paces output to the bandwidth of a MIDI port.  A 5-pin DIN
+ * link carries 3125 bytes per second, so a burst of controller messages can
+ * hold up the notes behind it.  The scheduler models when the wire will be
+ * free and only hands a message to the device once it can go out, keeping
+ * everything else in its own queues where it can still be reordered and
+ * merged:</p>
+ *
+ * <ul>
+ *   <li>Continuous controllers (CCs other than bank select, switches, data
+ *       entry and channel mode messages), pitch bend and channel pressure
+ *       are coalesced: a newer value for the same (channel, controller)
+ *       replaces one that hasn't been sent yet.</li>
+ *   <li>Everything else (notes, patch changes, SYSEX, switches, mode
+ *       messages) is sent strictly in order, ahead of continuous
+ *       controllers.  A continuous controller that has waited longer than
+ *       {@link #MAX_CONTINUOUS_DELAY_NANOS} goes next regardless.</li>
+ * </ul>
+ *
+ * <p>When the wire is idle and nothing is queued, a message is sent straight
+ * through on the calling thread.  All sends to the device are serialized.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class OutputScheduler implements Receiver {
+  private static final Logger LOG = LogManager.getLogger(OutputScheduler.class);
+  
+  /** The byte rate of a DIN MIDI link: 31250 baud at 10 bits per byte */
+  public static final int DIN_BYTES_PER_SECOND = 3125;
+  
+  /** How far ahead of the wire messages are handed to the device */
+  private static final long LEAD_NANOS = 1000000L;
+  
+  /** The longest a continuous controller waits behind ordered messages */
+  private static final long MAX_CONTINUOUS_DELAY_NANOS = 20000000L;
+  
+  private static final int PITCH_BEND_KEY = 16*128;
+  private static final int PRESSURE_KEY = PITCH_BEND_KEY + 16;
+  private static final int KEY_COUNT = PRESSURE_KEY + 16;
+  
+  private final Receiver _receiver;
+  private final long _nanosPerByte;
+  private final ShortMessagePool _messagePool = new ShortMessagePool();
+  
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _wakeup = _lock.newCondition();
+  private final Thread _thread;
+  private volatile boolean _running = true;
+  
+  /** When the wire is next free, in System.nanoTime() terms */
+  private long _wireFreeAt;
+  
+  // Ordered lane: a growable ring of packed short messages, or long messages
+  private int[] _ordered = new int[256];
+  private MidiMessage[] _orderedLong = new MidiMessage[256];
+  private int _orderedHead;
+  private int _orderedSize;
+  
+  // Continuous lane: the pending value per key, and the keys in arrival order
+  private final int[] _pending = new int[KEY_COUNT];
+  private final long[] _pendingSince = new long[KEY_COUNT];
+  private final int[] _continuousKeys = new int[KEY_COUNT];
+  private int _continuousHead;
+  private int _continuousSize;
+  
+  private int _backlogBytes;
+  private int _maxBacklog;
+  private long _bytesSent;
+  private long _coalesced;
+  
+  /**
+   * Creates and starts a scheduler
+   * @param receiver the device receiver to send to
+   * @param bytesPerSecond the bandwidth of the port, or 0 for no limit
+   */
+  public OutputScheduler(Receiver receiver, int bytesPerSecond) {
+    _receiver = receiver;
+    _nanosPerByte = bytesPerSecond <= 0 ? 0 : 1000000000L / bytesPerSecond;
+    _wireFreeAt = System.nanoTime();
+    Arrays.fill(_pending, -1);
+    
+    _thread = new Thread(this::run, "Cadenza Output");
+    _thread.setDaemon(true);
+    _thread.setPriority(Thread.MAX_PRIORITY);
+    _thread.start();
+  }
+  
+  @Override
+  public void send(MidiMessage message, long timeStamp) {
+    _lock.lock();
+    try {
+      if (message instanceof ShortMessage)
+        enqueue((ShortMessage) message);
+      else
+        enqueueOrdered(0, (MidiMessage) message.clone(), message.getLength());
+      
+      drain(System.nanoTime());
+      if (backlog() > 0)
+        _wakeup.signal();
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  private void enqueue(ShortMessage sm) {
+    final int status = sm.getStatus();
+    final int length = sm.getLength();
+    final int data1 = length > 1 ? sm.getData1() : 0;
+    final int data2 = length > 2 ? sm.getData2() : 0;
+    final int packed = status | (data1 << 8) | (data2 << 16) | (length << 24);
+    
+    final int key = continuousKey(status, data1);
+    if (key == -1) {
+      enqueueOrdered(packed, null, length);
+    } else if (_pending[key] != -1) {
+      _pending[key] = packed;
+      ++_coalesced;
+    } else {
+      _pending[key] = packed;
+      _pendingSince[key] = System.nanoTime();
+      _continuousKeys[(_continuousHead + _continuousSize) % KEY_COUNT] = key;
+      ++_continuousSize;
+      _backlogBytes += length;
+      _maxBacklog = Math.max(_maxBacklog, backlog());
+    }
+  }
+  
+  /**
+   * @return the coalescing key for a continuous message, or -1 if the
+   *         message must be sent in order
+   */
+  private static int continuousKey(int status, int data1) {
+    final int channel = status & 0x0F;
+    switch (status & 0xF0) {
+      case ShortMessage.CONTROL_CHANGE:
+        if (data1 == 0 || data1 == 32                // bank select
+            || data1 == 6 || data1 == 38             // data entry
+            || (64 <= data1 && data1 <= 69)          // switches
+            || (96 <= data1 && data1 <= 101)         // (N)RPN
+            || data1 >= 120)                         // channel mode
+          return -1;
+        return channel*128 + data1;
+      case ShortMessage.PITCH_BEND:
+        return PITCH_BEND_KEY + channel;
+      case ShortMessage.CHANNEL_PRESSURE:
+        return PRESSURE_KEY + channel;
+      default:
+        return -1;
+    }
+  }
+  
+  private void enqueueOrdered(int packed, MidiMessage longMessage, int length) {
+    if (_orderedSize == _ordered.length) {
+      final int capacity = _ordered.length * 2;
+      final int[] ordered = new int[capacity];
+      final MidiMessage[] orderedLong = new MidiMessage[capacity];
+      for (int i = 0; i < _orderedSize; ++i) {
+        ordered[i] = _ordered[(_orderedHead + i) % _ordered.length];
+        orderedLong[i] = _orderedLong[(_orderedHead + i) % _ordered.length];
+      }
+      _ordered = ordered;
+      _orderedLong = orderedLong;
+      _orderedHead = 0;
+    }
+    
+    final int index = (_orderedHead + _orderedSize) % _ordered.length;
+    _ordered[index] = packed;
+    _orderedLong[index] = longMessage;
+    ++_orderedSize;
+    _backlogBytes += length;
+    _maxBacklog = Math.max(_maxBacklog, backlog());
+  }
+  
+  /**
+   * Sends everything that fits on the wire by <tt>now</tt>.  Called with
+   * the lock held.
+   */
+  private void drain(long now) {
+    while (backlog() > 0 && _wireFreeAt - now <= LEAD_NANOS) {
+      final boolean continuousFirst = _continuousSize > 0 && (_orderedSize == 0
+          || now - _pendingSince[_continuousKeys[_continuousHead]] > MAX_CONTINUOUS_DELAY_NANOS);
+      
+      if (continuousFirst) {
+        final int key = _continuousKeys[_continuousHead];
+        _continuousHead = (_continuousHead+1) % KEY_COUNT;
+        --_continuousSize;
+        final int packed = _pending[key];
+        _pending[key] = -1;
+        transmit(packed, null, now);
+      } else {
+        final int packed = _ordered[_orderedHead];
+        final MidiMessage longMessage = _orderedLong[_orderedHead];
+        _orderedLong[_orderedHead] = null;
+        _orderedHead = (_orderedHead+1) % _ordered.length;
+        --_orderedSize;
+        transmit(packed, longMessage, now);
+      }
+    }
+  }
+  
+  private void transmit(int packed, MidiMessage longMessage, long now) {
+    final int length = longMessage == null ? packed >>> 24 : longMessage.getLength();
+    _backlogBytes -= length;
+    _bytesSent += length;
+    _wireFreeAt = Math.max(_wireFreeAt, now) + length * _nanosPerByte;
+    
+    try {
+      if (longMessage != null) {
+        _receiver.send(longMessage, -1);
+      } else {
+        _receiver.send(_messagePool.encode(_receiver, packed & 0xFF, (packed >>> 8) & 0x7F, (packed >>> 16) & 0x7F), -1);
+      }
+    } catch (InvalidMidiDataException e) {
+      LOG.error("Error sending scheduled message", e);
+    }
+  }
+  
+  private int backlog() {
+    return _orderedSize + _continuousSize;
+  }
+  
+  private void run() {
+    _lock.lock();
+    try {
+      while (_running) {
+        final long now = System.nanoTime();
+        drain(now);
+        try {
+          if (backlog() == 0)
+            _wakeup.await();
+          else
+            _wakeup.awaitNanos(Math.max(_wireFreeAt - LEAD_NANOS - now, 100000L));
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return the number of messages waiting to be sent
+   */
+  public int getBacklog() {
+    _lock.lock();
+    try {
+      return backlog();
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return the number of bytes waiting to be sent
+   */
+  public int getBacklogBytes() {
+    _lock.lock();
+    try {
+      return _backlogBytes;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return the largest number of messages that have been waiting at once
+   */
+  public int getMaxBacklog() {
+    _lock.lock();
+    try {
+      return _maxBacklog;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return how long until everything handed to the device is on the wire
+   */
+  public long getWireDelay(TimeUnit unit) {
+    _lock.lock();
+    try {
+      return unit.convert(Math.max(0, _wireFreeAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return the total number of bytes sent to the port
+   */
+  public long getBytesSent() {
+    _lock.lock();
+    try {
+      return _bytesSent;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * @return the number of continuous controller values replaced by newer
+   *         ones before being sent
+   */
+  public long getCoalescedCount() {
+    _lock.lock();
+    try {
+      return _coalesced;
+    } finally {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Stops the scheduler.  Queued note offs, sustain pedal releases and
+   * channel mode messages are sent right away, so no notes are left
+   * sounding; anything else still queued is discarded.  The device receiver
+   * is not closed.
+   */
+  public void shutdown() {
+    _lock.lock();
+    try {
+      _running = false;
+      final long now = System.nanoTime();
+      while (_orderedSize > 0) {
+        final int packed = _ordered[_orderedHead];
+        final MidiMessage longMessage = _orderedLong[_orderedHead];
+        _orderedLong[_orderedHead] = null;
+        _orderedHead = (_orderedHead+1) % _ordered.length;
+        --_orderedSize;
+        if (longMessage == null && isRelease(packed))
+          transmit(packed, null, now);
+      }
+    } finally {
+      _lock.unlock();
+    }
+    _thread.interrupt();
+  }
+  
+  /**
+   * @param packed a packed short message
+   * @return whether the message stops notes from sounding
+   */
+  private static boolean isRelease(int packed) {
+    final int command = packed & 0xF0;
+    final int data1 = (packed >>> 8) & 0x7F;
+    final int data2 = (packed >>> 16) & 0x7F;
+    switch (command) {
+      case ShortMessage.NOTE_OFF:
+        return true;
+      case ShortMessage.NOTE_ON:
+        return data2 == 0;
+      case ShortMessage.CONTROL_CHANGE:
+        return (data1 == 64 && data2 < 64) || data1 >= 120;
+      default:
+        return false;
+    }
+  }
+  
+  @Override
+  public void close() {
+    shutdown();
+    _receiver.close();
+  }
+}
@@ -1,6 +1,7 @@
 package cadenza.control;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,6 +11,7 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 
@@ -17,52 +19,99 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cadenza.core.CadenzaData;
-import cadenza.core.ControlMapEntry;
 import cadenza.core.Cue;
 import cadenza.core.Keyboard;
 import cadenza.core.LocationNumber;
-import cadenza.core.NoteRange;
 import cadenza.core.Patch;
 import cadenza.core.PatchAssignment;
 import cadenza.core.PatchAssignment.Response;
 import cadenza.core.Song;
 import cadenza.core.Synthesizer;
+import cadenza.core.effects.ControlEffect;
 import cadenza.core.effects.Effect;
+import cadenza.core.effects.EffectChain;
 import cadenza.core.patchusage.PatchUsage;
 import cadenza.core.trigger.Trigger;
-import cadenza.delegate.PatchChangeDelegate;
+import cadenza.core.trigger.TriggerIndex;
+import cadenza.core.trigger.actions.TriggerAction;
 import cadenza.gui.CadenzaFrame;
 import cadenza.gui.EffectMonitor;
 
 import common.midi.MidiUtilities;
-import common.tuple.Pair;
 
 public final class PerformanceController extends CadenzaController {
   private static final Logger LOG = LogManager.getLogger(PerformanceController.class);
   
   private final CadenzaFrame _cadenzaFrame;
   
+  /** The input keyboards.  The index into this array is the keyboard index */
+  private Keyboard[] _keyboards;
+  
   /**
-   *  Maps channel numbers to the keyboards they originate from<br>
-   *  Derivative of {@link CadenzaData#keyboardInputChannels}
+   *  Maps channel numbers to the index of the keyboard they originate from,
+   *  or -1 if no keyboard is on that channel<br>
+   *  Derivative of {@link CadenzaData#keyboards}
    */
-  private Map<Integer, Keyboard> _channelKeyboards;
+  private int[] _channelKeyboardIndexes;
   
   /**
    * Stores currently pressed notes.  Format:<br>
-   * (Keyboard, MidiNumber) -&gt; {(MidiChannel, MidiNumber)}+
+   * (KeyboardIndex, MidiNumber) -&gt; {(MidiChannel, MidiNumber)}+
+   */
+  private final HeldNotes _heldNotes;
+  
+  /**
+   * The output channels that have been sent the sustain pedal from each
+   * keyboard while it is down, bit N set for channel N, indexed by keyboard
    */
-  private Map<Pair<Keyboard, Integer>, Set<Pair<Integer, Integer>>> _currentNotes;
+  private int[] _sustainChannelMasks = new int[0];
   
-  /** The current assignments of patch usages to their output channels */
-  private Map<PatchUsage, Integer> _currentAssignments;
+  /** The last sustain pedal value from each keyboard, indexed by keyboard */
+  private int[] _sustainValues = new int[0];
+  
+  /**
+   * The current assignments of patch usages to their output channels.
+   * Replaced, never modified, so the scheduling threads can read it without
+   * locking.
+   */
+  private volatile Map<PatchUsage, Integer> _currentAssignments;
   
   /** The current list of triggers, which is the globals plus cue-specific */
   private List<Trigger> _currentTriggers;
   
+  /** The current triggers, indexed by the messages they respond to */
+  private TriggerIndex _triggerIndex = TriggerIndex.EMPTY;
+  
   /** The current list of global and cue-level effects */
   private List<Effect> _currentGlobalCueEffects;
   
+  /** The current list of global and cue-level control effects */
+  private List<ControlEffect> _currentGlobalCueControlEffects;
+  
+  /** The compiled note routing for the current cue */
+  private RoutingTable _routingTable = RoutingTable.EMPTY;
+  
+  /** Plans and caches the channel allocation for cue changes */
+  private final CueTransitionPlanner _planner;
+  
+  /**
+   * The patch known to be selected on each output channel, or <tt>null</tt>
+   * if lookahead is off and selected patches aren't tracked
+   */
+  private Patch[] _loadedPatches;
+  
+  /**
+   * The value last sent for each output control, or -1 if unknown, indexed
+   * [channel * 128 + control]
+   */
+  private final int[] _sentControls = new int[16*128];
+  
+  /** The number of upcoming cues whose patches are preloaded, 0 for none */
+  private int _lookaheadCues;
+  
+  /** The maximum number of channels per synthesizer preloaded per cue change */
+  private int _lookaheadBudget;
+  
   /** The current cue */
   private Cue _currentCue;
   
@@ -71,22 +120,192 @@ public final class PerformanceController extends CadenzaController {
   
   private boolean _shouldIgnoreOldPosition = false;
   
+  /** Records input to output latencies, when enabled */
+  private final LatencyRecorder _latencyRecorder = new LatencyRecorder();
+  
+  /**
+   * The event loop, or <tt>null</tt> if events are processed on the calling
+   * thread.  While it runs, the performance state belongs to the loop
+   * thread, which handles input without taking this controller's lock;
+   * otherwise the state is guarded by the lock.
+   */
+  private volatile PerformanceEventLoop _eventLoop;
+  
+  /**
+   * Guards the creation of the note dispatcher and trigger action runner,
+   * which are used from the clock and trigger threads
+   */
+  private final Object _helperLock = new Object();
+  
+  /** Sends scheduled notes, created on first use */
+  private volatile NoteDispatcher _noteDispatcher;
+  
+  /** Runs the actions of fired triggers, created on first use */
+  private volatile TriggerActionRunner _triggerActionRunner;
+  
+  /** The output device, if it can timestamp scheduled notes */
+  private MidiDevice _deviceClock;
+  
+  /**
+   * Creates a controller for the given data
+   * @param data the Cadenza data to perform
+   * @param cadenzaFrame the frame to notify of location changes, or
+   *                     <tt>null</tt> to run without a GUI (as in the
+   *                     benchmarks)
+   */
   public PerformanceController(CadenzaData data, CadenzaFrame cadenzaFrame) {
     super(data);
     _cadenzaFrame = cadenzaFrame;
     
-    _currentAssignments = new HashMap<>();
-    _currentNotes = new HashMap<>();
+    _currentAssignments = Collections.emptyMap();
+    _heldNotes = new HeldNotes(data.keyboards.size());
+    Arrays.fill(_sentControls, -1);
+    _planner = new CueTransitionPlanner(data);
+    _planner.rebuild();
     
     updateKeyboardChannelMap();
   }
   
+  /**
+   * Starts processing all performance events on a dedicated thread.  After
+   * this is called, the public entry points post their work to the event
+   * loop and return immediately.
+   * @param queueCapacity the capacity of the event queue
+   */
+  public synchronized void startEventLoop(int queueCapacity) {
+    if (_eventLoop == null)
+      _eventLoop = new PerformanceEventLoop(this, queueCapacity);
+  }
+  
+  /**
+   * Stops the event loop, if running.  Events are processed on the calling
+   * thread from then on.
+   */
+  public synchronized void shutdown() {
+    if (_eventLoop != null) {
+      _eventLoop.shutdown();
+      _eventLoop = null;
+    }
+    synchronized (_helperLock) {
+      if (_noteDispatcher != null) {
+        _noteDispatcher.shutdown();
+        _noteDispatcher = null;
+      }
+      if (_triggerActionRunner != null) {
+        _triggerActionRunner.shutdown();
+        _triggerActionRunner = null;
+      }
+    }
+  }
+  
+  /**
+   * @return the event loop, for reading its metrics, or <tt>null</tt> if
+   *         the event loop is not running
+   */
+  public PerformanceEventLoop getEventLoop() {
+    return _eventLoop;
+  }
+  
+  /**
+   * @return the latency instrumentation for this controller
+   */
+  public LatencyRecorder getLatencyRecorder() {
+    return _latencyRecorder;
+  }
+  
+  /**
+   * @return the event loop if the caller must post its work there, or
+   *         <tt>null</tt> if the work should be done directly because there
+   *         is no event loop or the caller is already on the loop thread
+   */
+  private PerformanceEventLoop loopToPostTo() {
+    final PerformanceEventLoop loop = _eventLoop;
+    return (loop == null || loop.isLoopThread()) ? null : loop;
+  }
+  
+  private boolean postTask(Runnable task) {
+    final PerformanceEventLoop loop = loopToPostTo();
+    if (loop == null)
+      return false;
+    
+    loop.post(PerformanceEventLoop.TASK, 0, task);
+    return true;
+  }
+  
+  /**
+   * Sets up patch lookahead.  When on, right after entering a cue the
+   * controller sends the patch changes for the next cue(s) to channels that
+   * the current cue isn't using, so that advancing doesn't have to wait for
+   * the synth to load the patch.  Selected patches are tracked per channel,
+   * and patch changes for a patch that is already selected are skipped.
+   * @param lookaheadCues the number of upcoming cues to preload, 0 for none
+   * @param budget the maximum number of channels per synthesizer to preload
+   *               on each cue change
+   */
+  public void setLookahead(int lookaheadCues, int budget) {
+    if (!postTask(() -> setLookahead_perform(lookaheadCues, budget)))
+      setLookahead_perform(lookaheadCues, budget);
+  }
+  
+  private synchronized void setLookahead_perform(int lookaheadCues, int budget) {
+    _lookaheadCues = lookaheadCues;
+    _lookaheadBudget = budget;
+    _loadedPatches = lookaheadCues > 0 ? new Patch[16] : null;
+  }
+  
+  /**
+   * Forgets which patches are selected on the output channels.  Call this
+   * when something other than this controller may have changed them.
+   */
+  public void invalidateLoadedPatches() {
+    if (postTask(this::invalidateLoadedPatches))
+      return;
+    
+    synchronized (this) {
+      if (_loadedPatches != null)
+        Arrays.fill(_loadedPatches, null);
+      Arrays.fill(_sentControls, -1);
+    }
+  }
+  
   public int getCurrentCueIndex() {
     return _position;
   }
   
+  /**
+   * @return the number of output notes currently sounding from held keys,
+   *         for diagnostics
+   */
+  public int getActiveVoiceCount() {
+    return _heldNotes.getActiveVoiceCount();
+  }
+  
+  /**
+   * Sets the output device to timestamp scheduled notes against.  Only set
+   * this if the device reports a microsecond position and the receiver given
+   * to {@link #setReceiver} sends to it directly.
+   * @param deviceClock the output device, or <tt>null</tt> to time scheduled
+   *                    notes on a dispatcher thread
+   */
+  public void setDeviceClock(MidiDevice deviceClock) {
+    synchronized (_helperLock) {
+      _deviceClock = deviceClock;
+      if (_noteDispatcher != null)
+        _noteDispatcher.setReceiver(getReceiver(), _deviceClock);
+    }
+  }
+  
   @Override
   public void notifyReceiver() {
+    if (postTask(this::notifyReceiver))
+      return;
+    
+    synchronized (_helperLock) {
+      if (_noteDispatcher != null)
+        _noteDispatcher.setReceiver(getReceiver(), _deviceClock);
+    }
+    
+    invalidateLoadedPatches();
     if (_currentCue != null) {
       try {
         updatePosition(-1, getData().cues.indexOf(_currentCue));
@@ -96,14 +315,38 @@ public final class PerformanceController extends CadenzaController {
     }
   }
   
-  public synchronized void updateKeyboardChannelMap() {
-    _channelKeyboards = new HashMap<>();
-    for (final Keyboard keyboard : getData().keyboards) {
-      _channelKeyboards.put(Integer.valueOf(keyboard.channel), keyboard);
+  public void updateKeyboardChannelMap() {
+    if (!postTask(this::updateKeyboardChannelMap_perform))
+      updateKeyboardChannelMap_perform();
+  }
+  
+  private synchronized void updateKeyboardChannelMap_perform() {
+    _keyboards = getData().keyboards.toArray(new Keyboard[getData().keyboards.size()]);
+    _heldNotes.resize(_keyboards.length);
+    _sustainChannelMasks = Arrays.copyOf(_sustainChannelMasks, _keyboards.length);
+    _sustainValues = Arrays.copyOf(_sustainValues, _keyboards.length);
+    
+    _channelKeyboardIndexes = new int[16];
+    Arrays.fill(_channelKeyboardIndexes, -1);
+    for (int i = 0; i < _keyboards.length; ++i) {
+      final int channel = _keyboards[i].channel;
+      if (0 <= channel && channel < 16)
+        _channelKeyboardIndexes[channel] = i;
     }
+    
+    if (_currentCue != null) {
+      flushControlChains();
+      _routingTable = RoutingTable.compile(_currentCue, _keyboards, _currentAssignments, _currentGlobalCueEffects,
+        _currentGlobalCueControlEffects, getData().globalControlMap);
+    }
+  }
+  
+  public void goTo(Song song, LocationNumber measure) {
+    if (!postTask(() -> goTo_perform(song, measure)))
+      goTo_perform(song, measure);
   }
   
-  public synchronized void goTo(Song song, LocationNumber measure) {
+  private synchronized void goTo_perform(Song song, LocationNumber measure) {
     final int oldIndex = _position;
     _position = Cue.findCueIndex(getData().cues, song, measure);
     
@@ -117,7 +360,12 @@ public final class PerformanceController extends CadenzaController {
     updatePerformanceLocation();
   }
   
-  public synchronized void goTo(Cue cue) {
+  public void goTo(Cue cue) {
+    if (!postTask(() -> goTo_perform(cue)))
+      goTo_perform(cue);
+  }
+  
+  private synchronized void goTo_perform(Cue cue) {
     final int oldIndex = _position;
     _position = getData().cues.indexOf(cue);
     
@@ -131,7 +379,12 @@ public final class PerformanceController extends CadenzaController {
     }
   }
   
-  public synchronized void goTo(int cueIndex) {
+  public void goTo(int cueIndex) {
+    if (!postTask(() -> goTo_perform(cueIndex)))
+      goTo_perform(cueIndex);
+  }
+  
+  private synchronized void goTo_perform(int cueIndex) {
     if (cueIndex != _position) {
       final int oldIndex = _position;
       _position = cueIndex;
@@ -147,15 +400,17 @@ public final class PerformanceController extends CadenzaController {
     }
   }
   
-  public synchronized void advance() {
-    advance(true);
+  public void advance() {
+    if (!postTask(() -> advance_perform(true)))
+      advance_perform(true);
   }
   
-  public synchronized void reverse() {
-    advance(false);
+  public void reverse() {
+    if (!postTask(() -> advance_perform(false)))
+      advance_perform(false);
   }
   
-  private void advance(boolean forward) {
+  private synchronized void advance_perform(boolean forward) {
     final int oldPosition = _position;
     int newPosition = oldPosition + (forward ? 1 : -1);
     
@@ -177,79 +432,206 @@ public final class PerformanceController extends CadenzaController {
     updatePerformanceLocation();
   }
   
-  private synchronized void sendCC(int cc, int value, int channel) {
+  private void sendCC(int cc, int value, int channel) {
     if (!receiverReady())
       return;
     
-    final ShortMessage sm = new ShortMessage();
     try {
-      sm.setMessage(ShortMessage.CONTROL_CHANGE, channel, cc, value);
-      getReceiver().send(sm, -1);
+      sendMessage(ShortMessage.CONTROL_CHANGE, channel, cc, value);
+      _sentControls[channel*128 + cc] = value;
     } catch (InvalidMidiDataException e) {
       LOG.error("Error sending CC value", e);
     }
   }
   
-  private synchronized void sendCC(int cc, int value, PatchUsage patch) {
+  private void sendCC(int cc, int value, PatchUsage patch) {
     sendCC(cc, value, _currentAssignments.get(patch).intValue());
   }
   
-  private synchronized void sendNoteOn(int midiNumber, int velocity, int channel) {
+  private void sendNoteOn(int midiNumber, int velocity, int channel) {
     if (!receiverReady())
       return;
     
-    final ShortMessage sm = new ShortMessage();
     try {
-      sm.setMessage(ShortMessage.NOTE_ON, channel, midiNumber, velocity);
-      getReceiver().send(sm, -1);
+      sendMessage(ShortMessage.NOTE_ON, channel, midiNumber, velocity);
     } catch (InvalidMidiDataException e) {
       LOG.error("Error sending note on", e);
     }
   }
   
-  public synchronized void sendNoteOn(int midiNumber, int velocity, PatchUsage patch) {
+  public void sendNoteOn(int midiNumber, int velocity, PatchUsage patch) {
+    final PerformanceEventLoop loop = loopToPostTo();
+    if (loop == null) {
+      synchronized (this) {
+        sendNoteOn_perform(midiNumber, velocity, patch);
+      }
+    } else {
+        loop.post(PerformanceEventLoop.NOTE_ON, midiNumber | (velocity << 8), patch);
+    }
+  }
+  
+  void sendNoteOn_perform(int midiNumber, int velocity, PatchUsage patch) {
     sendNoteOn(midiNumber, velocity, _currentAssignments.get(patch).intValue());
   }
   
-  private synchronized void sendNoteOff(int midiNumber, int channel) {
+  private void sendNoteOff(int midiNumber, int channel) {
     if (!receiverReady())
       return;
     
-    final ShortMessage sm = new ShortMessage();
     try {
-      sm.setMessage(ShortMessage.NOTE_OFF, channel, midiNumber, 0);
-      getReceiver().send(sm, -1);
+      sendMessage(ShortMessage.NOTE_OFF, channel, midiNumber, 0);
     } catch (InvalidMidiDataException e) {
       LOG.error("Error sending note off", e);
     }
   }
   
-  public synchronized void sendNoteOff(int midiNumber, PatchUsage patch) {
+  public void sendNoteOff(int midiNumber, PatchUsage patch) {
+    final PerformanceEventLoop loop = loopToPostTo();
+    if (loop == null) {
+      synchronized (this) {
+        sendNoteOff_perform(midiNumber, patch);
+      }
+    } else {
+        loop.post(PerformanceEventLoop.NOTE_OFF, midiNumber, patch);
+    }
+  }
+  
+  void sendNoteOff_perform(int midiNumber, PatchUsage patch) {
     // There is currently a bug where SequencerPatchUsage can get de-synced
     // and try to send a note off when the cue has been left.  This is due
     // to the metronome still triggering stuff somehow.  Catch this case and
     // just turn all notes off as a safety.
     final Integer channel = _currentAssignments.get(patch);
     if (channel == null)
-      allNotesOff();
+      allNotesOff_perform();
     else
       sendNoteOff(midiNumber, channel.intValue());
   }
   
+  /**
+   * Schedules a note on for the given patch usage at a future time, for notes
+   * played in time with the metronome (see
+   * {@link cadenza.core.metronome.ScheduledMetronomeListener}).  The channel
+   * is looked up now.
+   * @param midiNumber the note
+   * @param velocity the velocity
+   * @param patch the patch usage to play the note on
+   * @param nanos when to play the note, in System.nanoTime() terms
+   */
+  public void scheduleNoteOn(int midiNumber, int velocity, PatchUsage patch, long nanos) {
+    final Integer channel = _currentAssignments.get(patch);
+    if (channel != null)
+      noteDispatcher().schedule(ShortMessage.NOTE_ON, channel.intValue(), midiNumber, velocity, nanos, patch);
+  }
+  
+  /**
+   * Schedules a note off for the given patch usage at a future time.  The
+   * channel is looked up now.
+   * @param midiNumber the note
+   * @param patch the patch usage to stop the note on
+   * @param nanos when to stop the note, in System.nanoTime() terms
+   */
+  public void scheduleNoteOff(int midiNumber, PatchUsage patch, long nanos) {
+    // Same safety as sendNoteOff_perform.  This isn't synchronized, so the
+    // all notes off can be posted to the event loop without holding the lock
+    final Integer channel = _currentAssignments.get(patch);
+    if (channel == null)
+      allNotesOff();
+    else
+      noteDispatcher().schedule(ShortMessage.NOTE_OFF, channel.intValue(), midiNumber, 0, nanos, patch);
+  }
+  
+  /**
+   * Drops the scheduled note ons for the given patch usage, and sends its
+   * scheduled note offs immediately.  Call this when the patch usage stops
+   * playing.
+   * @param patch the patch usage
+   */
+  public void flushScheduledNotes(PatchUsage patch) {
+    final NoteDispatcher dispatcher = _noteDispatcher;
+    if (dispatcher != null)
+      dispatcher.flush(patch);
+  }
+  
+  /**
+   * Runs the actions of a fired trigger, in order, on the trigger action
+   * threads.  Waits in the actions don't hold up a thread, and are
+   * cancelled if the cue changes (other than by the trigger itself).
+   * @param actions the actions to run
+   */
+  public void runTriggerActions(List<TriggerAction> actions) {
+    TriggerActionRunner runner = _triggerActionRunner;
+    if (runner == null) {
+      synchronized (_helperLock) {
+        if (_triggerActionRunner == null)
+          _triggerActionRunner = new TriggerActionRunner(this);
+        runner = _triggerActionRunner;
+      }
+    }
+    runner.run(actions);
+  }
+  
+  /**
+   * Finishes the ramps of the current control chains, before the routing
+   * table is replaced.  The rest of a ramp is dropped and only its final
+   * value is sent, rather than a burst of every remaining step.
+   */
+  private void flushControlChains() {
+    final NoteDispatcher dispatcher = _noteDispatcher;
+    final long now = System.nanoTime();
+    for (int control = 0; control < 128; ++control) {
+      final int[] routes = _routingTable.getControlRoutes(control);
+      final ControlChain[] chains = _routingTable.getControlChains(control);
+      for (int i = 0; i < chains.length; ++i) {
+        final ControlChain chain = chains[i];
+        if (chain == null || chain.getValue() == -1)
+          continue;
+        
+        final int channel = RoutingTable.channelOfControl(routes[i]);
+        final int output = RoutingTable.controlOf(routes[i]);
+        if (chain.isRamping(now)) {
+          if (dispatcher != null)
+            dispatcher.cancel(chain);
+          sendCC(output, chain.getValue(), channel);
+        } else {
+          // the ramp's later steps were sent by the dispatcher
+          _sentControls[channel*128 + output] = chain.getValue();
+        }
+      }
+    }
+  }
+  
+  private NoteDispatcher noteDispatcher() {
+    NoteDispatcher dispatcher = _noteDispatcher;
+    if (dispatcher == null) {
+      synchronized (_helperLock) {
+        if (_noteDispatcher == null) {
+          _noteDispatcher = new NoteDispatcher();
+          _noteDispatcher.setReceiver(getReceiver(), _deviceClock);
+        }
+        dispatcher = _noteDispatcher;
+      }
+    }
+    return dispatcher;
+  }
+  
   /**
    * Notifies the controller that next time it goes to update the location,
    * it should ignore the old cue and reload everything from scratch.  Call
    * this after mucking with the cue list.
    */
   public void clearOldCue() {
+    if (postTask(this::clearOldCue))
+      return;
+    
     _shouldIgnoreOldPosition = true;
+    invalidateLoadedPatches();
   }
   
   /**
    * Send the necessary patch change events for changing from one cue to another.
-   * If a patch from the old cue is reused in the new cue on the same keyboard, then it gets assigned
-   * the same channel and no patch change is sent.  If there are more available channels than are needed,
-   * new ones are used as much as possible to avoid sending patch changes on in-use channels
+   * The channel allocation and patch changes come from the {@link CueTransitionPlanner},
+   * which has them precomputed when the cues are performed in order
    * @param oldPosition - the index of the old cue, or -1 during initialization
    * @param newPosition - the index of the new cue
    * @throws InvalidMidiDataException if any exception occurs setting messages (shouldn't happen)
@@ -261,68 +643,31 @@ public final class PerformanceController extends CadenzaController {
     
     final Cue oldCue = (_shouldIgnoreOldPosition || oldPosition == -1) ? null : getData().cues.get(oldPosition);
     _shouldIgnoreOldPosition = false;
+    final TriggerActionRunner runner = _triggerActionRunner;
+    if (runner != null)
+      runner.cueChanged();
     final Cue newCue = getData().cues.get(newPosition);
     
     if (oldCue != null) {
       oldCue.getAllAssignments().forEach(pa -> pa.cleanup(this));
     }
     
-    final Map<PatchUsage, Integer> oldAssignments = _currentAssignments;
-    final Map<PatchUsage, Integer> newAssignments = new HashMap<>();
-    
-    final List<PatchUsage> oldPatchUsages = oldCue == null ? Collections.emptyList()
-                                                           : oldCue.getPatchUsages();
-    final List<PatchUsage> newPatchUsages = newCue.getPatchUsages();
-    
-    final Map<Synthesizer, List<Integer>> availableChannels = new HashMap<>();
-    for (final Synthesizer synth : getData().synthesizers) {
-      // sort available channels by synth, and move currently assigned ones to
-      // the back of the list, so they get used last:
-      final List<Integer> synthChannels = new ArrayList<>(synth.getChannels());
-      for (final Integer i : oldAssignments.values())
-        if (synthChannels.remove(i))
-          synthChannels.add(i);
-      
-      availableChannels.put(synth, synthChannels);
-    }
-    
-    final List<PatchUsage> unassigned = new LinkedList<>();
-    
-    matchPatches:
-    for (final PatchUsage newUsage : newPatchUsages) {
-      final Patch patch = newUsage.patch;
-      for (final PatchUsage oldUsage : oldPatchUsages) {
-        if (patch == oldUsage.patch && oldAssignments.containsKey(oldUsage)) {
-          final Integer channel = oldAssignments.get(oldUsage);
-          LOG.info("Patch '" + patch.name + "' was already assigned, keeping on channel " + channel);
-          newAssignments.put(newUsage, channel);
-          availableChannels.get(patch.getSynthesizer()).remove(channel);
-          continue matchPatches;
-        }
-      }
-      
-      // none found, reassign
-      unassigned.add(newUsage);
-    }
+    final CueTransitionPlanner.Transition transition = _planner.getTransition(oldCue, newCue, _currentAssignments, _loadedPatches);
+    for (int i = 0; i < transition.patchChanges.length; ++i)
+      if (_loadedPatches == null || _loadedPatches[transition.patchChangeChannels[i]] != transition.patchChangePatches[i])
+        sendPatchChange(transition, i);
+    if (transition.error != null)
+      throw transition.error;
     
-    for (final PatchUsage pu : unassigned) {
-      final List<Integer> available = availableChannels.get(pu.patch.getSynthesizer());
-      if (available.isEmpty()) {
-        LOG.warn("Not enough channels assigned to "
-            + pu.patch.getSynthesizer().getName() + ", patch '" + pu.patch.name + "' not assigned.");
-        continue;
-      }
-      
-      final Integer channel = available.remove(0);
-      LOG.info("Patch '" + pu.patch.name + "' assigned to channel " + channel);
-      newAssignments.put(pu, channel);
-      PatchChangeDelegate.performPatchChange(getReceiver(), pu.patch, channel.intValue());
+    int volumeChannels = 0;
+    for (final int volume : transition.volumes) {
+      sendCC(7, volume & 0x7F, volume >>> 7);
+      volumeChannels |= 1 << (volume >>> 7);
     }
     
-    newPatchUsages.forEach(pu -> sendCC(7, pu.volume, newAssignments.get(pu).intValue()));
-    
-    _currentAssignments = newAssignments;
+    _currentAssignments = Collections.unmodifiableMap(transition.toAssignments);
     _currentCue = newCue;
+    _latencyRecorder.cueChanged(newCue);
     
     _currentCue.getAllAssignments().forEach(pa -> pa.prepare(this));
     
@@ -332,150 +677,253 @@ public final class PerformanceController extends CadenzaController {
     _currentTriggers.addAll(newCue.getTriggers());
     for (final Trigger t : _currentTriggers)
       t.reset();
+    _triggerIndex = TriggerIndex.compile(_currentTriggers);
     
     _currentGlobalCueEffects = new LinkedList<>();
     _currentGlobalCueEffects.addAll(_currentCue.effects);
     if (!_currentCue.disableGlobalEffects)
       _currentGlobalCueEffects.addAll(getData().globalEffects);
-    EffectMonitor.getInstance().setEffects(_currentGlobalCueEffects);
+    if (_cadenzaFrame != null)
+      EffectMonitor.getInstance().setEffects(_currentGlobalCueEffects);
+    
+    _currentGlobalCueControlEffects = new ArrayList<>(_currentCue.controlEffects);
+    if (!_currentCue.disableGlobalEffects)
+      _currentGlobalCueControlEffects.addAll(getData().globalControlEffects);
+    
+    flushControlChains();
+    _routingTable = RoutingTable.compile(_currentCue, _keyboards, _currentAssignments, _currentGlobalCueEffects,
+        _currentGlobalCueControlEffects, getData().globalControlMap);
+    
+    // bring the new channels up to the current controller positions
+    if (receiverReady()) {
+      for (final ShortMessage message : ControlReplay.compute(_routingTable, _keyboards, _sentControls, volumeChannels, System.nanoTime()))
+        getReceiver().send(message, -1);
+      
+      // arpeggiators and sequencers play without held notes to catch up on
+      for (int keyboardIndex = 0; keyboardIndex < _keyboards.length; ++keyboardIndex) {
+        final int scheduled = _routingTable.getScheduledChannelMask(keyboardIndex);
+        for (int channel = 0; channel < 16; ++channel)
+          if ((scheduled & (1 << channel)) != 0)
+            catchUpSustain(keyboardIndex, channel);
+      }
+    }
+    
+    preloadUpcomingPatches(newPosition);
   }
-
-  @Override
-  public synchronized void send(MidiMessage message) {
-    if (!receiverReady() || _currentCue == null)
+  
+  private void sendPatchChange(CueTransitionPlanner.Transition transition, int index) {
+    for (final MidiMessage message : transition.patchChanges[index])
+      getReceiver().send(message, -1);
+    
+    // a new patch may not keep the channel's controls
+    final int channel = transition.patchChangeChannels[index];
+    Arrays.fill(_sentControls, channel*128, (channel+1)*128, -1);
+    if (_loadedPatches != null)
+      _loadedPatches[transition.patchChangeChannels[index]] = transition.patchChangePatches[index];
+  }
+  
+  /**
+   * Sends the patch changes for the upcoming cues to channels that are idle
+   * until those cues are reached, within each synthesizer's budget.
+   * Channels still holding notes or sustain from earlier cues are skipped,
+   * and get their patch change when the cue that needs them is entered.
+   * @param position the index of the cue just entered
+   */
+  private void preloadUpcomingPatches(int position) {
+    if (_lookaheadCues == 0 || position < 0)
       return;
     
+    final List<Cue> cues = getData().cues;
+    final Set<Integer> busyChannels = new HashSet<>(_currentAssignments.values());
+    final Map<Synthesizer, Integer> preloaded = new HashMap<>();
+    
+    // channels still ringing from the cue just left aren't free either
+    int soundingChannels = 0;
+    for (int keyboardIndex = 0; keyboardIndex < _keyboards.length; ++keyboardIndex)
+      soundingChannels |= _heldNotes.getChannelMask(keyboardIndex) | _sustainChannelMasks[keyboardIndex];
+    
+    Cue fromCue = _currentCue;
+    Map<PatchUsage, Integer> fromAssignments = _currentAssignments;
+    for (int ahead = 1; ahead <= _lookaheadCues && position+ahead < cues.size(); ++ahead) {
+      final Cue upcoming = cues.get(position+ahead);
+      final CueTransitionPlanner.Transition transition = _planner.getTransition(fromCue, upcoming, fromAssignments, _loadedPatches);
+      
+      for (int i = 0; i < transition.patchChanges.length; ++i) {
+        final int channel = transition.patchChangeChannels[i];
+        final Patch patch = transition.patchChangePatches[i];
+        if (busyChannels.contains(Integer.valueOf(channel)) || (soundingChannels & (1 << channel)) != 0
+            || _loadedPatches[channel] == patch)
+          continue;
+        
+        final int used = preloaded.getOrDefault(patch.getSynthesizer(), Integer.valueOf(0)).intValue();
+        if (used >= _lookaheadBudget)
+          continue;
+        
+        LOG.info("Preloading patch '" + patch.name + "' on channel " + channel + " for cue " + (position+ahead));
+        sendPatchChange(transition, i);
+        preloaded.put(patch.getSynthesizer(), Integer.valueOf(used+1));
+      }
+      
+      busyChannels.addAll(transition.toAssignments.values());
+      fromCue = upcoming;
+      fromAssignments = transition.toAssignments;
+    }
+  }
+
+  @Override
+  public void send(MidiMessage message) {
+    send(message, System.nanoTime());
+  }
+  
+  /**
+   * Handles an input message
+   * @param message the input message
+   * @param receivedNanos when the message was received from the input
+   *                      device, in System.nanoTime() terms, for latency
+   *                      instrumentation
+   */
+  public void send(MidiMessage message, long receivedNanos) {
     if (!(message instanceof ShortMessage))
       return;
+    
+    final PerformanceEventLoop loop = loopToPostTo();
+    if (loop == null) {
+      synchronized (this) {
+        dispatch((ShortMessage) message, receivedNanos);
+      }
+    } else {
+        loop.postMessage((ShortMessage) message, receivedNanos);
+    }
+  }
   
-    send_perform((ShortMessage) message);
+  /**
+   * Handles an input message on the loop thread, or under this controller's
+   * lock when there is no event loop
+   */
+  void dispatch(ShortMessage sm, long receivedNanos) {
+    if (!receiverReady() || _currentCue == null)
+      return;
+    
+    if (_latencyRecorder.isEnabled()) {
+      final long routingNanos = System.nanoTime();
+      send_perform(sm);
+      _latencyRecorder.record(sm, receivedNanos, routingNanos, System.nanoTime());
+    } else {
+      send_perform(sm);
+    }
   }
   
   private void send_perform(ShortMessage sm) {
     final int channel = sm.getChannel();
     
     // find input keyboard:
-    final Keyboard keyboard = _channelKeyboards.get(Integer.valueOf(channel));
-    if (keyboard == null)
+    final int keyboardIndex = _channelKeyboardIndexes[channel];
+    if (keyboardIndex == -1)
       return;
     
-    _currentTriggers.forEach(t -> t.receive(sm,  this));
+    _triggerIndex.dispatch(sm, this);
     
     // send note info:
     noteorCC:
     if (MidiUtilities.isNoteOff(sm)) {
       final int midiNumber = sm.getData1();
-      _currentCue.getAllAssignments().forEach(pu -> pu.noteReleased(midiNumber));
+      for (final PatchAssignment pa : _routingTable.getAssignments())
+        pa.noteReleased(midiNumber);
       
-      final Pair<Keyboard, Integer> key = Pair.make(keyboard, Integer.valueOf(midiNumber));
-      final Set<Pair<Integer, Integer>> notes = _currentNotes.get(key);
-      if (notes != null) {
-        for (final Pair<Integer, Integer> entry : notes) {
-          final int outChannel = entry._1().intValue();
-          final int outNumber = entry._2().intValue();
-
-          sendNoteOff(outNumber, outChannel);
-        }
-        _currentNotes.remove(key);
+      final int count = _heldNotes.count(keyboardIndex, midiNumber);
+      for (int i = 0; i < count; ++i) {
+        final int voice = _heldNotes.get(keyboardIndex, midiNumber, i);
+        sendNoteOff(HeldNotes.midiNumberOf(voice), HeldNotes.channelOf(voice));
       }
+      _heldNotes.release(keyboardIndex, midiNumber);
     } else if (MidiUtilities.isControlChange(sm)) {
       final int control = sm.getData1();
       final int value = sm.getData2();
       
-      _currentCue.getAssignmentsByKeyboard(_channelKeyboards.get(Integer.valueOf(channel)))
-                 .forEach(pa -> pa.controlChanged(control, value));
+      for (final PatchAssignment pa : _routingTable.getAssignments(keyboardIndex))
+        pa.controlChanged(control, value);
       
       if (control == 64) {
-        // CC64 (damper) is speshul.  It needs to always be sent to all allocated channels.
-        // HOTFIX: send this to ALL channels for now.
-//        for (final Integer outChannel : _currentAssignments.values()) {
-//          sendCC(64, value, outChannel.intValue());
-//        }
-        for (int i = 0; i < 16; ++i) {
-          sendCC(64, value, i);
-        }
+        // CC64 (damper) is speshul.  It goes to every channel sounding notes
+        // from this keyboard, and stays with them until it is released.
+        sendSustain(keyboardIndex, value);
         break noteorCC;
       }
       
-      boolean foundOverride = false;
-      
-      // check cue overrides:
-      for (final ControlMapEntry entry : _currentCue.getControlMap()) {
-        if (entry.sourceCC == control) {
-          foundOverride = true;
-          for (final PatchUsage outPU : entry.destPatches) {
-            for (final Integer outControl : entry.destCCs) {
-              sendCC(outControl.intValue(), value, outPU);
-            }
-          }
-          
-          break;
-        }
-      }
-      
-      // check global overrides if no cue override found:
-      if (!foundOverride && !_currentCue.disableGlobalControlMap) {
-        for (final ControlMapEntry entry : getData().globalControlMap) {
-          if (entry.sourceCC == control) {
-            foundOverride = true;
-            for (final Integer outControl : entry.destCCs) {
-              for (final Integer outChannel : _currentAssignments.values()) {
-                sendCC(outControl.intValue(), value, outChannel.intValue());
-              }
-            }
-            break;
-          }
-        }
-      }
-      
-      // if STILL nothing hit, then send it to all channels:
-      if (!foundOverride) {
-        for (final Integer outChannel : _currentAssignments.values()) {
-          sendCC(control, value, outChannel.intValue());
-        }
+      final int[] routes = _routingTable.getControlRoutes(control);
+      final ControlChain[] chains = _routingTable.getControlChains(control);
+      for (int i = 0; i < routes.length; ++i) {
+        final ControlChain chain = chains.length == 0 ? null : chains[i];
+        final int output = chain == null ? value
+                                         : chain.receive(value, System.nanoTime(), chain.isTimed() ? noteDispatcher() : null);
+        if (output != -1)
+          sendCC(RoutingTable.controlOf(routes[i]), output, RoutingTable.channelOfControl(routes[i]));
       }
     } else if (MidiUtilities.isNoteOn(sm)) {
       final int inputMidiNumber = sm.getData1();
       final int inputVelocity = sm.getData2();
-      final Set<Pair<Integer, Integer>> noteEntry = new HashSet<>();
-      
-      for (final PatchAssignment assignment : _currentCue.patchAssignments) {
-        final NoteRange noteRange = assignment.getNoteRange();
-        if (noteRange.getKeyboard() == keyboard && noteRange.contains(inputMidiNumber)) {
-          final Response response = assignment.receive(inputMidiNumber, inputVelocity);
-          final PatchUsage pu = response.getPatchUsage();
-          final Integer outputChannel = _currentAssignments.get(pu);
-          if (outputChannel == null)
-            System.err.println("Output channel not found for patch usage " + pu.toString(false, false, false) + " on cue " + _currentCue.toString());
+      final long nanos = System.nanoTime();
+      for (final RoutingTable.Route route : _routingTable.getRoutes(keyboardIndex, inputMidiNumber)) {
+        final Response response = route.assignment.receive(inputMidiNumber, inputVelocity);
+        final int index = route.indexOf(response.getPatchUsage());
+        final int outputChannel = index == -1 ? -1 : route.getChannel(index);
+        if (outputChannel == -1)
+          continue;
+        
+        final EffectChain effects = route.getEffects(index);
+        for (final int[] note : response.getNotes()) {
+          final int midiNumber = note[0];
+          final int velocity = effects.process(channel, midiNumber, note[1], nanos);
           
-          final List<Effect> effects = new LinkedList<>();
-          effects.addAll(pu.effects);
-          effects.addAll(_currentGlobalCueEffects);
-          
-          for (final int[] note : response.getNotes()) {
-            final int midiNumber = note[0];
-            int velocity = note[1];
-            
-            for (final Effect effect : effects)
-              velocity = MidiUtilities.clamp(effect.process(midiNumber, velocity));
-            
-            sendNoteOn(midiNumber, velocity, outputChannel.intValue());
-            noteEntry.add(Pair.make(outputChannel, Integer.valueOf(midiNumber)));
-          }
+          catchUpSustain(keyboardIndex, outputChannel);
+          sendNoteOn(midiNumber, velocity, outputChannel);
+          if (!_heldNotes.add(keyboardIndex, inputMidiNumber, outputChannel, midiNumber))
+            LOG.warn("Too many notes held for input note " + inputMidiNumber + ", note off will not be sent");
         }
       }
-      
-      _currentNotes.put(Pair.make(keyboard, Integer.valueOf(inputMidiNumber)), noteEntry);
     } else {
       LOG.warn("Unknown MIDI message: " + MidiUtilities.toString(sm));
     }
   }
   
+  /**
+   * Sends a sustain pedal value from a keyboard.  While the pedal is down it
+   * goes to the channels holding notes from the keyboard, the channels of
+   * its arpeggiators and sequencers, plus any that have already received
+   * it; releasing the pedal goes to all of those channels.  Channels that
+   * receive notes from the keyboard while the pedal is down are caught up
+   * when they get their first note.
+   */
+  private void sendSustain(int keyboardIndex, int value) {
+    final int mask = _sustainChannelMasks[keyboardIndex]
+        | (value == 0 ? 0 : _heldNotes.getChannelMask(keyboardIndex) | _routingTable.getScheduledChannelMask(keyboardIndex));
+    for (int channel = 0; channel < 16; ++channel)
+      if ((mask & (1 << channel)) != 0)
+        sendCC(64, value, channel);
+    
+    _sustainChannelMasks[keyboardIndex] = value == 0 ? 0 : mask;
+    _sustainValues[keyboardIndex] = value;
+  }
+  
+  private void catchUpSustain(int keyboardIndex, int channel) {
+    final int value = _sustainValues[keyboardIndex];
+    if (value != 0 && (_sustainChannelMasks[keyboardIndex] & (1 << channel)) == 0) {
+      sendCC(64, value, channel);
+      _sustainChannelMasks[keyboardIndex] |= 1 << channel;
+    }
+  }
+  
   private void updatePerformanceLocation() {
-    _cadenzaFrame.notifyPerformLocationChanged(_position, true);
+    if (_cadenzaFrame != null)
+      _cadenzaFrame.notifyPerformLocationChanged(_position, true);
   }
 
-  public synchronized void restart() {
+  public void restart() {
+    if (!postTask(this::restart_perform))
+      restart_perform();
+  }
+  
+  private synchronized void restart_perform() {
     allNotesOff();
     _position = 0;
     try {
@@ -486,13 +934,19 @@ public final class PerformanceController extends CadenzaController {
     updatePerformanceLocation();
   }
   
-  public synchronized void allNotesOff() {
+  public void allNotesOff() {
+    if (!postTask(this::allNotesOff_perform))
+      allNotesOff_perform();
+  }
+  
+  private synchronized void allNotesOff_perform() {
     for (int ch = 0; ch < 16; ++ch) {
       allNotesOff(ch);
     }
+    _heldNotes.clear();
   }
   
-  private synchronized void allNotesOff(int channel) {
+  private void allNotesOff(int channel) {
     sendCC(120, 0, channel);
   }
 }
@@ -0,0 +1,293 @@
+package cadenza.control;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cadenza.core.patchusage.PatchUsage;
+
+/**
+ * <p>Single-writer event loop for the {@link PerformanceController}.  MIDI
+ * input, cue changes, and notes from metronome-driven PatchUsages are posted
+ * from any thread to a bounded lock-free queue, and are all processed in
+ * order by one dedicated performance thread.  Since that thread is the only
+ * one that touches the controller's performance state, a cue jump from a
+ * trigger thread can never hold a lock that incoming notes are waiting on.</p>
+ *
+ * <p>The queue is a fixed array of slots with a per-slot sequence number, so
+ * producers claim a slot with a single CAS and nothing is allocated to post
+ * a MIDI message or a note.  If the queue is ever full, producers yield until
+ * the performance thread catches up; this is counted, see
+ * {@link #getOverflowCount()}.</p>
+ *
+ * <p>Queue depth and latency (the time from an event being posted to the
+ * performance thread starting to process it) are tracked for diagnostics.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class PerformanceEventLoop {
+  private static final Logger LOG = LogManager.getLogger(PerformanceEventLoop.class);
+  
+  /** An input MIDI message, payload is the packed message */
+  static final int MESSAGE = 0;
+  /** A note on from a PatchUsage, payload is the packed note, ref is the PatchUsage */
+  static final int NOTE_ON = 1;
+  /** A note off from a PatchUsage, payload is the MIDI number, ref is the PatchUsage */
+  static final int NOTE_OFF = 2;
+  /** Any other work (cue changes, panic), ref is a Runnable */
+  static final int TASK = 3;
+  
+  /** Park timeout for the idle performance thread, as a safety net only */
+  private static final long IDLE_PARK_NANOS = 1000000L;
+  
+  private final PerformanceController _controller;
+  private final Thread _thread;
+  
+  private final int _mask;
+  private final AtomicLongArray _sequences;
+  private final int[] _types;
+  private final int[] _payloads;
+  private final Object[] _refs;
+  private final long[] _postedNanos;
+  
+  private final AtomicLong _tail = new AtomicLong();
+  private volatile long _head;
+  
+  private volatile boolean _running = true;
+  private volatile boolean _waiting = false;
+  
+  /** Reused to decode input messages; only touched by the performance thread */
+  private final ShortMessage _decoded = new ShortMessage();
+  
+  private final AtomicInteger _maxDepth = new AtomicInteger();
+  private volatile long _processed;
+  private volatile long _totalLatencyNanos;
+  private volatile long _maxLatencyNanos;
+  private final AtomicLong _overflows = new AtomicLong();
+  
+  /**
+   * Creates and starts the event loop
+   * @param controller the controller whose events are processed
+   * @param capacity the queue capacity, rounded up to a power of 2
+   */
+  PerformanceEventLoop(PerformanceController controller, int capacity) {
+    _controller = controller;
+    
+    final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    _mask = size - 1;
+    _sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; ++i)
+      _sequences.set(i, i);
+    _types = new int[size];
+    _payloads = new int[size];
+    _refs = new Object[size];
+    _postedNanos = new long[size];
+    
+    _thread = new Thread(this::run, "Cadenza Performance");
+    _thread.setDaemon(true);
+    _thread.setPriority(Thread.MAX_PRIORITY);
+    _thread.start();
+  }
+  
+  /**
+   * @return <tt>true</tt> if the calling thread is the performance thread.
+   *         Work done on the performance thread must be done directly rather
+   *         than posted, to preserve ordering.
+   */
+  boolean isLoopThread() {
+    return Thread.currentThread() == _thread;
+  }
+  
+  /**
+   * Posts an input MIDI message.  Only the status and data bytes are
+   * queued, so the caller may reuse the message.
+   * @param sm the input message
+   * @param receivedNanos when the message was received from the input
+   *                      device, in System.nanoTime() terms
+   */
+  void postMessage(ShortMessage sm, long receivedNanos) {
+    final int length = sm.getLength();
+    final int packed = sm.getStatus()
+                     | (length > 1 ? sm.getData1() << 8 : 0)
+                     | (length > 2 ? sm.getData2() << 16 : 0);
+    post(MESSAGE, packed, null, receivedNanos);
+  }
+  
+  /**
+   * Posts an event
+   * @param type the event type
+   * @param payload the primitive payload
+   * @param ref the object payload, or <tt>null</tt>
+   */
+  void post(int type, int payload, Object ref) {
+    post(type, payload, ref, System.nanoTime());
+  }
+  
+  private void post(int type, int payload, Object ref, long postedNanos) {
+    long pos = _tail.get();
+    int index;
+    while (true) {
+      index = (int) (pos & _mask);
+      final long diff = _sequences.get(index) - pos;
+      if (diff == 0) {
+        if (_tail.compareAndSet(pos, pos+1))
+          break;
+        pos = _tail.get();
+      } else if (diff < 0) {
+        // full, wait for the performance thread to catch up
+        _overflows.incrementAndGet();
+        if (!_running)
+          return;
+        LockSupport.unpark(_thread);
+        Thread.yield();
+        pos = _tail.get();
+      } else {
+        pos = _tail.get();
+      }
+    }
+    
+    _types[index] = type;
+    _payloads[index] = payload;
+    _refs[index] = ref;
+    _postedNanos[index] = postedNanos;
+    _sequences.set(index, pos+1);
+    
+    final int depth = (int) (pos+1 - _head);
+    if (depth > _maxDepth.get())
+      _maxDepth.accumulateAndGet(depth, Math::max);
+    
+    if (_waiting)
+      LockSupport.unpark(_thread);
+  }
+  
+  /**
+   * Stops the performance thread.  Events still in the queue are discarded.
+   */
+  void shutdown() {
+    _running = false;
+    LockSupport.unpark(_thread);
+  }
+  
+  private void run() {
+    while (_running) {
+      final long head = _head;
+      final int index = (int) (head & _mask);
+      if (_sequences.get(index) != head+1) {
+        _waiting = true;
+        if (_sequences.get(index) != head+1 && _running)
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        _waiting = false;
+        continue;
+      }
+      
+      final int type = _types[index];
+      final int payload = _payloads[index];
+      final Object ref = _refs[index];
+      final long postedNanos = _postedNanos[index];
+      final long latency = System.nanoTime() - postedNanos;
+      _refs[index] = null;
+      _sequences.set(index, head + _mask + 1);
+      _head = head+1;
+      
+      _processed = _processed + 1;
+      _totalLatencyNanos = _totalLatencyNanos + latency;
+      if (latency > _maxLatencyNanos)
+        _maxLatencyNanos = latency;
+      
+      try {
+        process(type, payload, ref, postedNanos);
+      } catch (Exception e) {
+        LOG.error("Error processing performance event", e);
+      }
+    }
+  }
+  
+  private void process(int type, int payload, Object ref, long postedNanos) throws InvalidMidiDataException {
+    switch (type) {
+      case MESSAGE:
+        final int status = payload & 0xFF;
+        if (status >= 0xF0)
+          _decoded.setMessage(status);
+        else
+          _decoded.setMessage(status, (payload >>> 8) & 0xFF, (payload >>> 16) & 0xFF);
+        _controller.dispatch(_decoded, postedNanos);
+        break;
+      case NOTE_ON:
+        _controller.sendNoteOn_perform(payload & 0xFF, payload >>> 8, (PatchUsage) ref);
+        break;
+      case NOTE_OFF:
+        _controller.sendNoteOff_perform(payload, (PatchUsage) ref);
+        break;
+      case TASK:
+        ((Runnable) ref).run();
+        break;
+      default:
+        LOG.warn("Unknown performance event type " + type);
+    }
+  }
+  
+  /**
+   * @return the number of events waiting to be processed
+   */
+  public int getQueueDepth() {
+    return (int) Math.max(0, _tail.get() - _head);
+  }
+  
+  /**
+   * @return the largest queue depth seen since the last reset
+   */
+  public int getMaxQueueDepth() {
+    return _maxDepth.get();
+  }
+  
+  /**
+   * @return the number of events processed since the last reset
+   */
+  public long getProcessedCount() {
+    return _processed;
+  }
+  
+  /**
+   * @return the average time from posting to processing, in nanoseconds
+   */
+  public long getAverageLatencyNanos() {
+    final long processed = _processed;
+    return processed == 0 ? 0 : _totalLatencyNanos / processed;
+  }
+  
+  /**
+   * @return the longest time from posting to processing since the last
+   *         reset, in nanoseconds
+   */
+  public long getMaxLatencyNanos() {
+    return _maxLatencyNanos;
+  }
+  
+  /**
+   * @return the number of times a producer found the queue full
+   */
+  public long getOverflowCount() {
+    return _overflows.get();
+  }
+  
+  /**
+   * Resets the max depth and latency statistics.  The reset is applied by
+   * the performance thread, so it is ordered with the events around it.
+   */
+  public void resetMetrics() {
+    post(TASK, 0, (Runnable) () -> {
+      _maxDepth.set(0);
+      _processed = 0;
+      _totalLatencyNanos = 0;
+      _maxLatencyNanos = 0;
+      _overflows.set(0);
+    });
+  }
+}
@@ -92,10 +92,8 @@ public class PreviewController extends CadenzaController {
       return;
     }
     
-    final ShortMessage sm = new ShortMessage();
     try {
-      sm.setMessage(ShortMessage.CONTROL_CHANGE, channel.intValue(), 7, volume);
-      getReceiver().send(sm, -1);
+      sendMessage(ShortMessage.CONTROL_CHANGE, channel.intValue(), 7, volume);
     } catch (InvalidMidiDataException e) {
       LOG.error("Error setting volume for preview", e);
     }
@@ -0,0 +1,398 @@
+package cadenza.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cadenza.core.ControlMapEntry;
+import cadenza.core.Cue;
+import cadenza.core.Keyboard;
+import cadenza.core.NoteRange;
+import cadenza.core.PatchAssignment;
+import cadenza.core.effects.ControlEffect;
+import cadenza.core.effects.Effect;
+import cadenza.core.effects.EffectChain;
+import cadenza.core.metronome.ScheduledMetronomeListener;
+import cadenza.core.patchmerge.PatchMerge;
+import cadenza.core.patchusage.PatchUsage;
+
+/**
+ * <p>Immutable note routing table for a single cue.  The table is compiled by
+ * the {@link PerformanceController} when a cue is loaded, and is indexed by
+ * input keyboard and MIDI note number so that dispatching a key press is a
+ * single array lookup.</p>
+ *
+ * <p>Each slot holds the {@link Route}s for the PatchAssignments whose range
+ * contains that note.  PatchMerges still decide at play time which of their
+ * PatchUsages receives the note, so every Route carries the output channel
+ * and the fused effect chain of each PatchUsage it can resolve to.</p>
+ *
+ * <p>The table also resolves the cue and global control maps into the exact
+ * (channel, control) pairs each input control number is sent to, each with
+ * the {@link ControlChain} of control effects for it, if any.</p>
+ *
+ * @author Matt Putnam
+ */
+final class RoutingTable {
+  private static final Logger LOG = LogManager.getLogger(RoutingTable.class);
+  
+  private static final Route[] NO_ROUTES = new Route[0];
+  private static final PatchAssignment[] NO_ASSIGNMENTS = new PatchAssignment[0];
+  private static final int[] NO_CONTROL_ROUTES = new int[0];
+  private static final ControlChain[] NO_CONTROL_CHAINS = new ControlChain[0];
+  
+  /** An empty table, used before the first cue is loaded */
+  static final RoutingTable EMPTY = new RoutingTable(new Route[0][], NO_ASSIGNMENTS, new PatchAssignment[0][],
+      new int[0], new int[0][], new ControlChain[0][]);
+  
+  /**
+   * The routing information for one top-level PatchAssignment: the
+   * PatchUsages it can resolve to, and for each one its output channel and
+   * full effect chain (PatchUsage effects, then cue and global effects).
+   *
+   * @author Matt Putnam
+   */
+  static final class Route {
+    final PatchAssignment assignment;
+    
+    private final PatchUsage[] _usages;
+    private final int[] _channels;
+    private final EffectChain[] _effects;
+    
+    private Route(PatchAssignment assignment, PatchUsage[] usages, int[] channels, EffectChain[] effects) {
+      this.assignment = assignment;
+      _usages = usages;
+      _channels = channels;
+      _effects = effects;
+    }
+    
+    /**
+     * Finds the index of the given PatchUsage within this route.  Uses
+     * identity comparison, since PatchUsages override equals().
+     * @param patchUsage the PatchUsage returned from the assignment
+     * @return the index of the PatchUsage, or -1 if not found
+     */
+    int indexOf(PatchUsage patchUsage) {
+      for (int i = 0; i < _usages.length; ++i)
+        if (_usages[i] == patchUsage)
+          return i;
+      return -1;
+    }
+    
+    /**
+     * @param index the index of the PatchUsage, from {@link #indexOf(PatchUsage)}
+     * @return the output channel, or -1 if the PatchUsage was not assigned one
+     */
+    int getChannel(int index) {
+      return _channels[index];
+    }
+    
+    /**
+     * @param index the index of the PatchUsage, from {@link #indexOf(PatchUsage)}
+     * @return the effect chain to apply to notes from the PatchUsage
+     */
+    EffectChain getEffects(int index) {
+      return _effects[index];
+    }
+  }
+  
+  /** Routes, indexed by [keyboard index * 128 + MIDI number] */
+  private final Route[][] _routes;
+  
+  /** All top-level assignments in the cue */
+  private final PatchAssignment[] _assignments;
+  
+  /** Top-level assignments, indexed by keyboard index */
+  private final PatchAssignment[][] _keyboardAssignments;
+  
+  /**
+   * The output channels of the metronome-driven PatchUsages on each
+   * keyboard, bit N set for channel N, indexed by keyboard index
+   */
+  private final int[] _scheduledChannelMasks;
+  
+  /** Output controls, packed by {@link #packControl(int, int)}, indexed by input control number */
+  private final int[][] _controlRoutes;
+  
+  /** The control chain of each output control, or null for none, parallel to _controlRoutes */
+  private final ControlChain[][] _controlChains;
+  
+  private RoutingTable(Route[][] routes, PatchAssignment[] assignments, PatchAssignment[][] keyboardAssignments,
+      int[] scheduledChannelMasks, int[][] controlRoutes, ControlChain[][] controlChains) {
+    _routes = routes;
+    _assignments = assignments;
+    _keyboardAssignments = keyboardAssignments;
+    _scheduledChannelMasks = scheduledChannelMasks;
+    _controlRoutes = controlRoutes;
+    _controlChains = controlChains;
+  }
+  
+  /**
+   * Packs an output control into a single int
+   * @param channel the output channel, 0-15
+   * @param control the output control number, 0-127
+   * @return the packed control
+   */
+  static int packControl(int channel, int control) {
+    return (channel << 7) | control;
+  }
+  
+  /**
+   * @param packed a packed output control
+   * @return the output channel
+   */
+  static int channelOfControl(int packed) {
+    return packed >>> 7;
+  }
+  
+  /**
+   * @param packed a packed output control
+   * @return the output control number
+   */
+  static int controlOf(int packed) {
+    return packed & 0x7F;
+  }
+  
+  /**
+   * Compiles the routing table for a cue
+   * @param cue the cue to compile
+   * @param keyboards the input keyboards; the index into this array is the
+   *                  keyboard index used for lookups
+   * @param channels the output channel assignments of the cue's PatchUsages
+   * @param globalCueEffects the cue and global effects, applied after each
+   *                         PatchUsage's own effects
+   * @param globalCueControlEffects the cue and global control effects,
+   *                                applied after each PatchUsage's own
+   * @param globalControlMap the global control map
+   * @return the compiled routing table
+   */
+  static RoutingTable compile(Cue cue, Keyboard[] keyboards, Map<PatchUsage, Integer> channels,
+      List<Effect> globalCueEffects, List<ControlEffect> globalCueControlEffects,
+      List<ControlMapEntry> globalControlMap) {
+    final List<Route> routes = new ArrayList<>(cue.patchAssignments.size());
+    final Map<List<Effect>, EffectChain> chains = new HashMap<>();
+    for (final PatchAssignment assignment : cue.patchAssignments)
+      routes.add(buildRoute(assignment, channels, globalCueEffects, chains));
+    
+    final Route[][] table = new Route[keyboards.length * 128][];
+    final PatchAssignment[][] keyboardAssignments = new PatchAssignment[keyboards.length][];
+    final int[] scheduledChannelMasks = new int[keyboards.length];
+    for (int k = 0; k < keyboards.length; ++k) {
+      final List<PatchAssignment> forKeyboard = new ArrayList<>();
+      for (final Route route : routes) {
+        if (route.assignment.getNoteRange().getKeyboard() == keyboards[k]) {
+          forKeyboard.add(route.assignment);
+          for (int i = 0; i < route._usages.length; ++i)
+            if (route._usages[i] instanceof ScheduledMetronomeListener && route._channels[i] != -1)
+              scheduledChannelMasks[k] |= 1 << route._channels[i];
+        }
+      }
+      keyboardAssignments[k] = forKeyboard.toArray(NO_ASSIGNMENTS);
+      
+      for (int midiNumber = 0; midiNumber < 128; ++midiNumber) {
+        final List<Route> slot = new ArrayList<>(2);
+        for (final Route route : routes) {
+          final NoteRange noteRange = route.assignment.getNoteRange();
+          if (noteRange.getKeyboard() == keyboards[k] && noteRange.contains(midiNumber))
+            slot.add(route);
+        }
+        table[k*128 + midiNumber] = slot.isEmpty() ? NO_ROUTES : slot.toArray(NO_ROUTES);
+      }
+    }
+    
+    final int[][] controlRoutes = compileControlRoutes(cue, channels, globalControlMap);
+    return new RoutingTable(table, cue.patchAssignments.toArray(NO_ASSIGNMENTS), keyboardAssignments,
+        scheduledChannelMasks, controlRoutes, compileControlChains(controlRoutes, channels, globalCueControlEffects));
+  }
+  
+  /**
+   * Resolves the control maps.  The first cue entry for a control wins, then
+   * the first global entry (unless the cue disables them), and a control
+   * with no entry is passed through unchanged.  Global entries and
+   * pass-through go to every assigned channel.  Duplicate (channel, control)
+   * pairs are removed, since several PatchUsages can share a channel.
+   */
+  private static int[][] compileControlRoutes(Cue cue, Map<PatchUsage, Integer> channels,
+      List<ControlMapEntry> globalControlMap) {
+    final Set<Integer> allChannels = new TreeSet<>(channels.values());
+    final List<ControlMapEntry> cueControlMap = cue.getControlMap();
+    
+    final int[][] result = new int[128][];
+    for (int control = 0; control < 128; ++control) {
+      final Set<Integer> packed = new LinkedHashSet<>();
+      
+      final ControlMapEntry cueEntry = findEntry(cueControlMap, control);
+      final ControlMapEntry globalEntry = (cueEntry != null || cue.disableGlobalControlMap) ? null
+                                        : findEntry(globalControlMap, control);
+      if (cueEntry != null) {
+        for (final PatchUsage destPatch : cueEntry.destPatches) {
+          final Collection<Integer> destChannels;
+          if (destPatch.equals(PatchUsage.ALL)) {
+            destChannels = allChannels;
+          } else {
+            final Integer channel = channels.get(destPatch);
+            destChannels = channel == null ? Collections.emptySet() : Collections.singleton(channel);
+          }
+          for (final Integer channel : destChannels)
+            for (final Integer destCC : cueEntry.destCCs)
+              packed.add(Integer.valueOf(packControl(channel.intValue(), destCC.intValue())));
+        }
+      } else if (globalEntry != null) {
+        for (final Integer destCC : globalEntry.destCCs)
+          for (final Integer channel : allChannels)
+            packed.add(Integer.valueOf(packControl(channel.intValue(), destCC.intValue())));
+      } else {
+        for (final Integer channel : allChannels)
+          packed.add(Integer.valueOf(packControl(channel.intValue(), control)));
+      }
+      
+      result[control] = packed.isEmpty() ? NO_CONTROL_ROUTES : packed.stream().mapToInt(Integer::intValue).toArray();
+    }
+    return result;
+  }
+  
+  /**
+   * Builds the control chain for each output control: the control effects
+   * for the input control of every PatchUsage on the output channel, then
+   * the cue and global ones.
+   */
+  private static ControlChain[][] compileControlChains(int[][] controlRoutes, Map<PatchUsage, Integer> channels,
+      List<ControlEffect> globalCueControlEffects) {
+    final ControlChain[][] result = new ControlChain[controlRoutes.length][];
+    for (int control = 0; control < controlRoutes.length; ++control) {
+      result[control] = NO_CONTROL_CHAINS;
+      for (int i = 0; i < controlRoutes[control].length; ++i) {
+        final int channel = channelOfControl(controlRoutes[control][i]);
+        final List<ControlEffect> chain = new ArrayList<>();
+        for (final Map.Entry<PatchUsage, Integer> entry : channels.entrySet())
+          if (entry.getValue().intValue() == channel)
+            addControlEffects(entry.getKey().controlEffects, control, chain);
+        addControlEffects(globalCueControlEffects, control, chain);
+        
+        if (!chain.isEmpty()) {
+          if (result[control] == NO_CONTROL_CHAINS)
+            result[control] = new ControlChain[controlRoutes[control].length];
+          result[control][i] = new ControlChain(channel, controlOf(controlRoutes[control][i]), chain);
+        }
+      }
+    }
+    return result;
+  }
+  
+  private static void addControlEffects(List<ControlEffect> effects, int control, List<ControlEffect> result) {
+    for (final ControlEffect effect : effects)
+      if (effect.getControl() == control)
+        result.add(effect);
+  }
+  
+  private static ControlMapEntry findEntry(List<ControlMapEntry> controlMap, int control) {
+    for (final ControlMapEntry entry : controlMap)
+      if (entry.sourceCC == control)
+        return entry;
+    return null;
+  }
+  
+  /**
+   * Builds the route for an assignment.  PatchUsages with the same effects
+   * share a chain, so the cue only builds one table for each.
+   */
+  private static Route buildRoute(PatchAssignment assignment, Map<PatchUsage, Integer> channels,
+      List<Effect> globalCueEffects, Map<List<Effect>, EffectChain> chains) {
+    final List<PatchUsage> usages = new ArrayList<>();
+    collectUsages(assignment, usages);
+    
+    final int size = usages.size();
+    final int[] routeChannels = new int[size];
+    final EffectChain[] effects = new EffectChain[size];
+    for (int i = 0; i < size; ++i) {
+      final PatchUsage pu = usages.get(i);
+      final Integer channel = channels.get(pu);
+      if (channel == null) {
+        LOG.warn("Output channel not found for patch usage " + pu.toString(false, false, false));
+        routeChannels[i] = -1;
+      } else {
+        routeChannels[i] = channel.intValue();
+      }
+      
+      final List<Effect> chain = new ArrayList<>(pu.effects.size() + globalCueEffects.size());
+      chain.addAll(pu.effects);
+      chain.addAll(globalCueEffects);
+      effects[i] = chains.computeIfAbsent(chain, EffectChain::new);
+    }
+    
+    return new Route(assignment, usages.toArray(new PatchUsage[size]), routeChannels, effects);
+  }
+  
+  private static void collectUsages(PatchAssignment assignment, List<PatchUsage> result) {
+    if (assignment instanceof PatchUsage)
+      result.add((PatchUsage) assignment);
+    else
+      ((PatchMerge) assignment).accessPatchAssignments().forEach(pa -> collectUsages(pa, result));
+  }
+  
+  /**
+   * Gets the routes for a key press
+   * @param keyboardIndex the index of the input keyboard
+   * @param midiNumber the input MIDI note number
+   * @return the routes for the note, possibly empty.  Do not modify.
+   */
+  Route[] getRoutes(int keyboardIndex, int midiNumber) {
+    final int index = keyboardIndex*128 + midiNumber;
+    return index < _routes.length ? _routes[index] : NO_ROUTES;
+  }
+  
+  /**
+   * Gets the outputs for an input control change
+   * @param control the input control number
+   * @return the output controls, packed by {@link #packControl(int, int)},
+   *         possibly empty.  Do not modify.
+   */
+  int[] getControlRoutes(int control) {
+    return control < _controlRoutes.length ? _controlRoutes[control] : NO_CONTROL_ROUTES;
+  }
+  
+  /**
+   * Gets the control chains for an input control change
+   * @param control the input control number
+   * @return the control chain of each output control from
+   *         {@link #getControlRoutes(int)}, null for those without one, or
+   *         an empty array if none have one.  Do not modify.
+   */
+  ControlChain[] getControlChains(int control) {
+    return control < _controlChains.length ? _controlChains[control] : NO_CONTROL_CHAINS;
+  }
+  
+  /**
+   * @return all of the top-level assignments in the cue.  Do not modify.
+   */
+  PatchAssignment[] getAssignments() {
+    return _assignments;
+  }
+  
+  /**
+   * @param keyboardIndex the index of the input keyboard
+   * @return the top-level assignments on the given keyboard.  Do not modify.
+   */
+  PatchAssignment[] getAssignments(int keyboardIndex) {
+    return keyboardIndex < _keyboardAssignments.length ? _keyboardAssignments[keyboardIndex] : NO_ASSIGNMENTS;
+  }
+  
+  /**
+   * @param keyboardIndex the index of the input keyboard
+   * @return the output channels of the keyboard's metronome-driven
+   *         PatchUsages, such as arpeggiators and sequencers, which play
+   *         without the keyboard's notes being held, bit N set for channel N
+   */
+  int getScheduledChannelMask(int keyboardIndex) {
+    return keyboardIndex < _scheduledChannelMasks.length ? _scheduledChannelMasks[keyboardIndex] : 0;
+  }
+}
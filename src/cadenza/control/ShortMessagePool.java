@@ -0,0 +1,122 @@
+package cadenza.control;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiDeviceReceiver;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * <p>A fixed ring of preallocated ShortMessages used to encode outgoing MIDI
+ * events without allocating.  Each message encoded into the ring takes the
+ * next slot and overwrites it.</p>
+ *
+ * <p>A slot is written again after {@link #SIZE}-1 further messages, so
+ * messages from the ring are only given to receivers that are done with
+ * them when <tt>send</tt> returns: the {@link OutputScheduler}, which copies
+ * the contents out, and hardware output ports, which encode the message
+ * right away.  Sequencers record the messages and software synthesizers
+ * can queue timestamped ones, so they and any other receivers are given a
+ * new message instead (see {@link #consumesImmediately(Receiver)}).</p>
+ *
+ * This class is threadsafe.
+ *
+ * @author Matt Putnam
+ */
+final class ShortMessagePool {
+  /** The number of slots in the ring, must be a power of 2 */
+  static final int SIZE = 256;
+  private static final int MASK = SIZE - 1;
+  
+  private final ShortMessage[] _slots;
+  private final AtomicInteger _next;
+  
+  ShortMessagePool() {
+    _slots = new ShortMessage[SIZE];
+    for (int i = 0; i < SIZE; ++i)
+      _slots[i] = new ShortMessage();
+    _next = new AtomicInteger();
+  }
+  
+  /**
+   * @param receiver a receiver
+   * @return whether the receiver is known to be done with a message when
+   *         <tt>send</tt> returns, so it can be given one from the ring
+   */
+  static boolean consumesImmediately(Receiver receiver) {
+    if (receiver instanceof OutputScheduler)
+      return true;
+    if (receiver instanceof MidiDeviceReceiver) {
+      final MidiDevice device = ((MidiDeviceReceiver) receiver).getMidiDevice();
+      return !(device instanceof Sequencer || device instanceof Synthesizer);
+    }
+    return false;
+  }
+  
+  /**
+   * Encodes a channel message for the given receiver, into the next slot of
+   * the ring if the receiver {@link #consumesImmediately(Receiver) consumes
+   * it immediately}, and otherwise into a new message it can keep
+   * @param receiver the receiver the message will be sent to
+   * @param command the command, e.g. {@link ShortMessage#NOTE_ON}
+   * @param channel the channel, 0-15
+   * @param data1 the first data byte
+   * @param data2 the second data byte
+   * @return the encoded message
+   * @throws InvalidMidiDataException if the values are not valid MIDI
+   */
+  ShortMessage encode(Receiver receiver, int command, int channel, int data1, int data2)
+      throws InvalidMidiDataException {
+    return consumesImmediately(receiver) ? encode(command, channel, data1, data2)
+                                         : new ShortMessage(command, channel, data1, data2);
+  }
+  
+  /**
+   * Encodes any short message for the given receiver, into the next slot of
+   * the ring if the receiver {@link #consumesImmediately(Receiver) consumes
+   * it immediately}, and otherwise into a new message it can keep
+   * @param receiver the receiver the message will be sent to
+   * @param status the status byte
+   * @param data1 the first data byte, ignored if the message has none
+   * @param data2 the second data byte, ignored if the message has none
+   * @return the encoded message
+   * @throws InvalidMidiDataException if the values are not valid MIDI
+   */
+  ShortMessage encode(Receiver receiver, int status, int data1, int data2) throws InvalidMidiDataException {
+    return consumesImmediately(receiver) ? encode(status, data1, data2) : new ShortMessage(status, data1, data2);
+  }
+  
+  /**
+   * Encodes a channel message into the next slot of the ring
+   * @param command the command, e.g. {@link ShortMessage#NOTE_ON}
+   * @param channel the channel, 0-15
+   * @param data1 the first data byte
+   * @param data2 the second data byte
+   * @return the encoded message
+   * @throws InvalidMidiDataException if the values are not valid MIDI
+   */
+  private ShortMessage encode(int command, int channel, int data1, int data2) throws InvalidMidiDataException {
+    final ShortMessage slot = _slots[_next.getAndIncrement() & MASK];
+    slot.setMessage(command, channel, data1, data2);
+    return slot;
+  }
+  
+  /**
+   * Encodes any short message, including system messages, into the next
+   * slot of the ring
+   * @param status the status byte
+   * @param data1 the first data byte, ignored if the message has none
+   * @param data2 the second data byte, ignored if the message has none
+   * @return the encoded message
+   * @throws InvalidMidiDataException if the values are not valid MIDI
+   */
+  private ShortMessage encode(int status, int data1, int data2) throws InvalidMidiDataException {
+    final ShortMessage slot = _slots[_next.getAndIncrement() & MASK];
+    slot.setMessage(status, data1, data2);
+    return slot;
+  }
+}
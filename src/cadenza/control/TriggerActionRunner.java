@@ -0,0 +1,195 @@
+package cadenza.control;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cadenza.core.metronome.Metronome;
+import cadenza.core.metronome.Metronome.Subdivision;
+import cadenza.core.metronome.MetronomeListener;
+import cadenza.core.trigger.actions.TriggerAction;
+import cadenza.core.trigger.actions.WaitAction;
+
+/**
+ * <p>Runs the actions of fired triggers on a small pool of threads.  A
+ * {@link WaitAction} doesn't block a thread: a millisecond wait is
+ * scheduled on the pool, and a beat wait listens to the metronome, and
+ * either way the rest of the actions continue on the pool when the wait is
+ * over.</p>
+ *
+ * <p>Waiting actions are cancelled when the cue changes (see
+ * {@link #cueChanged()}), except when the change was made by the waiting
+ * trigger's own actions, so that a trigger can advance and then wait to
+ * advance again.</p>
+ *
+ * @author Matt Putnam
+ */
+final class TriggerActionRunner {
+  private static final Logger LOG = LogManager.getLogger(TriggerActionRunner.class);
+
+  /** The number of threads running actions */
+  private static final int THREADS = 2;
+
+  private final PerformanceController _controller;
+  private final ScheduledThreadPoolExecutor _executor;
+
+  // Guarded by this
+  private final Set<Run> _waiting = new HashSet<>();
+  private long _cueChanges;
+
+  /**
+   * Creates a runner
+   * @param controller the controller to run actions against
+   */
+  TriggerActionRunner(PerformanceController controller) {
+    _controller = controller;
+    _executor = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+      final Thread thread = new Thread(runnable, "Cadenza Trigger Actions");
+      thread.setDaemon(true);
+      return thread;
+    });
+    _executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Starts running the given actions, in order
+   * @param actions the actions of the fired trigger
+   */
+  void run(List<TriggerAction> actions) {
+    _executor.execute(new Run(actions.toArray(new TriggerAction[actions.size()])));
+  }
+
+  /**
+   * Cancels the waiting actions, unless the waiting trigger made the change
+   */
+  synchronized void cueChanged() {
+    ++_cueChanges;
+    for (final Iterator<Run> iterator = _waiting.iterator(); iterator.hasNext(); ) {
+      final Run run = iterator.next();
+      if (run._ownsNextCueChange) {
+        run._ownsNextCueChange = false;
+      } else {
+        run.cancel();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Cancels all waiting actions and stops the runner
+   */
+  void shutdown() {
+    synchronized (this) {
+      _waiting.forEach(Run::cancel);
+      _waiting.clear();
+    }
+    _executor.shutdownNow();
+  }
+
+  /**
+   * One firing of a trigger, which runs until it finishes or reaches a wait
+   */
+  private final class Run implements Runnable, MetronomeListener {
+    private final TriggerAction[] _actions;
+    private int _next;
+
+    // Guarded by the runner
+    private boolean _ownsNextCueChange;
+    private ScheduledFuture<?> _delay;
+
+    // Written before listening to the metronome, then by the clock thread
+    private Subdivision _subdivision;
+    private int _clicksRemaining;
+
+    Run(TriggerAction[] actions) {
+      _actions = actions;
+    }
+
+    @Override
+    public void run() {
+      while (_next < _actions.length) {
+        final TriggerAction action = _actions[_next++];
+        if (action instanceof WaitAction) {
+          if (((WaitAction) action).getNum() <= 0)
+            continue;
+          startWaiting((WaitAction) action);
+          return;
+        }
+
+        final long cueChanges;
+        synchronized (TriggerActionRunner.this) {
+          cueChanges = _cueChanges;
+        }
+
+        try {
+          action.takeAction(_controller);
+        } catch (RuntimeException e) {
+          LOG.error("Error running trigger action " + action, e);
+        }
+
+        if (action.changesCue()) {
+          // If the change was posted to the event loop rather than made
+          // here, it will come while this is waiting, and shouldn't cancel it
+          synchronized (TriggerActionRunner.this) {
+            _ownsNextCueChange = _cueChanges == cueChanges;
+          }
+        }
+      }
+    }
+
+    private void startWaiting(WaitAction wait) {
+      if (!wait.isMillis())
+        Metronome.getInstance().start();
+
+      synchronized (TriggerActionRunner.this) {
+        if (_executor.isShutdown())
+          return;
+
+        _waiting.add(this);
+        if (wait.isMillis()) {
+          _delay = _executor.schedule(this::resume, wait.getNum(), TimeUnit.MILLISECONDS);
+        } else {
+          _subdivision = wait.getSubdivision();
+          _clicksRemaining = wait.getNum();
+          Metronome.getInstance().addMetronomeListener(this);
+        }
+      }
+    }
+
+    @Override
+    public void metronomeClicked(int subdivision) {
+      if (_subdivision.matches(subdivision) && --_clicksRemaining == 0) {
+        Metronome.getInstance().removeMetronomeListener(this);
+        try {
+          _executor.execute(this::resume);
+        } catch (RejectedExecutionException e) {
+          // shut down while waiting
+        }
+      }
+    }
+
+    private void resume() {
+      synchronized (TriggerActionRunner.this) {
+        if (!_waiting.remove(this))
+          return; // cancelled
+        _delay = null;
+        _ownsNextCueChange = false;
+      }
+      run();
+    }
+
+    private void cancel() {
+      if (_delay != null)
+        _delay.cancel(false);
+      Metronome.getInstance().removeMetronomeListener(this);
+    }
+  }
+}
@@ -14,6 +14,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cadenza.Version;
+import cadenza.core.effects.ControlEffect;
 import cadenza.core.effects.Effect;
 import cadenza.core.patchusage.PatchUsage;
 import cadenza.core.sequencer.Sequencer;
@@ -46,6 +47,9 @@ public class CadenzaData implements Serializable, HasTriggers, ControlMapProvide
   /** The global effects */
   public NotifyingList<Effect> globalEffects;
   
+  /** The global control effects */
+  public NotifyingList<ControlEffect> globalControlEffects;
+  
   /** All of the patches used in this Cadenza file */
   public NotifyingList<Patch> patches;
   
@@ -72,6 +76,7 @@ public class CadenzaData implements Serializable, HasTriggers, ControlMapProvide
     globalTriggers = new NotifyingList<>();
     globalControlMap = new NotifyingList<>();
     globalEffects = new NotifyingList<>();
+    globalControlEffects = new NotifyingList<>();
     patches = new NotifyingList<>();
     cues = new NotifyingList<>();
     keyboards = new NotifyingList<>();
@@ -81,6 +86,13 @@ public class CadenzaData implements Serializable, HasTriggers, ControlMapProvide
     savedOutputDeviceName = null;
   }
   
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // null in files saved before control effects
+    if (globalControlEffects == null)
+      globalControlEffects = new NotifyingList<>();
+  }
+  
   public static void writeToFile(String filename, CadenzaData data) {
     FileOutputStream fout;
     try {
@@ -69,6 +69,10 @@ public class Chord implements Serializable {
       _halfSteps = halfSteps;
     }
     
+    public int getHalfSteps() {
+      return _halfSteps;
+    }
+    
     @Override
     public String toString() {
       return _name + " (" + _halfSteps + ")";
@@ -141,6 +145,26 @@ public class Chord implements Serializable {
     return _abbreviation;
   }
   
+  /**
+   * Gets the pitch classes of the chord built on C, as a 12-bit mask with
+   * bit <tt>n</tt> set if the chord contains the pitch class <tt>n</tt>
+   * half steps above the root.  Shift the mask around 12 bits to build it
+   * on another root.  Notes an octave or more above the root (the 9th, say)
+   * fold down into the same octave.
+   * @return the pitch class mask of the chord
+   */
+  public int getPitchClasses() {
+    int result = 1;
+    for (final Interval interval : _intervals)
+      result |= 1 << (interval._halfSteps % 12);
+    return result;
+  }
+  
+  @Override
+  public String toString() {
+    return _name;
+  }
+  
   public List<Note> build(Note root) {
     final List<Note> result = new ArrayList<>(_intervals.size()+1);
     result.add(root);
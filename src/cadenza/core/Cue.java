@@ -1,5 +1,7 @@
 package cadenza.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -7,6 +9,7 @@ import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import cadenza.core.effects.ControlEffect;
 import cadenza.core.effects.Effect;
 import cadenza.core.patchmerge.PatchMerge;
 import cadenza.core.patchusage.PatchUsage;
@@ -48,7 +51,10 @@ public class Cue implements Comparable<Cue>, Serializable, ControlMapProvider, H
   /** The effects used */
   public List<Effect> effects;
   
-  /** Whether or not to disable the global effects for this cue */
+  /** The control effects used */
+  public List<ControlEffect> controlEffects;
+  
+  /** Whether or not to disable the global effects and control effects for this cue */
   public boolean disableGlobalEffects = false;
   
   /**
@@ -63,6 +69,14 @@ public class Cue implements Comparable<Cue>, Serializable, ControlMapProvider, H
     triggers = new ArrayList<>();
     _controlMapping = new ArrayList<>();
     effects = new ArrayList<>();
+    controlEffects = new ArrayList<>();
+  }
+  
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // null in cues saved before control effects
+    if (controlEffects == null)
+      controlEffects = new ArrayList<>();
   }
   
   /**
@@ -77,6 +91,7 @@ public class Cue implements Comparable<Cue>, Serializable, ControlMapProvider, H
     this.disableGlobalTriggers = other.disableGlobalTriggers;
     this._controlMapping = other._controlMapping;
     this.effects = other.effects;
+    this.controlEffects = other.controlEffects;
   }
   
   public List<PatchAssignment> getAssignmentsByKeyboard(Keyboard keyboard) {
@@ -168,6 +183,7 @@ public class Cue implements Comparable<Cue>, Serializable, ControlMapProvider, H
          this.disableGlobalTriggers == cue.disableGlobalTriggers &&
          this._controlMapping.equals(cue._controlMapping) &&
          this.effects.equals(cue.effects) &&
+         this.controlEffects.equals(cue.controlEffects) &&
          this.disableGlobalEffects == cue.disableGlobalEffects;
   }
   
@@ -180,6 +196,7 @@ public class Cue implements Comparable<Cue>, Serializable, ControlMapProvider, H
     hashCode =  2*hashCode + (disableGlobalTriggers ? 1 : 0);
     hashCode = 31*hashCode + _controlMapping.hashCode();
     hashCode = 31*hashCode + effects.hashCode();
+    hashCode = 31*hashCode + controlEffects.hashCode();
     hashCode =  2*hashCode + (disableGlobalEffects ? 1 : 0);
     
     return hashCode;
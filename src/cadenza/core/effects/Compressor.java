@@ -74,6 +74,7 @@ public class Compressor implements Effect {
           ? velocity
           : (int) (_threshold + ((velocity - _threshold) / _ratio));
     }
+    EffectChain.effectsChanged();
   }
   
   /**
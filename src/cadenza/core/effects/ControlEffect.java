@@ -0,0 +1,146 @@
+package cadenza.core.effects;
+
+import java.io.Serializable;
+
+import cadenza.core.ControlNames;
+
+/**
+ * <p>An effect on the values of an input control change, such as an
+ * expression or breath controller.  The value is shaped by a response
+ * <b>curve</b> and scaled into an output range, then optionally
+ * smoothed and thinned out before it is sent:</p>
+ * <ul>
+ *   <li><b>Smoothing</b> limits how fast the output can move, so a jump is
+ *       sent as a ramp taking up to the given time across the full
+ *       range.</li>
+ *   <li><b>Deadband</b> drops changes smaller than the given amount, other
+ *       than to the ends of the range.</li>
+ *   <li><b>Minimum interval</b> sends at most one value per interval,
+ *       keeping the latest.</li>
+ * </ul>
+ *
+ * <p>Control effects can be attached to a PatchUsage, a cue, or globally,
+ * and apply in that order.  The curves and ranges of a chain apply one
+ * after another; the smoothing, deadband and interval of the chain are the
+ * largest of any effect in it.</p>
+ *
+ * @author Matt Putnam
+ */
+public class ControlEffect implements Serializable {
+  private static final long serialVersionUID = 2L;
+
+  public static enum Curve {
+    LINEAR("Linear"),
+    EXPONENTIAL("Exponential"),
+    LOGARITHMIC("Logarithmic"),
+    S_CURVE("S-Curve");
+
+    private final String _displayName;
+
+    private Curve(String displayName) {
+      _displayName = displayName;
+    }
+
+    /**
+     * @param x an input value from 0 to 1
+     * @return the output value from 0 to 1
+     */
+    double apply(double x) {
+      switch (this) {
+        case EXPONENTIAL: return x * x;
+        case LOGARITHMIC: return Math.sqrt(x);
+        case S_CURVE:     return x * x * (3 - 2*x);
+        default:          return x;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return _displayName;
+    }
+  }
+
+  private final int _control;
+  private final Curve _curve;
+  private final int _low;
+  private final int _high;
+  private final int _smoothingMillis;
+  private final int _deadband;
+  private final int _minIntervalMillis;
+
+  /**
+   * Creates a control effect
+   * @param control the input control number the effect applies to
+   * @param curve the response curve
+   * @param low the output value for an input of 0
+   * @param high the output value for an input of 127; less than
+   *             <tt>low</tt> to invert the control
+   * @param smoothingMillis the time to ramp across the full range, or 0
+   *                        to send changes immediately
+   * @param deadband the smallest change to send, or 0 for every change
+   * @param minIntervalMillis the least time between values sent, or 0 for
+   *                          no limit
+   */
+  public ControlEffect(int control, Curve curve, int low, int high,
+      int smoothingMillis, int deadband, int minIntervalMillis) {
+    _control = control;
+    _curve = curve;
+    _low = low;
+    _high = high;
+    _smoothingMillis = smoothingMillis;
+    _deadband = deadband;
+    _minIntervalMillis = minIntervalMillis;
+  }
+
+  public int getControl() {
+    return _control;
+  }
+
+  public Curve getCurve() {
+    return _curve;
+  }
+
+  public int getLow() {
+    return _low;
+  }
+
+  public int getHigh() {
+    return _high;
+  }
+
+  public int getSmoothingMillis() {
+    return _smoothingMillis;
+  }
+
+  public int getDeadband() {
+    return _deadband;
+  }
+
+  public int getMinIntervalMillis() {
+    return _minIntervalMillis;
+  }
+
+  /**
+   * Applies the curve and range to a value
+   * @param value the input value, 0-127
+   * @return the output value, 0-127
+   */
+  public int process(int value) {
+    final double shaped = _curve.apply(value / 127.0);
+    return (int) Math.round(_low + shaped * (_high - _low));
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(_control).append(": ").append(ControlNames.getName(_control));
+    sb.append(" ").append(_curve).append(" ").append(_low).append("-").append(_high);
+    if (_smoothingMillis > 0)
+      sb.append(" smoothing=").append(_smoothingMillis).append("ms");
+    if (_deadband > 0)
+      sb.append(" deadband=").append(_deadband);
+    if (_minIntervalMillis > 0)
+      sb.append(" interval=").append(_minIntervalMillis).append("ms");
+    return sb.toString();
+  }
+}
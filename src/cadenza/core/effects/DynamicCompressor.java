@@ -0,0 +1,185 @@
+package cadenza.core.effects;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+
+import cadenza.gui.effects.view.DynamicCompressorView;
+import cadenza.gui.effects.view.EffectView;
+
+/**
+ * <p>A compressor that follows the level of the playing instead of each
+ * note.  For each input channel it keeps an envelope of the recent
+ * velocities, which rises toward a louder note over the <b>attack</b> time
+ * and falls toward a softer one over the <b>release</b> time.  The gain
+ * reduction for the envelope, by the <b>ratio</b> above the <b>threshold</b>
+ * and eased in over the <b>knee</b>, is taken off every note, and then the
+ * <b>makeup gain</b> is added back.</p>
+ *
+ * <p>So a passage played too loud as a whole is brought down, but the
+ * accents and shaping within it are kept.  With attack and release times
+ * of 0 it is the same as a {@link Compressor} with a soft knee.</p>
+ *
+ * @author Matt Putnam
+ */
+public class DynamicCompressor implements DynamicEffect {
+  private static final long serialVersionUID = 2L;
+  
+  /** Input channels tracked, enough for 8 16-channel ports */
+  private static final int CHANNELS = 128;
+  
+  private int _threshold;
+  private double _ratio;
+  private int _knee;
+  private int _makeupGain;
+  private int _attackMillis;
+  private int _releaseMillis;
+  
+  /** The envelope of each input channel, or -1 if it has played nothing */
+  private transient float[] _envelopes;
+  /** When each input channel last played */
+  private transient long[] _lastNanos;
+  
+  /**
+   * Creates a new DynamicCompressor
+   * @param threshold the threshold, between 0 and 127 (inclusive)
+   * @param ratio the ratio, between 1.0 and +Inf
+   * @param knee the width of the knee around the threshold, in velocity
+   * @param makeupGain the velocity added back after compressing
+   * @param attackMillis the time for the envelope to rise to a louder note
+   * @param releaseMillis the time for the envelope to fall to a softer note
+   */
+  public DynamicCompressor(int threshold, double ratio, int knee, int makeupGain,
+      int attackMillis, int releaseMillis) {
+    _threshold = threshold;
+    _ratio = ratio;
+    _knee = knee;
+    _makeupGain = makeupGain;
+    _attackMillis = attackMillis;
+    _releaseMillis = releaseMillis;
+    
+    initState();
+  }
+  
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initState();
+  }
+  
+  private void initState() {
+    _envelopes = new float[CHANNELS];
+    _lastNanos = new long[CHANNELS];
+    Arrays.fill(_envelopes, -1);
+  }
+  
+  public int getThreshold() {
+    return _threshold;
+  }
+  
+  public void setThreshold(int threshold) {
+    _threshold = threshold;
+  }
+  
+  public double getRatio() {
+    return _ratio;
+  }
+  
+  public void setRatio(double ratio) {
+    _ratio = ratio;
+  }
+  
+  public int getKnee() {
+    return _knee;
+  }
+  
+  public void setKnee(int knee) {
+    _knee = knee;
+  }
+  
+  public int getMakeupGain() {
+    return _makeupGain;
+  }
+  
+  public void setMakeupGain(int makeupGain) {
+    _makeupGain = makeupGain;
+  }
+  
+  public int getAttackMillis() {
+    return _attackMillis;
+  }
+  
+  public void setAttackMillis(int attackMillis) {
+    _attackMillis = attackMillis;
+  }
+  
+  public int getReleaseMillis() {
+    return _releaseMillis;
+  }
+  
+  public void setReleaseMillis(int releaseMillis) {
+    _releaseMillis = releaseMillis;
+  }
+  
+  /**
+   * Calculates the gain reduction for an envelope level
+   * @param level the envelope level
+   * @return the velocity to take off
+   */
+  private double reduction(double level) {
+    final double over = level - _threshold;
+    final double slope = 1.0 - 1.0/_ratio;
+    if (2*over <= -_knee)
+      return 0;
+    else if (2*over < _knee)
+      return slope * (over + _knee/2.0) * (over + _knee/2.0) / (2*_knee);
+    else
+      return slope * over;
+  }
+  
+  /**
+   * Gives the response to a single note with no history, which is the
+   * static curve of the compressor.  <tt>midiNumber</tt> is unused.
+   */
+  @Override
+  public int process(int midiNumber, int velocity) {
+    return (int) Math.round(velocity - reduction(velocity) + _makeupGain);
+  }
+  
+  @Override
+  public int process(int inputChannel, int midiNumber, int velocity, long nanos) {
+    final int channel = inputChannel % CHANNELS;
+    float envelope = _envelopes[channel];
+    if (envelope < 0) {
+      envelope = velocity;
+    } else {
+      final int time = velocity > envelope ? _attackMillis : _releaseMillis;
+      if (time <= 0) {
+        envelope = velocity;
+      } else {
+        final double elapsedMillis = (nanos - _lastNanos[channel]) / 1000000.0;
+        final double keep = Math.exp(-elapsedMillis / time);
+        envelope = (float) (velocity + (envelope - velocity) * keep);
+      }
+    }
+    _envelopes[channel] = envelope;
+    _lastNanos[channel] = nanos;
+    
+    return (int) Math.round(velocity - reduction(envelope) + _makeupGain);
+  }
+  
+  @Override
+  public Effect copy() {
+    return new DynamicCompressor(_threshold, _ratio, _knee, _makeupGain, _attackMillis, _releaseMillis);
+  }
+  
+  @Override
+  public EffectView createView() {
+    return new DynamicCompressorView(this);
+  }
+  
+  @Override
+  public String toString() {
+    return "Dynamic Compressor threshold="+_threshold + " ratio="+DECIMAL_FORMAT.format(_ratio) +
+        " attack="+_attackMillis + "ms release="+_releaseMillis + "ms";
+  }
+}
@@ -0,0 +1,23 @@
+package cadenza.core.effects;
+
+/**
+ * Interface for effects whose output depends on the notes played before,
+ * not just the note being processed.  These can't be fused into an
+ * {@link EffectChain}'s lookup table, so the chain calls them for every
+ * note.  {@link #process(int, int)} gives the effect's response with no
+ * history, for display.
+ *
+ * @author Matt Putnam
+ */
+public interface DynamicEffect extends Effect {
+  /**
+   * Takes a note played from an input channel and processes it to a new
+   * velocity, updating the effect's state
+   * @param inputChannel the channel of the keyboard the note was played on
+   * @param midiNumber the MIDI number of the note
+   * @param velocity the volume of the note
+   * @param nanos when the note was played, in System.nanoTime() terms
+   * @return the velocity post processing
+   */
+  public int process(int inputChannel, int midiNumber, int velocity, long nanos);
+}
@@ -0,0 +1,112 @@
+package cadenza.core.effects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.midi.MidiUtilities;
+
+/**
+ * <p>A chain of effects fused into lookup tables.  Most effects are a
+ * function of (MIDI number, velocity), so each run of them, clamping to the
+ * MIDI range after each effect, is worked out for every input when the
+ * chain is built, and processing a note through it is one array read.
+ * {@link DynamicEffect}s depend on what was played before, so they split
+ * the chain and are called for every note.</p>
+ *
+ * <p>Effects can be edited while they are in use.  Editing any effect
+ * calls {@link #effectsChanged()}, and every chain rebuilds its tables the
+ * next time it is used.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class EffectChain {
+  /** Incremented whenever any effect is edited, from the Swing thread */
+  private static volatile int _generation = 0;
+
+  /** The runs of static effects before, between and after the dynamic effects */
+  private final Effect[][] _segments;
+  private final DynamicEffect[] _dynamics;
+
+  // Only used by the thread processing notes
+  private final byte[][] _tables;
+  private int _builtGeneration;
+
+  /**
+   * Creates a chain and builds its tables
+   * @param effects the effects, in the order they are applied
+   */
+  public EffectChain(List<Effect> effects) {
+    final List<Effect[]> segments = new ArrayList<>();
+    final List<DynamicEffect> dynamics = new ArrayList<>();
+    List<Effect> segment = new ArrayList<>();
+    for (final Effect effect : effects) {
+      if (effect instanceof DynamicEffect) {
+        segments.add(segment.toArray(new Effect[segment.size()]));
+        dynamics.add((DynamicEffect) effect);
+        segment = new ArrayList<>();
+      } else {
+        segment.add(effect);
+      }
+    }
+    segments.add(segment.toArray(new Effect[segment.size()]));
+
+    _segments = segments.toArray(new Effect[segments.size()][]);
+    _dynamics = dynamics.toArray(new DynamicEffect[dynamics.size()]);
+    _tables = new byte[_segments.length][];
+    build();
+  }
+
+  /**
+   * Notifies all chains that an effect has been edited, so their tables
+   * need to be rebuilt
+   */
+  public static void effectsChanged() {
+    ++_generation;
+  }
+
+  private void build() {
+    _builtGeneration = _generation;
+
+    for (int i = 0; i < _segments.length; ++i) {
+      final Effect[] segment = _segments[i];
+      if (segment.length == 0)
+        continue;
+
+      final byte[] table = new byte[128*128];
+      for (int midiNumber = 0; midiNumber < 128; ++midiNumber) {
+        for (int velocity = 0; velocity < 128; ++velocity) {
+          int result = velocity;
+          for (final Effect effect : segment)
+            result = MidiUtilities.clamp(effect.process(midiNumber, result));
+          table[(midiNumber << 7) | velocity] = (byte) result;
+        }
+      }
+      _tables[i] = table;
+    }
+  }
+
+  private int lookup(int segment, int midiNumber, int velocity) {
+    final byte[] table = _tables[segment];
+    return table == null ? velocity : table[(midiNumber << 7) | velocity];
+  }
+
+  /**
+   * Processes a note through the chain
+   * @param inputChannel the channel of the keyboard the note was played on
+   * @param midiNumber the MIDI number of the note
+   * @param velocity the velocity of the note
+   * @param nanos when the note was played, in System.nanoTime() terms
+   * @return the velocity after every effect in the chain
+   */
+  public int process(int inputChannel, int midiNumber, int velocity, long nanos) {
+    if (_builtGeneration != _generation)
+      build();
+
+    int result = lookup(0, midiNumber, velocity);
+    for (int i = 0; i < _dynamics.length; ++i) {
+      result = MidiUtilities.clamp(_dynamics[i].process(inputChannel, midiNumber, result, nanos));
+      result = lookup(i+1, midiNumber, result);
+    }
+    return result;
+  }
+}
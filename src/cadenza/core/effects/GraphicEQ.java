@@ -16,6 +16,7 @@ public class GraphicEQ implements Effect {
   
   public void setLevel(int num, int level) {
     _levels[num] = level;
+    EffectChain.effectsChanged();
   }
   
   public int[] getLevels() {
@@ -24,6 +25,7 @@ public class GraphicEQ implements Effect {
   
   public void setLevels(int[] levels) {
     _levels = Arrays.copyOf(levels, 128);
+    EffectChain.effectsChanged();
   }
   
   @Override
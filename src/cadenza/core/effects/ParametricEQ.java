@@ -133,6 +133,7 @@ public class ParametricEQ implements Effect {
     for (int i = 0; i < 128; ++i) {
       _levels[i] = (int) Math.round(_fineLevels[i]);
     }
+    EffectChain.effectsChanged();
   }
   
   public double[] getFineLevels() {
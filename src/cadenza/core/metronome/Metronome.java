@@ -1,7 +1,16 @@
 package cadenza.core.metronome;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import cadenza.control.LatencyHistogram;
 
 /**
  * <p>Implementation of a simple metronome.</p>
@@ -15,13 +24,36 @@ import java.util.List;
  *   <li>0, 3, 6, and 9 &mdash; 4 subdivisions (16th notes)</li>
  * </ul>
  * 
+ * <p>Clicks are scheduled against absolute deadlines by a
+ * {@link MetronomeClock}, so the tempo doesn't drift no matter how long the
+ * metronome runs, and the BPM may be fractional.  How late each click was
+ * is recorded and can be read with {@link #getJitter()}.</p>
+ * 
+ * <p>Listeners are in one of two lanes.  Those added with
+ * {@link #addMetronomeListener(MetronomeListener)} are called on the clock
+ * thread, and must be quick, since every click waits for them.  Those
+ * added with {@link #addUIMetronomeListener(MetronomeListener)} are called
+ * on a separate thread, so a slow one can't hold up the clock.  UI
+ * listeners get coalesced updates: if they fall behind, they see the
+ * latest click and BPM rather than every one, but never miss a main
+ * beat.  The listener lists are copy-on-write, so adding or removing a
+ * listener during a click is safe.</p>
+ * 
+ * <p>A third kind of listener, the {@link ScheduledMetronomeListener}, is
+ * called on the clock thread one MIDI clock pulse ahead of each click with
+ * the time of the click, so it can schedule notes to play exactly on it.</p>
+ * 
+ * <p>The metronome can follow an external MIDI clock instead of its own
+ * tempo (see {@link ClockSource}).  Incoming Timing Clock messages are
+ * smoothed by a {@link MidiClockFollower}, and Start, Continue, Stop and
+ * Song Position Pointer control the transport.  Independently, the
+ * metronome can send MIDI clock to a receiver while it runs.</p>
+ * 
  * This class is fully threadsafe.
  * 
  * @author Matt Putnam
  */
 public class Metronome {
-  private static final int MILLIS_IN_MINUTE = 1000*60;
-  
   /**
    * Convenience for selecting and responding only to a desired subdivision
    * of the metronome.
@@ -64,43 +96,152 @@ public class Metronome {
       return subdivisionNumber % _twelfths == 0;
     }
     
+    /**
+     * @return the number of metronome clicks (twelfths of a beat) in one of
+     *         this subdivision
+     */
+    public int getTwelfths() {
+      return _twelfths;
+    }
+    
     @Override
     public String toString() {
       return _displayName;
     }
   }
   
+  /**
+   * Where the metronome gets its tempo from
+   * 
+   * @author Matt Putnam
+   */
+  public static enum ClockSource {
+    /** Free-run at the set BPM */
+    INTERNAL("Internal"),
+    /** Follow MIDI Timing Clock from the input device */
+    EXTERNAL("External MIDI Clock");
+    
+    private final String _displayName;
+    
+    private ClockSource(String displayName) {
+      _displayName = displayName;
+    }
+    
+    @Override
+    public String toString() {
+      return _displayName;
+    }
+  }
+  
+  private static final ShortMessage TIMING_CLOCK = systemMessage(ShortMessage.TIMING_CLOCK);
+  private static final ShortMessage START = systemMessage(ShortMessage.START);
+  private static final ShortMessage STOP = systemMessage(ShortMessage.STOP);
+  
+  /** MIDI clock pulses per 16th note, the unit of Song Position Pointer */
+  private static final int PULSES_PER_SIXTEENTH = MetronomeClock.PULSES_PER_BEAT / 4;
+  
+  private static ShortMessage systemMessage(int status) {
+    try {
+      return new ShortMessage(status);
+    } catch (InvalidMidiDataException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
   private static final Metronome INSTANCE = new Metronome();
   public static Metronome getInstance() {
     return INSTANCE;
   }
   
-  private volatile int _bpm;
+  private volatile double _bpm;
   private boolean _running;
-  private Thread _metronomeThread;
+  private MetronomeClock _clock;
+  
+  private ClockSource _clockSource = ClockSource.INTERNAL;
+  private final MidiClockFollower _follower = new MidiClockFollower();
   
-  private List<MetronomeListener> _listeners;
+  /** The last Song Position Pointer received, in pulses */
+  private long _songPosition;
+  
+  /** Where to send MIDI clock, or <tt>null</tt> to not send it */
+  private volatile Receiver _clockOutput;
+  
+  private static final int NONE = -1;
+  
+  /** Listeners called on the clock thread */
+  private final List<MetronomeListener> _listeners = new CopyOnWriteArrayList<>();
+  
+  /** Listeners told about clicks ahead of time, on the clock thread */
+  private final List<ScheduledMetronomeListener> _scheduledListeners = new CopyOnWriteArrayList<>();
+  
+  /** Listeners called on the UI lane */
+  private final List<MetronomeListener> _uiListeners = new CopyOnWriteArrayList<>();
+  
+  private final ExecutorService _uiExecutor;
+  
+  /** The click waiting to be sent to the UI lane, or {@link #NONE} */
+  private final AtomicInteger _pendingUIClick = new AtomicInteger(NONE);
+  
+  /** The BPM waiting to be sent to the UI lane, or {@link #NONE} */
+  private final AtomicInteger _pendingUIBPM = new AtomicInteger(NONE);
+  
+  /** How late each click was, in nanoseconds */
+  private final LatencyHistogram _jitter = new LatencyHistogram();
   
   private Metronome() {
     _bpm = 120;
     _running = false;
-    _listeners = new ArrayList<>();
+    _uiExecutor = Executors.newSingleThreadExecutor(r -> {
+      final Thread thread = new Thread(r, "Cadenza Metronome UI");
+      thread.setDaemon(true);
+      return thread;
+    });
   }
   
   /**
-   * Adds a listener to the metronome
+   * Adds a real-time listener to the metronome.  Its clicks are sent on the
+   * clock thread, so it must return quickly.
    * @param listener the listener to add
    */
-  public synchronized void addMetronomeListener(MetronomeListener listener) {
+  public void addMetronomeListener(MetronomeListener listener) {
     _listeners.add(listener);
   }
   
   /**
-   * Removes a listener from the metronome
+   * Adds a UI listener to the metronome.  All of its messages are sent on
+   * the UI lane, which is not the Swing thread.  Clicks and BPM changes
+   * are coalesced if it falls behind.
+   * @param listener the listener to add
+   */
+  public void addUIMetronomeListener(MetronomeListener listener) {
+    _uiListeners.add(listener);
+  }
+  
+  /**
+   * Adds a scheduled listener to the metronome.  It is called on the clock
+   * thread, so it must return quickly.
+   * @param listener the listener to add
+   */
+  public void addScheduledMetronomeListener(ScheduledMetronomeListener listener) {
+    _scheduledListeners.add(listener);
+  }
+  
+  /**
+   * Removes a scheduled listener from the metronome
+   * @param listener the listener to remove
+   */
+  public void removeScheduledMetronomeListener(ScheduledMetronomeListener listener) {
+    _scheduledListeners.remove(listener);
+  }
+  
+  /**
+   * Removes a listener from the metronome, from whichever lane it was
+   * added to
    * @param listener the listener to remove
    */
-  public synchronized void removeMetronomeListener(MetronomeListener listener) {
+  public void removeMetronomeListener(MetronomeListener listener) {
     _listeners.remove(listener);
+    _uiListeners.remove(listener);
   }
   
   /**
@@ -108,23 +249,157 @@ public class Metronome {
    * @param bpm the BPM to set
    */
   public synchronized void setBPM(int bpm) {
+    setBPM((double) bpm);
+  }
+  
+  /**
+   * Set the BPM to the given value, which need not be a whole number.  BPM
+   * must be 1 or greater.  Listeners are sent the rounded value.
+   * @param bpm the BPM to set
+   */
+  public synchronized void setBPM(double bpm) {
     if (bpm < 1) {
       throw new IllegalArgumentException("BPM must be 1 or greater");
     }
     
     if (bpm != _bpm) {
       _bpm = bpm;
-      _listeners.forEach(l -> l.bpmSet(_bpm));
+      if (_clock != null)
+        _clock.setBPM(bpm);
+      notifyBPM();
     }
   }
   
+  private void notifyBPM() {
+    final int rounded = getBPM();
+    _listeners.forEach(l -> l.bpmSet(rounded));
+    
+    if (_pendingUIBPM.getAndSet(rounded) == NONE)
+      _uiExecutor.execute(this::dispatchUIBPM);
+  }
+  
   /**
-   * @return the current BPM of the metronome
+   * @return the current BPM of the metronome, rounded to the nearest whole
+   *         number
    */
   public synchronized int getBPM() {
+    return (int) Math.round(_bpm);
+  }
+  
+  /**
+   * @return the current BPM of the metronome, which may be fractional
+   */
+  public synchronized double getExactBPM() {
     return _bpm;
   }
   
+  /**
+   * @return the lateness of the metronome's clicks, in nanoseconds.  This
+   *         is written by the metronome thread; read or reset it from
+   *         anywhere, but don't record to it.
+   */
+  public LatencyHistogram getJitter() {
+    return _jitter;
+  }
+  
+  /**
+   * Sets where the metronome gets its tempo.  If the metronome is running,
+   * it switches over immediately.
+   * @param clockSource the clock source
+   */
+  public synchronized void setClockSource(ClockSource clockSource) {
+    if (clockSource == _clockSource)
+      return;
+    
+    _clockSource = clockSource;
+    if (_running) {
+      _clock.stop();
+      startMetronome(0);
+    }
+  }
+  
+  /**
+   * @return where the metronome gets its tempo
+   */
+  public synchronized ClockSource getClockSource() {
+    return _clockSource;
+  }
+  
+  /**
+   * Sets the receiver to send MIDI clock to.  While the metronome runs, it
+   * sends Timing Clock at 24 per beat, and it sends Start and Stop when it
+   * starts and stops.
+   * @param receiver the receiver, or <tt>null</tt> to stop sending clock
+   */
+  public void setClockOutput(Receiver receiver) {
+    _clockOutput = receiver;
+  }
+  
+  /**
+   * @param sm a message from the input device
+   * @return <tt>true</tt> if the message is MIDI clock or transport, which
+   *         should be sent to {@link #receiveClockMessage}
+   */
+  public static boolean isClockMessage(ShortMessage sm) {
+    switch (sm.getStatus()) {
+      case ShortMessage.TIMING_CLOCK:
+      case ShortMessage.START:
+      case ShortMessage.CONTINUE:
+      case ShortMessage.STOP:
+      case ShortMessage.SONG_POSITION_POINTER:
+        return true;
+      default:
+        return false;
+    }
+  }
+  
+  /**
+   * Handles MIDI clock and transport messages from the input device.  They
+   * are ignored unless the clock source is {@link ClockSource#EXTERNAL}.
+   * @param sm the message
+   * @param receivedNanos when the message arrived, in System.nanoTime() terms
+   */
+  public synchronized void receiveClockMessage(ShortMessage sm, long receivedNanos) {
+    if (_clockSource != ClockSource.EXTERNAL)
+      return;
+    
+    switch (sm.getStatus()) {
+      case ShortMessage.TIMING_CLOCK:
+        final long pulse = _follower.pulse(receivedNanos);
+        if (_follower.isLocked()) {
+          final int oldBPM = getBPM();
+          _bpm = _follower.getBPM();
+          if (getBPM() != oldBPM)
+            notifyBPM();
+          
+          // allow the clock to run one pulse ahead on the smoothed schedule
+          if (_clock != null)
+            _clock.steer(pulse, _follower.getPulseNanos(), _follower.getNanosPerPulse(), pulse+1);
+        }
+        break;
+      case ShortMessage.SONG_POSITION_POINTER:
+        _songPosition = (sm.getData1() | (sm.getData2() << 7)) * (long) PULSES_PER_SIXTEENTH;
+        break;
+      case ShortMessage.START:
+      case ShortMessage.CONTINUE:
+        if (sm.getStatus() == ShortMessage.START)
+          _songPosition = 0;
+        _follower.reposition(_songPosition);
+        if (_running) {
+          _clock.stop();
+          startMetronome(_songPosition);
+        } else {
+          start();
+        }
+        break;
+      case ShortMessage.STOP:
+        stop();
+        break;
+      default:
+        break;
+    }
+  }
+  
   /**
    * @return whether or not the metronome is currently running
    */
@@ -138,37 +413,91 @@ public class Metronome {
    * periodically send {@link MetronomeListener#metronomeClicked(int)}
    * messages as the metronome clicks.  The metronome will click immediately
    * after this call.  The metronomeStarted() message will be called in the
-   * current thread, but the metronomeClicked() messages will be called from
-   * a separate thread (not the Swing thread).
+   * current thread for real-time listeners, but the metronomeClicked()
+   * messages will be called from the clock thread (not the Swing thread).
    */
   public synchronized void start() {
     if (_running)
       return;
     _running = true;
     
-    startMetronome();
+    final Receiver output = _clockOutput;
+    if (output != null)
+      output.send(START, -1);
+    startMetronome(_clockSource == ClockSource.EXTERNAL ? _songPosition : 0);
     
     _listeners.forEach(MetronomeListener::metronomeStarted);
+    _uiExecutor.execute(() -> _uiListeners.forEach(MetronomeListener::metronomeStarted));
   }
   
-  private void startMetronome() {
-    _metronomeThread = new Thread(() -> {
-      boolean alive = true;
-      int counter = 0;
-      while (alive) {
-        final int fcounter = counter;
-        _listeners.forEach(l -> l.metronomeClicked(fcounter));
-        
-        counter = (counter+1) % 12;
-        
-        try {
-          Thread.sleep((long) ((MILLIS_IN_MINUTE / 12.0) / _bpm));
-        } catch (InterruptedException e) {
-          alive = false;
-        }
-      }
-    });
-    _metronomeThread.start();
+  /**
+   * Starts a new clock.  Start is only sent to the clock output by
+   * {@link #start()}, so restarting a running clock doesn't send it again.
+   */
+  private void startMetronome(long firstPulse) {
+    final boolean external = _clockSource == ClockSource.EXTERNAL;
+    if (external)
+      _follower.reposition(firstPulse);
+    
+    _clock = new MetronomeClock(_bpm, firstPulse, external, this::pulse, _jitter);
+    _clock.start();
+  }
+  
+  /**
+   * Called on the clock thread for every MIDI clock pulse
+   */
+  private void pulse(int pulseInBeat, boolean first, long nextPulseNanos) {
+    final Receiver output = _clockOutput;
+    if (output != null)
+      output.send(TIMING_CLOCK, -1);
+    
+    if (pulseInBeat % 2 == 0) {
+      // the first click after starting couldn't be announced ahead
+      if (first)
+        scheduleClick(pulseInBeat / 2, System.nanoTime());
+      click(pulseInBeat / 2);
+    }
+    
+    final int nextPulse = (pulseInBeat+1) % MetronomeClock.PULSES_PER_BEAT;
+    if (nextPulse % 2 == 0)
+      scheduleClick(nextPulse / 2, nextPulseNanos);
+  }
+  
+  private void scheduleClick(int subdivision, long clickNanos) {
+    for (final ScheduledMetronomeListener listener : _scheduledListeners)
+      listener.clickScheduled(subdivision, clickNanos);
+  }
+  
+  /**
+   * Called on the clock thread for every click
+   */
+  private void click(int subdivision) {
+    for (final MetronomeListener listener : _listeners)
+      listener.metronomeClicked(subdivision);
+    
+    if (_uiListeners.isEmpty())
+      return;
+    
+    // replace any click the UI lane hasn't gotten to yet, unless it's a main beat
+    int pending;
+    do {
+      pending = _pendingUIClick.get();
+    } while (pending != 0 && !_pendingUIClick.compareAndSet(pending, subdivision));
+    
+    if (pending == NONE)
+      _uiExecutor.execute(this::dispatchUIClick);
+  }
+  
+  private void dispatchUIClick() {
+    final int subdivision = _pendingUIClick.getAndSet(NONE);
+    if (subdivision != NONE)
+      _uiListeners.forEach(l -> l.metronomeClicked(subdivision));
+  }
+  
+  private void dispatchUIBPM() {
+    final int bpm = _pendingUIBPM.getAndSet(NONE);
+    if (bpm != NONE)
+      _uiListeners.forEach(l -> l.bpmSet(bpm));
   }
   
   /**
@@ -181,22 +510,29 @@ public class Metronome {
       return;
     _running = false;
     
-    _metronomeThread.interrupt();
+    _clock.stop();
+    _clock = null;
+    
+    final Receiver output = _clockOutput;
+    if (output != null)
+      output.send(STOP, -1);
     
     _listeners.forEach(MetronomeListener::metronomeStopped);
+    _uiExecutor.execute(() -> _uiListeners.forEach(MetronomeListener::metronomeStopped));
   }
   
   /**
    * Stops and then restarts the metronome, if it is running.  Does nothing
    * if the metronome is not running.  This has the effect of causing the
    * metronome to immediately click and then continue from there with the
-   * existing tempo.  No start/stop messages are sent.
+   * existing tempo.  No start/stop messages are sent.  Does nothing when
+   * following an external clock.
    */
   public synchronized void restart() {
-    if (!_running)
+    if (!_running || _clockSource == ClockSource.EXTERNAL)
       return;
     
-    _metronomeThread.interrupt();
-    startMetronome();
+    _clock.stop();
+    startMetronome(0);
   }
 }
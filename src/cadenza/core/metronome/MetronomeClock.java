@@ -0,0 +1,186 @@
+package cadenza.core.metronome;
+
+import java.util.concurrent.locks.LockSupport;
+
+import cadenza.control.LatencyHistogram;
+
+/**
+ * <p>The clock thread behind the {@link Metronome}.  The clock runs at the
+ * MIDI clock resolution of {@link #PULSES_PER_BEAT} pulses per beat, and
+ * each pulse is scheduled against an absolute System.nanoTime() deadline
+ * computed from the pulse count, rather than by sleeping for a period after
+ * the previous pulse, so time spent in listeners and wakeup jitter don't
+ * accumulate into drift.  The period is kept as a double, so fractional
+ * tempos are exact over any length of time.</p>
+ *
+ * <p>Waiting is a hybrid: the thread parks until {@link #SPIN_NANOS} before
+ * the deadline, since parking can overshoot, and then spins the rest of the
+ * way.  The lateness of every pulse is recorded
+ * in a {@link LatencyHistogram}.</p>
+ *
+ * <p>A free-running clock keeps its own schedule.  Tempo changes take effect
+ * from the next pulse, and if the clock falls far behind (for example if the
+ * machine was suspended) it starts counting again from the late pulse
+ * instead of firing a burst of catch-up pulses.  A steered clock has its
+ * schedule set from outside by {@link #steer}, and won't run past the last
+ * pulse it was given until it is steered again.</p>
+ *
+ * @author Matt Putnam
+ */
+final class MetronomeClock {
+  /** The clock resolution, which is the MIDI clock rate */
+  static final int PULSES_PER_BEAT = 24;
+  
+  private static final double NANOS_IN_MINUTE = 60e9;
+  
+  /**
+   * How close to the deadline to stop parking and start spinning.  This
+   * covers the usual wakeup overshoot; spinning any longer just burns a
+   * core for every pulse.
+   */
+  private static final long SPIN_NANOS = 200000L;
+  
+  /** How late a pulse can be before a free-running schedule is abandoned */
+  private static final long MAX_LATE_NANOS = 250000000L;
+  
+  /**
+   * Receives the pulses of a clock
+   */
+  @FunctionalInterface
+  static interface PulseHandler {
+    /**
+     * Called on the clock thread for every pulse
+     * @param pulseInBeat the pulse number within the beat, 0-23
+     * @param first whether this is the first pulse since the clock started
+     * @param nextPulseNanos when the next pulse is due, as currently scheduled
+     */
+    void pulse(int pulseInBeat, boolean first, long nextPulseNanos);
+  }
+  
+  /**
+   * When each pulse is due: pulse <tt>n</tt> is due at
+   * <tt>anchorNanos + (n - anchorPulse) * nanosPerPulse</tt>, up to and
+   * including <tt>lastPulse</tt>.
+   */
+  private static final class Schedule {
+    final long anchorPulse;
+    final long anchorNanos;
+    final double nanosPerPulse;
+    final long lastPulse;
+    
+    Schedule(long anchorPulse, long anchorNanos, double nanosPerPulse, long lastPulse) {
+      this.anchorPulse = anchorPulse;
+      this.anchorNanos = anchorNanos;
+      this.nanosPerPulse = nanosPerPulse;
+      this.lastPulse = lastPulse;
+    }
+    
+    long deadlineOf(long pulse) {
+      return anchorNanos + Math.round((pulse - anchorPulse) * nanosPerPulse);
+    }
+  }
+  
+  private final PulseHandler _pulseHandler;
+  private final LatencyHistogram _jitter;
+  private final boolean _steered;
+  private final Thread _thread;
+  
+  private volatile double _nanosPerPulse;
+  private volatile Schedule _schedule;
+  private volatile boolean _running = true;
+  
+  /**
+   * Creates a clock.  Call {@link #start()} to start it.
+   * @param bpm the starting tempo, ignored if the clock is steered
+   * @param firstPulse the number of the first pulse, for starting mid-beat
+   * @param steered <tt>true</tt> to have the schedule set by {@link #steer},
+   *                <tt>false</tt> to free-run
+   * @param pulseHandler called on every pulse, from the clock thread
+   * @param jitter the histogram to record pulse lateness in.  The clock
+   *               thread is the only writer while it runs.
+   */
+  MetronomeClock(double bpm, long firstPulse, boolean steered, PulseHandler pulseHandler, LatencyHistogram jitter) {
+    _pulseHandler = pulseHandler;
+    _jitter = jitter;
+    _steered = steered;
+    setBPM(bpm);
+    if (!steered)
+      _schedule = new Schedule(firstPulse, System.nanoTime(), _nanosPerPulse, Long.MAX_VALUE);
+    
+    _thread = new Thread(() -> run(firstPulse), "Cadenza Metronome");
+    _thread.setDaemon(true);
+    _thread.setPriority(Thread.MAX_PRIORITY);
+  }
+  
+  /**
+   * Starts the clock.  A free-running clock pulses immediately.
+   */
+  void start() {
+    _thread.start();
+  }
+  
+  /**
+   * Stops the clock.  No further pulses are sent once the clock thread
+   * notices, which is at most one pulse later if it is in a listener.
+   */
+  void stop() {
+    _running = false;
+    LockSupport.unpark(_thread);
+  }
+  
+  /**
+   * Sets the tempo of a free-running clock, effective from the next pulse
+   * @param bpm the new tempo, in beats per minute
+   */
+  void setBPM(double bpm) {
+    _nanosPerPulse = NANOS_IN_MINUTE / (PULSES_PER_BEAT * bpm);
+  }
+  
+  /**
+   * Sets the schedule of a steered clock
+   * @param pulse a pulse number
+   * @param pulseNanos when that pulse is due
+   * @param nanosPerPulse the period from there on
+   * @param lastPulse the last pulse the clock may send before it is
+   *                  steered again
+   */
+  void steer(long pulse, long pulseNanos, double nanosPerPulse, long lastPulse) {
+    _schedule = new Schedule(pulse, pulseNanos, nanosPerPulse, lastPulse);
+    LockSupport.unpark(_thread);
+  }
+  
+  private void run(long firstPulse) {
+    long pulse = firstPulse;
+    
+    while (_running) {
+      final Schedule schedule = _schedule;
+      if (schedule == null || pulse > schedule.lastPulse) {
+        LockSupport.park(this);
+        continue;
+      }
+      
+      // re-check after every wakeup, a steered schedule may have moved
+      final long deadline = schedule.deadlineOf(pulse);
+      final long remaining = deadline - System.nanoTime();
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+        continue;
+      } else if (remaining > 0) {
+        continue;
+      }
+      
+      final long late = -remaining;
+      _jitter.record(late);
+      _pulseHandler.pulse((int) (pulse % PULSES_PER_BEAT), pulse == firstPulse, schedule.deadlineOf(pulse+1));
+      ++pulse;
+      
+      if (!_steered) {
+        final double requested = _nanosPerPulse;
+        if (late > MAX_LATE_NANOS)
+          _schedule = new Schedule(pulse-1, deadline + late, requested, Long.MAX_VALUE);
+        else if (requested != schedule.nanosPerPulse)
+          _schedule = new Schedule(pulse-1, deadline, requested, Long.MAX_VALUE);
+      }
+    }
+  }
+}
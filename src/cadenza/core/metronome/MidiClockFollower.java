@@ -0,0 +1,110 @@
+package cadenza.core.metronome;
+
+/**
+ * <p>Phase-locked loop that follows an incoming MIDI Timing Clock.  Each
+ * clock message is a pulse at 24 per beat, but pulses arrive with a
+ * millisecond or so of jitter from the sender and the MIDI driver, which
+ * would be heard if they were used directly.  The follower keeps a
+ * predicted pulse time and period, and nudges both toward each pulse as it
+ * arrives (an alpha-beta filter, which is a second order PLL).  The
+ * smoothed schedule steers a {@link MetronomeClock}.</p>
+ *
+ * <p>A pulse more than half a period away from its prediction is taken to
+ * be a jump in tempo or a dropped pulse, and the loop relocks on it.</p>
+ *
+ * <p>This class is not threadsafe; the {@link Metronome} only calls it from
+ * the MIDI input thread.</p>
+ *
+ * @author Matt Putnam
+ */
+final class MidiClockFollower {
+  /** How much of the phase error is corrected on each pulse */
+  private static final double ALPHA = 0.1;
+  
+  /** How much of the phase error is applied to the period, critically damped */
+  private static final double BETA = ALPHA*ALPHA / (2 - ALPHA);
+  
+  /** Pulses slower than this (under 10 BPM) are treated as a restart */
+  private static final long MAX_PERIOD_NANOS = 250000000L;
+  
+  private long _pulse;
+  private long _lastNanos;
+  private double _nanosPerPulse;
+  
+  /** The predicted time of the last pulse is the origin plus the offset */
+  private long _originNanos;
+  private double _predictedOffset;
+  
+  private boolean _haveLast;
+  private boolean _locked;
+  
+  /**
+   * Resets the pulse count, for MIDI Start or Continue.  The tempo estimate
+   * is kept.
+   * @param nextPulse the number of the next pulse to arrive
+   */
+  void reposition(long nextPulse) {
+    _pulse = nextPulse;
+  }
+  
+  /**
+   * Handles a Timing Clock message
+   * @param nanos when it arrived, in System.nanoTime() terms
+   * @return the number of the pulse, counting from the last reposition
+   */
+  long pulse(long nanos) {
+    if (!_haveLast || nanos - _lastNanos > MAX_PERIOD_NANOS) {
+      _locked = false;
+    } else if (!_locked) {
+      relock(nanos);
+      _locked = true;
+    } else {
+      _predictedOffset += _nanosPerPulse;
+      final double error = (nanos - _originNanos) - _predictedOffset;
+      if (Math.abs(error) > _nanosPerPulse / 2) {
+        relock(nanos);
+      } else {
+        _predictedOffset += ALPHA * error;
+        _nanosPerPulse += BETA * error;
+      }
+    }
+    
+    _lastNanos = nanos;
+    _haveLast = true;
+    return _pulse++;
+  }
+  
+  private void relock(long nanos) {
+    _nanosPerPulse = nanos - _lastNanos;
+    _originNanos = nanos;
+    _predictedOffset = 0;
+  }
+  
+  /**
+   * @return <tt>true</tt> if the tempo is known, which takes two pulses
+   */
+  boolean isLocked() {
+    return _locked;
+  }
+  
+  /**
+   * @return the smoothed time of the last pulse, in System.nanoTime() terms
+   */
+  long getPulseNanos() {
+    return _originNanos + Math.round(_predictedOffset);
+  }
+  
+  /**
+   * @return the smoothed period of the pulses
+   */
+  double getNanosPerPulse() {
+    return _nanosPerPulse;
+  }
+  
+  /**
+   * @return the tempo, in beats per minute
+   */
+  double getBPM() {
+    return 60e9 / (MetronomeClock.PULSES_PER_BEAT * _nanosPerPulse);
+  }
+}
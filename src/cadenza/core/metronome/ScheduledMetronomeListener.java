@@ -0,0 +1,24 @@
+package cadenza.core.metronome;
+
+/**
+ * Listener for the {@link Metronome} that hears about each click shortly
+ * before it happens, along with exactly when it will happen.  Clients that
+ * play notes in time with the metronome should use this instead of reacting
+ * to {@link MetronomeListener#metronomeClicked(int)}, and schedule their
+ * notes for the click time, so that the wake-up jitter of the clock thread
+ * doesn't end up in the music.
+ * 
+ * @author Matt Putnam
+ */
+@FunctionalInterface
+public interface ScheduledMetronomeListener {
+  /**
+   * Notification that the metronome is about to click.  This is called on
+   * the clock thread one MIDI clock pulse (1/24 of a beat) ahead of the
+   * click, except for the first click after starting, which is called as it
+   * happens.
+   * @param subdivision which subdivision, ranges 0-11
+   * @param clickNanos when the click will happen, in System.nanoTime() terms
+   */
+  public void clickScheduled(int subdivision, long clickNanos);
+}
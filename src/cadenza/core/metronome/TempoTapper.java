@@ -54,7 +54,7 @@ public class TempoTapper implements MetronomeListener {
     _buffer.add(diff);
     
     _runningMean = StatUtils.mean(_buffer.getValues());
-    final int bpm = (int) (MILLIS_IN_MINUTE / _runningMean);
+    final double bpm = MILLIS_IN_MINUTE / _runningMean;
     if (bpm > 1) {
       Metronome.getInstance().setBPM(bpm);
       if (now - _lastClick > CLICK_SAFETY_DELAY) {
@@ -4,6 +4,7 @@ import java.util.Arrays;
 
 import cadenza.control.PerformanceController;
 import cadenza.core.PatchAssignment;
+import cadenza.core.tracker.CCTracker;
 
 public class ControlPatchMerge extends PatchMerge {
   private static final long serialVersionUID = 2L;
@@ -44,17 +45,22 @@ public class ControlPatchMerge extends PatchMerge {
   
   @Override
   protected void prepare_additional(PerformanceController controller) {
-    // TODO: use CC tracker to set this correctly initially
-    _active = _patchUsages[0];
+    // start on the patch for where the controller is now, if it's known
+    final int channel = getNoteRange().getKeyboard().channel;
+    final int ccVal = 0 <= channel && channel < 16 ? CCTracker.getInstance().getValue(channel, _ccNum) : -1;
+    _active = ccVal == -1 ? _patchUsages[0] : select(ccVal);
   }
   
   @Override
   protected void controlChanged_additional(int ccNum, int ccVal) {
-    if (ccNum == _ccNum) {
-      int i;
-      for (i = 0; i < _breakpoints.length && ccVal > _breakpoints[i]; ++i);
-      _active = _patchUsages[i];
-    }
+    if (ccNum == _ccNum)
+      _active = select(ccVal);
+  }
+  
+  private PatchAssignment select(int ccVal) {
+    int i;
+    for (i = 0; i < _breakpoints.length && ccVal > _breakpoints[i]; ++i);
+    return _patchUsages[i];
   }
 
   @Override
@@ -1,7 +1,5 @@
 package cadenza.core.patchusage;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
 import cadenza.control.PerformanceController;
@@ -9,16 +7,20 @@ import cadenza.core.NoteRange;
 import cadenza.core.Patch;
 import cadenza.core.metronome.Metronome;
 import cadenza.core.metronome.Metronome.Subdivision;
-import cadenza.core.metronome.MetronomeListener;
+import cadenza.core.metronome.ScheduledMetronomeListener;
 
 /**
  * A PatchUsage type that arpeggiates the currently played chord in a variety
  * of different ways.  Uses a minimum number of notes to avoid the race
  * condition when the notes of the chord are played (nearly) simultaneously.
+ * The held notes are kept in a {@link ChordBuffer}, which the clock thread
+ * reads a consistent copy of on each click.  Notes are scheduled for the
+ * exact click times, so they are in time even if the clock thread wakes up
+ * late.
  * 
  * @author Matt Putnam
  */
-public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListener {
+public class ArpeggiatorPatchUsage extends PatchUsage implements ScheduledMetronomeListener {
   private static final long serialVersionUID = 2L;
   
   /**
@@ -38,7 +40,15 @@ public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListen
     /** Picks notes completely at random */
     RANDOM("Random"),
     /** Picks notes randomly, but won't repeat the same note twice */
-    RANDOM_NONREPEATING("Random (won't repeat)");
+    RANDOM_NONREPEATING("Random (won't repeat)"),
+    /** Plays the notes in ascending order, then again an octave higher */
+    ASCENDING_OCTAVES("Ascending over two octaves"),
+    /** Plays the notes in descending order, starting an octave higher */
+    DESCENDING_OCTAVES("Descending over two octaves"),
+    /** Plays the notes in the order they were played */
+    AS_PLAYED("In the order played"),
+    /** Repeats the whole chord */
+    CHORD("Repeated chord");
     
     private final String _displayName;
     
@@ -59,13 +69,18 @@ public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListen
   /** The minimum chord size, must be at least 2 */
   public final int minSize;
   
-  private transient volatile List<Integer> _currentNotes;
+  private transient ChordBuffer _chord;
   private transient PerformanceController _controller;
-  private transient volatile int _index = -1;
-  private transient volatile int _currentlyPlayingNote = -1;
-  private transient volatile boolean _up;
   private transient Random _random;
   
+  // Owned by the clock thread
+  private transient int[] _notes;
+  private transient int _index = -1;
+  private transient boolean _up;
+  
+  private transient int[] _playingNotes;
+  private transient volatile int _playingCount;
+  
   private transient boolean _turnOffMetronomeOnExit;
 
   /**
@@ -91,16 +106,19 @@ public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListen
   @Override
   public int[][] getNotes(int midiNumber, int velocity) {
     // abuse this just to get key pressed info
-    _currentNotes.add(Integer.valueOf(midiNumber));
-    _currentNotes.sort(null);
+    _chord.add(midiNumber);
     Metronome.getInstance().start();
     return new int[][] {};
   }
   
   @Override
   public void prepare(PerformanceController controller) {
-    _currentNotes = new ArrayList<>();
-    Metronome.getInstance().addMetronomeListener(this);
+    _chord = new ChordBuffer();
+    _notes = new int[ChordBuffer.CAPACITY];
+    _playingNotes = new int[ChordBuffer.CAPACITY];
+    _playingCount = 0;
+    _index = -1;
+    Metronome.getInstance().addScheduledMetronomeListener(this);
     _controller = controller;
     _random = new Random();
     _turnOffMetronomeOnExit = !Metronome.getInstance().isRunning();
@@ -108,17 +126,17 @@ public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListen
   
   @Override
   public void cleanup(PerformanceController controller) {
-    Metronome.getInstance().removeMetronomeListener(this);
-    _currentNotes.clear();
-    if (_currentlyPlayingNote != -1)
-      _controller.sendNoteOff(_currentlyPlayingNote, this);
+    Metronome.getInstance().removeScheduledMetronomeListener(this);
+    _chord.clear();
+    _controller.flushScheduledNotes(this);
+    stopPlayingNotes(System.nanoTime());
     if (_turnOffMetronomeOnExit)
       Metronome.getInstance().stop();
   }
   
   @Override
   public void noteReleased(int midiNumber) {
-    _currentNotes.remove(Integer.valueOf(midiNumber));
+    _chord.remove(midiNumber);
   }
 
   @Override
@@ -127,61 +145,97 @@ public class ArpeggiatorPatchUsage extends PatchUsage implements MetronomeListen
   }
 
   @Override
-  public void metronomeClicked(int clickSubdivision) {
+  public void clickScheduled(int clickSubdivision, long clickNanos) {
     if (subdivision.matches(clickSubdivision)) {
-      if (_currentlyPlayingNote != -1)
-        _controller.sendNoteOff(_currentlyPlayingNote, this);
+      stopPlayingNotes(clickNanos);
       
-      if (_currentNotes.size() < minSize) {
+      final int size = (pattern == Pattern.AS_PLAYED) ? _chord.snapshot(null, _notes)
+                                                      : _chord.snapshot(_notes, null);
+      if (size < minSize) {
         _index = -1;
-        _currentlyPlayingNote = -1;
         return;
       }
-
-      _index = nextIndex();
-      _currentlyPlayingNote = _currentNotes.get(_index).intValue();
-      _controller.sendNoteOn(_currentlyPlayingNote, volume, this);
+      
+      if (pattern == Pattern.CHORD) {
+        for (int i = 0; i < size; ++i)
+          playNote(_notes[i], clickNanos);
+        return;
+      }
+      
+      final boolean octaves = pattern == Pattern.ASCENDING_OCTAVES || pattern == Pattern.DESCENDING_OCTAVES;
+      _index = nextIndex(octaves ? 2*size : size);
+      if (_index < size)
+        playNote(_notes[_index], clickNanos);
+      else
+        playNote(octaveUp(_notes[_index - size]), clickNanos);
     }
   }
   
-  private int nextIndex() {
-    final int size = _currentNotes.size();
+  private void playNote(int midiNumber, long nanos) {
+    _playingNotes[_playingCount] = midiNumber;
+    _playingCount = _playingCount + 1;
+    _controller.scheduleNoteOn(midiNumber, volume, this, nanos);
+  }
+  
+  private void stopPlayingNotes(long nanos) {
+    final int count = _playingCount;
+    for (int i = 0; i < count; ++i)
+      _controller.scheduleNoteOff(_playingNotes[i], this, nanos);
+    _playingCount = 0;
+  }
+  
+  private static int octaveUp(int midiNumber) {
+    return midiNumber + 12 <= 127 ? midiNumber + 12 : midiNumber;
+  }
+  
+  /**
+   * Picks the next step.  The chord may have changed size since the last
+   * step, so the previous index may be out of range.
+   * @param count the number of steps in the pattern
+   * @return the next step, from 0 to <tt>count-1</tt>
+   */
+  private int nextIndex(int count) {
     switch (pattern) {
       case ASCENDING:
-        return (_index+1) % size;
+      case ASCENDING_OCTAVES:
+      case AS_PLAYED:
+        return (_index+1) % count;
       case DESCENDING:
-        return (_index == -1) ? (size-1) : ((_index-1+size) % size);
+      case DESCENDING_OCTAVES:
+        return (_index <= 0 || _index >= count) ? (count-1) : (_index-1);
       case ALTERNATING_BOTTOM:
         if (_index == -1) {
           _up = true;
           return 0;
-        } else if (_up) {
-          if (_index == size-2) _up = false;
-          return _index+1;
-        } else {
-          if (_index == 1) _up = true;
-          return _index-1;
         }
+        return nextAlternating(count);
       case ALTERNATING_TOP:
         if (_index == -1) {
           _up = false;
-          return size-1;
-        } else if (_up) {
-          if (_index == size-2) _up = false;
-          return _index+1;
-        } else {
-          if (_index == 1) _up = true;
-          return _index-1;
+          return count-1;
         }
+        return nextAlternating(count);
       case RANDOM:
-        return _random.nextInt(size);
+        return _random.nextInt(count);
       case RANDOM_NONREPEATING:
         int chosen;
         do {
-          chosen = _random.nextInt(size);
+          chosen = _random.nextInt(count);
         } while (chosen == _index);
         return chosen;
       default: throw new IllegalStateException("Unknown pattern type");
     }
   }
+  
+  private int nextAlternating(int count) {
+    if (_index >= count-1)
+      _up = false;
+    else if (_index <= 0)
+      _up = true;
+    
+    final int next = _up ? (_index+1) : (Math.min(_index, count-1) - 1);
+    if (next == count-1) _up = false;
+    else if (next == 0) _up = true;
+    return next;
+  }
 }
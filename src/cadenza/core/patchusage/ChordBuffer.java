@@ -0,0 +1,137 @@
+package cadenza.core.patchusage;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <p>The set of notes currently held for an arpeggiator, kept both in
+ * ascending order and in the order they were played.  Storage is a pair of
+ * fixed-size primitive arrays, so adding and removing notes doesn't
+ * allocate.  Since a note can only be in the set once, the capacity is
+ * the 128 MIDI numbers; a note played a second time while held is
+ * ignored.</p>
+ *
+ * <p>There is one writer (the performance thread, adding and removing
+ * notes) and one reader (the metronome clock thread).  The reader copies
+ * the notes out with {@link #snapshot(int[], int[])}, which is an
+ * optimistic read that only falls back to locking if a write happened
+ * during the copy.</p>
+ *
+ * @author Matt Putnam
+ */
+final class ChordBuffer {
+  /** The most notes the buffer can hold */
+  static final int CAPACITY = 128;
+
+  private final StampedLock _lock = new StampedLock();
+
+  private final int[] _sorted = new int[CAPACITY];
+  private final int[] _played = new int[CAPACITY];
+  private int _size;
+
+  /**
+   * Adds a note
+   * @param midiNumber the note to add
+   * @return <tt>true</tt> if it was added, <tt>false</tt> if it was already
+   *         held
+   */
+  boolean add(int midiNumber) {
+    final long stamp = _lock.writeLock();
+    try {
+      final int index = search(midiNumber);
+      if (index >= 0)
+        return false;
+
+      final int insert = -index - 1;
+      System.arraycopy(_sorted, insert, _sorted, insert+1, _size-insert);
+      _sorted[insert] = midiNumber;
+      _played[_size++] = midiNumber;
+      return true;
+    } finally {
+      _lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes a note
+   * @param midiNumber the note to remove
+   * @return <tt>true</tt> if it was removed, <tt>false</tt> if it wasn't held
+   */
+  boolean remove(int midiNumber) {
+    final long stamp = _lock.writeLock();
+    try {
+      final int index = search(midiNumber);
+      if (index < 0)
+        return false;
+
+      System.arraycopy(_sorted, index+1, _sorted, index, _size-index-1);
+      int played = 0;
+      while (_played[played] != midiNumber)
+        ++played;
+      System.arraycopy(_played, played+1, _played, played, _size-played-1);
+      --_size;
+      return true;
+    } finally {
+      _lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes all notes
+   */
+  void clear() {
+    final long stamp = _lock.writeLock();
+    _size = 0;
+    _lock.unlockWrite(stamp);
+  }
+
+  /**
+   * Copies out the current notes.  Either array may be <tt>null</tt> if
+   * that ordering isn't needed.
+   * @param sorted receives the notes in ascending order, must have room for
+   *               {@link #CAPACITY} notes
+   * @param played receives the notes in the order they were played, must
+   *               have room for {@link #CAPACITY} notes
+   * @return the number of notes copied
+   */
+  int snapshot(int[] sorted, int[] played) {
+    long stamp = _lock.tryOptimisticRead();
+    if (stamp != 0) {
+      final int size = copy(sorted, played);
+      if (_lock.validate(stamp))
+        return size;
+    }
+
+    stamp = _lock.readLock();
+    try {
+      return copy(sorted, played);
+    } finally {
+      _lock.unlockRead(stamp);
+    }
+  }
+
+  private int copy(int[] sorted, int[] played) {
+    // _size may be torn during an optimistic read, so keep it in range
+    final int size = Math.min(Math.max(_size, 0), CAPACITY);
+    if (sorted != null)
+      System.arraycopy(_sorted, 0, sorted, 0, size);
+    if (played != null)
+      System.arraycopy(_played, 0, played, 0, size);
+    return size;
+  }
+
+  private int search(int midiNumber) {
+    int low = 0;
+    int high = _size - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int value = _sorted[mid];
+      if (value < midiNumber)
+        low = mid + 1;
+      else if (value > midiNumber)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+}
@@ -1,5 +1,7 @@
 package cadenza.core.patchusage;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -10,6 +12,7 @@ import cadenza.core.NoteRange;
 import cadenza.core.Patch;
 import cadenza.core.PatchAssignment;
 import cadenza.core.Synthesizer;
+import cadenza.core.effects.ControlEffect;
 import cadenza.core.effects.Effect;
 
 import common.swing.ColorUtils;
@@ -35,6 +38,12 @@ public abstract class PatchUsage extends PatchAssignment {
    */
   public List<Effect> effects = new ArrayList<>();
   
+  /**
+   * A list of control effects to use for this patch only.  Comes before
+   * cue and global control effects
+   */
+  public List<ControlEffect> controlEffects = new ArrayList<>();
+  
   /**
    * The mapping of control change number -> control value that
    * should be sent when this patch is first loaded
@@ -55,6 +64,13 @@ public abstract class PatchUsage extends PatchAssignment {
     this.volume = volume;
   }
   
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // null in patch usages saved before control effects
+    if (controlEffects == null)
+      controlEffects = new ArrayList<>();
+  }
+  
   @Override
   public final boolean contains(Patch other) {
     return other == patch;
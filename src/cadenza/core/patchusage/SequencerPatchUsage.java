@@ -1,20 +1,33 @@
 package cadenza.core.patchusage;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.OptionalInt;
+import java.util.Random;
 
 import cadenza.control.PerformanceController;
 import cadenza.core.NoteRange;
 import cadenza.core.Patch;
 import cadenza.core.metronome.Metronome;
-import cadenza.core.metronome.MetronomeListener;
+import cadenza.core.metronome.ScheduledMetronomeListener;
 import cadenza.core.sequencer.Sequencer;
 import cadenza.core.sequencer.Sequencer.NoteChangeBehavior;
+import cadenza.core.sequencer.SequencerLane;
 
-public class SequencerPatchUsage extends PatchUsage implements MetronomeListener {
+/**
+ * A PatchUsage type that plays a {@link Sequencer} from the held note.  Each
+ * lane of the sequencer steps on its own subdivision.  Notes are scheduled
+ * with their note offs already in place, so they can be longer or shorter
+ * than a step; the first lane decides when a continued sequence has
+ * finished.
+ * 
+ * @author Matt Putnam
+ */
+public class SequencerPatchUsage extends PatchUsage implements ScheduledMetronomeListener {
   private static final long serialVersionUID = 2L;
   
+  /** Nanoseconds per minute, over the 12 metronome clicks in a beat */
+  private static final double NANOS_PER_CLICK_AT_1_BPM = 60000000000.0 / 12;
+  
   public final Sequencer sequencer;
   
   private transient PerformanceController _controller;
@@ -23,8 +36,12 @@ public class SequencerPatchUsage extends PatchUsage implements MetronomeListener
   private transient volatile boolean _waitingForDownbeat;
   private transient volatile OptionalInt _activeDepressedNote;
   private transient volatile OptionalInt _noteForSounding;
-  private transient volatile List<Integer> _currentSoundingNotes;
-  private transient volatile int _index;
+  private transient volatile boolean _resetRequested;
+  
+  // Owned by the clock thread
+  private transient List<SequencerLane> _lanes;
+  private transient int[] _indices;
+  private transient Random _random;
 
   public SequencerPatchUsage(Patch patch, NoteRange noteRange, int volume,
       Sequencer sequencer) {
@@ -41,7 +58,7 @@ public class SequencerPatchUsage extends PatchUsage implements MetronomeListener
       _noteForSounding = _activeDepressedNote;
     
     if (isRestart())
-      _index = 0;
+      _resetRequested = true;
     
     Metronome.getInstance().start();
     return new int[][] {};
@@ -53,27 +70,33 @@ public class SequencerPatchUsage extends PatchUsage implements MetronomeListener
       if (m == midiNumber) {
         _activeDepressedNote = OptionalInt.empty();
         _noteForSounding = OptionalInt.empty();
-        _index = 0;
+        _resetRequested = true;
       }
     });
   }
   
   @Override
   public void prepare(PerformanceController controller) {
-    Metronome.getInstance().addMetronomeListener(this);
+    sequencer.compile();
+    _lanes = sequencer.getLanes();
+    _indices = new int[_lanes.size()];
+    _random = new Random();
+    _resetRequested = false;
+    
+    Metronome.getInstance().addScheduledMetronomeListener(this);
     _controller = controller;
     _turnOffMetronomeOnExit = !Metronome.getInstance().isRunning();
     
     _waitingForDownbeat = sequencer.isStartOnDownbeat();
     _activeDepressedNote = OptionalInt.empty();
     _noteForSounding = OptionalInt.empty();
-    _currentSoundingNotes = Collections.emptyList();
   }
   
   @Override
   public void cleanup(PerformanceController controller) {
-    Metronome.getInstance().removeMetronomeListener(this);
-    sendNotesOff();
+    Metronome.getInstance().removeScheduledMetronomeListener(this);
+    // sends the pending note offs
+    _controller.flushScheduledNotes(this);
     if (_turnOffMetronomeOnExit)
       Metronome.getInstance().stop();
   }
@@ -84,8 +107,12 @@ public class SequencerPatchUsage extends PatchUsage implements MetronomeListener
   }
   
   @Override
-  public void metronomeClicked(int subdivision) {
-    sendNotesOff();
+  public void clickScheduled(int subdivision, long clickNanos) {
+    if (_resetRequested) {
+      _resetRequested = false;
+      for (int i = 0; i < _indices.length; ++i)
+        _indices[i] = 0;
+    }
     
     if (_waitingForDownbeat) {
       if (subdivision == 0)
@@ -94,24 +121,45 @@ public class SequencerPatchUsage extends PatchUsage implements MetronomeListener
         return;
     }
     
-    if (sequencer.getSubdivision().matches(subdivision) && _activeDepressedNote.isPresent()) {
-      _currentSoundingNotes = sequencer.receive(isContinue() ? _noteForSounding.getAsInt()
-                                                             : _activeDepressedNote.getAsInt(),
-                                                _index);
-      sendNotesOn();
+    final OptionalInt active = _activeDepressedNote;
+    if (!active.isPresent())
+      return;
+    
+    final double nanosPerClick = NANOS_PER_CLICK_AT_1_BPM / Metronome.getInstance().getExactBPM();
+    for (int i = 0; i < _indices.length; ++i) {
+      final SequencerLane lane = _lanes.get(i);
+      if (!lane.getSubdivision().matches(subdivision))
+        continue;
+      
+      final OptionalInt forSounding = _noteForSounding;
+      final int midiNum = (isContinue() && forSounding.isPresent()) ? forSounding.getAsInt()
+                                                                    : active.getAsInt();
+      final int index = _indices[i];
+      final double nanosPerHundredth = nanosPerClick * lane.getSubdivision().getTwelfths() / 100;
+      playStep(lane, index, midiNum, clickNanos + (long) (lane.getSwingOffset(index) * nanosPerHundredth),
+               nanosPerHundredth);
       
-      _index = (_index+1) % sequencer.getLength();
-      if (_index == 0 && isContinue())
+      _indices[i] = (index+1) % lane.getLength();
+      if (i == 0 && _indices[i] == 0 && isContinue())
         _noteForSounding = _activeDepressedNote;
     }
   }
   
-  private void sendNotesOn() {
-    _currentSoundingNotes.forEach(i -> _controller.sendNoteOn(i.intValue(), volume, this));
-  }
-  
-  private void sendNotesOff() {
-    _currentSoundingNotes.forEach(i -> _controller.sendNoteOff(i.intValue(), this));
+  private void playStep(SequencerLane lane, int index, int midiNum, long startNanos, double nanosPerHundredth) {
+    for (int event = lane.getEventStart(index); event < lane.getEventEnd(index); ++event) {
+      final int probability = lane.getEventProbability(event);
+      if (probability < 100 && _random.nextInt(100) >= probability)
+        continue;
+      
+      final int note = lane.getEventNote(event, midiNum);
+      if (note == -1)
+        continue;
+      
+      final int velocity = Math.max(1, (volume * lane.getEventVelocity(event) + 63) / 127);
+      final long endNanos = startNanos + (long) (lane.getEventDuration(event) * nanosPerHundredth);
+      _controller.scheduleNoteOn(note, velocity, this, startNanos);
+      _controller.scheduleNoteOff(note, this, endNanos);
+    }
   }
   
   private boolean isChangeNote() {
@@ -1,17 +1,25 @@
 package cadenza.core.sequencer;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.JPanel;
 
-import cadenza.core.Note;
 import cadenza.core.Scale;
 import cadenza.core.metronome.Metronome.Subdivision;
 import cadenza.gui.sequencer.SequencerGridPreviewPanel;
 
+/**
+ * A note pattern played from a single held note.  A sequencer is made of
+ * one or more {@link SequencerLane}s, each with its own rows, steps and
+ * subdivision, which play together and loop independently.
+ * 
+ * @author Matt Putnam
+ */
 public class Sequencer implements Serializable {
   private static final long serialVersionUID = 2L;
   
@@ -33,52 +41,47 @@ public class Sequencer implements Serializable {
   }
   
   private String _name;
-  private int _length;
-  private int[] _notes;
-  
-  private final boolean[][] _grid;
+  private List<SequencerLane> _lanes;
   
   private final Scale _scale;
-  private final Subdivision _subdivision;
   private final NoteChangeBehavior _noteChangeBehavior;
   private final boolean _startOnDownbeat;
   
+  // Only set when read from files saved before lanes, see readObject
+  private int _length;
+  private int[] _notes;
+  private boolean[][] _grid;
+  private Subdivision _subdivision;
+  
   private transient SequencerGridPreviewPanel _previewPanel;
   
-  public static final Sequencer DEFAULT = new Sequencer("New Sequencer", 11,
-      new int[] {5, 4, 3, 2, 1, 0, -1, -2, -3, -4, -5}, null,
-      Subdivision.SIXTEENTHS, NoteChangeBehavior.CONTINUE_SEQUENCE, true);
+  public static final Sequencer DEFAULT = new Sequencer("New Sequencer",
+      Collections.singletonList(SequencerLane.fromGrid(new int[] {5, 4, 3, 2, 1, 0, -1, -2, -3, -4, -5},
+                                                       Subdivision.SIXTEENTHS, new boolean[11][11])),
+      null, NoteChangeBehavior.CONTINUE_SEQUENCE, true);
   
-  public Sequencer(String name, int length, int[] notes,
-      Scale scale, Subdivision subdivision, NoteChangeBehavior noteChangeBehavior, boolean startOnDownbeat) {
-    _name = name;
-    _length = length;
-    _notes = notes;
-    _noteChangeBehavior = noteChangeBehavior;
-    _startOnDownbeat = startOnDownbeat;
+  public Sequencer(String name, List<SequencerLane> lanes,
+      Scale scale, NoteChangeBehavior noteChangeBehavior, boolean startOnDownbeat) {
+    if (lanes.isEmpty())
+      throw new IllegalArgumentException("A sequencer needs at least one lane");
     
-    _scale = scale;
-    _subdivision = subdivision;
-    
-    _grid = new boolean[_notes.length][length];
-  }
-  
-  public Sequencer(String name, boolean[][] grid, int[] notes,
-      Scale scale, Subdivision subdivision, NoteChangeBehavior noteChangeBehavior, boolean startOnDownbeat) {
     _name = name;
-    _length = grid[0].length;
-    _notes = notes;
+    _lanes = new ArrayList<>(lanes);
     
     _scale = scale;
-    _subdivision = subdivision;
     _noteChangeBehavior = noteChangeBehavior;
     _startOnDownbeat = startOnDownbeat;
-    
-    _grid = new boolean[_notes.length][_length];
-    for (int note = 0; note < _notes.length; ++note) {
-      for (int index = 0; index < _length; ++index) {
-        _grid[note][index] = grid[note][index];
-      }
+  }
+  
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (_lanes == null) {
+      _lanes = new ArrayList<>(1);
+      _lanes.add(SequencerLane.fromGrid(_notes, _subdivision, _grid));
+      _length = 0;
+      _notes = null;
+      _grid = null;
+      _subdivision = null;
     }
   }
   
@@ -90,16 +93,8 @@ public class Sequencer implements Serializable {
     return _scale;
   }
   
-  public int getLength() {
-    return _length;
-  }
-  
-  public int[] getNotes() {
-    return Arrays.copyOf(_notes, _notes.length);
-  }
-  
-  public Subdivision getSubdivision() {
-    return _subdivision;
+  public List<SequencerLane> getLanes() {
+    return Collections.unmodifiableList(_lanes);
   }
   
   public NoteChangeBehavior getNoteChangeBehavior() {
@@ -110,26 +105,24 @@ public class Sequencer implements Serializable {
     return _startOnDownbeat;
   }
   
-  public boolean isOn(int note, int index) {
-    return _grid[note][index];
+  /**
+   * @return the most rows in any lane, which is the most notes a single
+   *         step of the sequencer can play
+   */
+  public int getMaxRowCount() {
+    int max = 0;
+    for (final SequencerLane lane : _lanes)
+      max = Math.max(max, lane.getRowCount());
+    return max;
   }
   
-  public List<Integer> receive(int midiNum, int index) {
-    final List<Integer> result = new ArrayList<>(_notes.length);
-    
-    for (int note = 0; note < _notes.length; ++note) {
-      if (_grid[note][index]) {
-        if (_notes[note] == 0)
-          result.add(Integer.valueOf(midiNum));
-        else if (_scale == null) { 
-          result.add(Integer.valueOf(midiNum + _notes[note]));
-        } else {
-          result.add(Integer.valueOf(_scale.upDegrees(Note.valueOf(midiNum), _notes[note]).getMidiNumber()));
-        }
-      }
-    }
-    
-    return result;
+  /**
+   * Compiles every lane for playback, if they haven't been already.  Call
+   * this when preparing to play.
+   */
+  public void compile() {
+    for (final SequencerLane lane : _lanes)
+      lane.compile(_scale);
   }
   
   public JPanel getPreviewPanel() {
@@ -0,0 +1,363 @@
+package cadenza.core.sequencer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cadenza.core.Note;
+import cadenza.core.Scale;
+import cadenza.core.metronome.Metronome.Subdivision;
+
+/**
+ * <p>One lane of a {@link Sequencer}: a grid of rows (intervals from the
+ * played note) by steps, played at its own subdivision.  Each cell of the
+ * grid is a step packed into an int, holding its velocity, gate length,
+ * probability and whether it is tied to the next step (see
+ * {@link #step(int, int, int, boolean)}).  A velocity of 0 means the cell
+ * is off.</p>
+ *
+ * <p>For playback the lane is compiled into a list of note events for
+ * each step, with ties already joined up and the output note for every
+ * possible input note worked out, so that playing a step is only array
+ * reads.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class SequencerLane implements Serializable {
+  private static final long serialVersionUID = 2L;
+
+  /** A step that doesn't play */
+  public static final int OFF = 0;
+
+  /** The largest gate length, as a percentage of the step */
+  public static final int MAX_GATE = 100;
+
+  /** The smallest swing amount, which is straight time */
+  public static final int MIN_SWING = 50;
+  /** The largest swing amount */
+  public static final int MAX_SWING = 75;
+
+  private final int[] _notes;
+  private final int _length;
+  private final Subdivision _subdivision;
+  private final int _swing;
+
+  /** The grid of packed steps, indexed [row * length + index] */
+  private final int[] _steps;
+
+  private transient volatile Compiled _compiled;
+
+  /**
+   * The lane compiled for playback.  The events starting at each step are
+   * stored back to back, with <tt>stepStarts[index]</tt> giving where the
+   * events for step <tt>index</tt> begin.  Each event is a row, a velocity,
+   * a length in hundredths of a step (cut short if swing would make it
+   * overlap the next step) and a probability.  The output note
+   * for each row and each possible input note is in
+   * <tt>transpositions[midiNum * rowCount + row]</tt>, or -1 if it falls
+   * outside the MIDI range.
+   */
+  private static final class Compiled {
+    final Scale scale;
+    final int[] stepStarts;
+    final int[] rows;
+    final int[] velocities;
+    final int[] durations;
+    final int[] probabilities;
+    final int[] transpositions;
+
+    Compiled(Scale scale, int[] stepStarts, int[] rows, int[] velocities,
+        int[] durations, int[] probabilities, int[] transpositions) {
+      this.scale = scale;
+      this.stepStarts = stepStarts;
+      this.rows = rows;
+      this.velocities = velocities;
+      this.durations = durations;
+      this.probabilities = probabilities;
+      this.transpositions = transpositions;
+    }
+  }
+
+  /**
+   * Creates a lane
+   * @param notes the interval from the played note of each row, in half
+   *              steps or scale degrees depending on the sequencer's scale
+   * @param subdivision the subdivision the lane steps at
+   * @param swing how far to delay every other step, as the percentage of
+   *              the pair of steps that falls before it: 50 is straight,
+   *              67 is triplet swing
+   * @param steps the packed steps, indexed [row][index]
+   */
+  public SequencerLane(int[] notes, Subdivision subdivision, int swing, int[][] steps) {
+    if (swing < MIN_SWING || swing > MAX_SWING)
+      throw new IllegalArgumentException("swing must be between " + MIN_SWING + " and " + MAX_SWING);
+
+    _notes = Arrays.copyOf(notes, notes.length);
+    _length = steps[0].length;
+    _subdivision = subdivision;
+    _swing = swing;
+
+    _steps = new int[_notes.length * _length];
+    for (int note = 0; note < _notes.length; ++note)
+      System.arraycopy(steps[note], 0, _steps, note * _length, _length);
+  }
+
+  /**
+   * Creates a lane from an on/off grid, with every note at full velocity
+   * and gate length
+   * @param notes the interval from the played note of each row
+   * @param subdivision the subdivision the lane steps at
+   * @param grid whether each step is on, indexed [row][index]
+   * @return the new lane
+   */
+  public static SequencerLane fromGrid(int[] notes, Subdivision subdivision, boolean[][] grid) {
+    final int full = step(127, MAX_GATE, 100, false);
+    final int[][] steps = new int[notes.length][grid[0].length];
+    for (int note = 0; note < notes.length; ++note)
+      for (int index = 0; index < grid[0].length; ++index)
+        steps[note][index] = grid[note][index] ? full : OFF;
+    return new SequencerLane(notes, subdivision, MIN_SWING, steps);
+  }
+
+  /**
+   * Packs a step into an int
+   * @param velocity the velocity, 1-127, scaled by the patch usage volume
+   * @param gate the gate length, as a percentage of the step, 1-100
+   * @param probability the chance the step plays, as a percentage, 1-100
+   * @param tie whether to hold the note into the next step if it is on in
+   *            the same row, instead of playing it again
+   * @return the packed step
+   */
+  public static int step(int velocity, int gate, int probability, boolean tie) {
+    return (velocity & 0x7F) | ((gate & 0x7F) << 7) | ((probability & 0x7F) << 14) | (tie ? (1 << 21) : 0);
+  }
+
+  /**
+   * @param step a packed step
+   * @return the velocity of the step, or 0 if it is off
+   */
+  public static int velocityOf(int step) {
+    return step & 0x7F;
+  }
+
+  /**
+   * @param step a packed step
+   * @return the gate length of the step, as a percentage of the step
+   */
+  public static int gateOf(int step) {
+    return (step >>> 7) & 0x7F;
+  }
+
+  /**
+   * @param step a packed step
+   * @return the chance the step plays, as a percentage
+   */
+  public static int probabilityOf(int step) {
+    return (step >>> 14) & 0x7F;
+  }
+
+  /**
+   * @param step a packed step
+   * @return whether the step is tied to the next
+   */
+  public static boolean isTied(int step) {
+    return (step & (1 << 21)) != 0;
+  }
+
+  /**
+   * @param step a packed step
+   * @return whether the step plays
+   */
+  public static boolean isOn(int step) {
+    return velocityOf(step) != 0;
+  }
+
+  public int[] getNotes() {
+    return Arrays.copyOf(_notes, _notes.length);
+  }
+
+  public int getRowCount() {
+    return _notes.length;
+  }
+
+  public int getLength() {
+    return _length;
+  }
+
+  public Subdivision getSubdivision() {
+    return _subdivision;
+  }
+
+  public int getSwing() {
+    return _swing;
+  }
+
+  /**
+   * @param note the row
+   * @param index the step
+   * @return the packed step at the given row and index
+   */
+  public int getStep(int note, int index) {
+    return _steps[note * _length + index];
+  }
+
+  /**
+   * @param index a step
+   * @return how far the step is delayed by swing, in hundredths of a step
+   */
+  public int getSwingOffset(int index) {
+    return (index % 2 == 1) ? 2 * (_swing - MIN_SWING) : 0;
+  }
+
+  /**
+   * Compiles the lane for playback with the given scale, if it hasn't been
+   * already.  Call this when preparing to play, so that playing a step
+   * doesn't have to do any work beyond array reads.
+   * @param scale the scale to take the rows as degrees of, or <tt>null</tt>
+   *              for half steps
+   */
+  public void compile(Scale scale) {
+    final Compiled existing = _compiled;
+    if (existing != null && existing.scale == scale)
+      return;
+
+    final int rowCount = _notes.length;
+
+    // A step continued from a tie doesn't start an event
+    final boolean[] continued = new boolean[_steps.length];
+    for (int note = 0; note < rowCount; ++note)
+      for (int index = 0; index < _length-1; ++index)
+        if (isTied(getStep(note, index)) && isOn(getStep(note, index)) && isOn(getStep(note, index+1)))
+          continued[note * _length + index + 1] = true;
+
+    int total = 0;
+    for (int i = 0; i < _steps.length; ++i)
+      if (isOn(_steps[i]) && !continued[i])
+        ++total;
+
+    final int[] stepStarts = new int[_length+1];
+    final int[] rows = new int[total];
+    final int[] velocities = new int[total];
+    final int[] durations = new int[total];
+    final int[] probabilities = new int[total];
+    int next = 0;
+    for (int index = 0; index < _length; ++index) {
+      stepStarts[index] = next;
+      for (int note = 0; note < rowCount; ++note) {
+        final int step = getStep(note, index);
+        if (!isOn(step) || continued[note * _length + index])
+          continue;
+
+        // follow the tie to the last step
+        int last = index;
+        while (last+1 < _length && continued[note * _length + last + 1])
+          ++last;
+
+        rows[next] = note;
+        velocities[next] = velocityOf(step);
+        int duration = 100 * (last - index) + gateOf(getStep(note, last));
+        // a swung note mustn't run past the start of the next straight step
+        final int offset = getSwingOffset(index);
+        if (offset > 0)
+          duration = Math.max(1, Math.min(duration, 100 * ((duration + 99) / 100) - offset));
+        durations[next] = duration;
+        probabilities[next] = probabilityOf(step);
+        ++next;
+      }
+    }
+    stepStarts[_length] = next;
+
+    boolean[] inScale = null;
+    if (scale != null) {
+      inScale = new boolean[128];
+      for (int midiNum = 0; midiNum < 128; ++midiNum)
+        inScale[midiNum] = scale.contains(Note.valueOf(midiNum));
+    }
+
+    final int[] transpositions = new int[128 * rowCount];
+    for (int midiNum = 0; midiNum < 128; ++midiNum) {
+      for (int note = 0; note < rowCount; ++note) {
+        final int output = inScale == null ? midiNum + _notes[note]
+                                           : degreesFrom(inScale, midiNum, _notes[note]);
+        transpositions[midiNum*rowCount + note] = (output >= 0 && output < 128) ? output : -1;
+      }
+    }
+
+    _compiled = new Compiled(scale, stepStarts, rows, velocities, durations, probabilities, transpositions);
+  }
+
+  /**
+   * Finds the note the given number of scale degrees away from the given
+   * note, the way {@link Scale#upDegrees} does
+   * @return the resulting MIDI number, or -1 if it's out of range
+   */
+  private static int degreesFrom(boolean[] inScale, int midiNum, int degrees) {
+    final int direction = degrees < 0 ? -1 : 1;
+    int remaining = Math.abs(degrees);
+    while (remaining > 0) {
+      midiNum += direction;
+      if (midiNum < 0 || midiNum > 127)
+        return -1;
+      if (inScale[midiNum])
+        --remaining;
+    }
+    return midiNum;
+  }
+
+  private Compiled compiled() {
+    final Compiled compiled = _compiled;
+    if (compiled == null)
+      throw new IllegalStateException("Lane has not been compiled");
+    return compiled;
+  }
+
+  /**
+   * @param index a step
+   * @return the first event starting at the step
+   */
+  public int getEventStart(int index) {
+    return compiled().stepStarts[index];
+  }
+
+  /**
+   * @param index a step
+   * @return one past the last event starting at the step
+   */
+  public int getEventEnd(int index) {
+    return compiled().stepStarts[index+1];
+  }
+
+  /**
+   * @param event an event
+   * @param midiNum the played note
+   * @return the note the event plays, or -1 if it's out of range
+   */
+  public int getEventNote(int event, int midiNum) {
+    final Compiled compiled = compiled();
+    return compiled.transpositions[midiNum * _notes.length + compiled.rows[event]];
+  }
+
+  /**
+   * @param event an event
+   * @return the velocity of the event, 1-127
+   */
+  public int getEventVelocity(int event) {
+    return compiled().velocities[event];
+  }
+
+  /**
+   * @param event an event
+   * @return the length of the event in hundredths of a step, including any
+   *         steps tied to it
+   */
+  public int getEventDuration(int event) {
+    return compiled().durations[event];
+  }
+
+  /**
+   * @param event an event
+   * @return the chance the event plays, as a percentage
+   */
+  public int getEventProbability(int event) {
+    return compiled().probabilities[event];
+  }
+}
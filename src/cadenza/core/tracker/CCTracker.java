@@ -1,14 +1,21 @@
 package cadenza.core.tracker;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Tracks the Control Change numbers that are sent from each input channel.
+ * <p>Tracks the Control Change numbers that are sent from each input channel.
  * This is used to make sure that the synthesizer output channel has the
- * correct CC values after a cue change.
- * 
+ * correct CC values after a cue change.</p>
+ *
+ * <p>Values are written from the MIDI input thread and read from the
+ * performance, trigger and Swing threads, so each channel is a shard of
+ * atomic values with a version that is bumped whenever a value changes.
+ * Reading a whole channel takes a {@link Snapshot}, which is cached until
+ * the channel changes, so polling an idle channel costs nothing.  No locks
+ * are taken.</p>
+ *
  * @author Matt Putnam
  */
 public final class CCTracker {
@@ -16,56 +23,180 @@ public final class CCTracker {
   public static CCTracker getInstance() {
     return INSTANCE;
   }
-  
-  /*
-   * Implementation note: we use a Map<Integer, int[128]> instead of the
-   * faster int[16][128] because MIDI interfaces with multiple I/O ports
-   * can use more than 16 channels.
+
+  /** The number of times to retry a snapshot torn by a concurrent write */
+  private static final int SNAPSHOT_RETRIES = 4;
+
+  /**
+   * The values of one input channel at one point in time.  Immutable, so it
+   * can be shared between threads and kept as long as needed.
    */
-  private final Map<Integer, int[]> _values;
-  
+  public static final class Snapshot {
+    private final int[] _values;
+    private final int _version;
+
+    private Snapshot(int[] values, int version) {
+      _values = values;
+      _version = version;
+    }
+
+    /**
+     * @param ccNum the CC number to look up
+     * @return the last received value of <tt>ccNum</tt>, or -1 if one has
+     *         not yet been received
+     */
+    public int getValue(int ccNum) {
+      return _values[ccNum];
+    }
+
+    /**
+     * @return whether any CC has been received on the channel
+     */
+    public boolean isEmpty() {
+      return _version == 0;
+    }
+
+    /**
+     * @return the last received value of each CC number, or -1 for those
+     *         not yet received
+     */
+    public int[] toArray() {
+      return Arrays.copyOf(_values, 128);
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder("[");
+      for (int ccNum = 0; ccNum < 128; ++ccNum) {
+        if (_values[ccNum] != -1) {
+          if (sb.length() > 1)
+            sb.append(", ");
+          sb.append(ccNum).append("=").append(_values[ccNum]);
+        }
+      }
+      return sb.append("]").toString();
+    }
+  }
+
+  private static final class Shard {
+    final AtomicIntegerArray values;
+    final AtomicInteger version;
+    volatile Snapshot snapshot;
+
+    Shard() {
+      final int[] initial = new int[128];
+      Arrays.fill(initial, -1);
+      values = new AtomicIntegerArray(initial);
+      version = new AtomicInteger();
+      snapshot = new Snapshot(initial, 0);
+    }
+  }
+
+  private final Shard[] _shards;
+
   private CCTracker() {
-    _values = new HashMap<>();
+    _shards = new Shard[InputChannels.COUNT];
+    for (int i = 0; i < _shards.length; ++i)
+      _shards[i] = new Shard();
   }
-  
+
   /**
-   * Notifies the CCTracker that an input channel has sent a CC value
+   * Notifies the CCTracker that an input channel on the first port has sent
+   * a CC value
    * @param channel the input channel
    * @param ccNum the CC number
    * @param value the CC value
    */
   public void notify(int channel, int ccNum, int value) {
-    final Integer key = Integer.valueOf(channel);
-    int[] array = _values.get(key);
-    if (array == null) {
-      array = new int[128];
-      _values.put(key, array);
-    }
-    
-    array[ccNum] = value;
+    notify(0, channel, ccNum, value);
   }
-  
+
   /**
-   * Get the current value of a CC number from a given channel, or -1 if one
-   * has not yet been received.
+   * Notifies the CCTracker that an input channel has sent a CC value
+   * @param port the input port
+   * @param channel the input channel on the port
+   * @param ccNum the CC number
+   * @param value the CC value
+   */
+  public void notify(int port, int channel, int ccNum, int value) {
+    final Shard shard = _shards[InputChannels.index(port, channel)];
+    if (shard.values.getAndSet(ccNum, value) != value)
+      shard.version.incrementAndGet();
+  }
+
+  /**
+   * Get the current value of a CC number from a given channel on the first
+   * port, or -1 if one has not yet been received.
    * @param channel the input channel
    * @param ccNum the CC number to look up
    * @return the last received value of <tt>ccNum</tt> from <tt>channel</tt>
    */
   public int getValue(int channel, int ccNum) {
-    final int[] array = _values.get(Integer.valueOf(channel));
-    if (array == null)
-      return -1;
-    else
-      return array[ccNum];
+    return getValue(0, channel, ccNum);
+  }
+
+  /**
+   * Get the current value of a CC number from a given channel, or -1 if one
+   * has not yet been received.
+   * @param port the input port
+   * @param channel the input channel on the port
+   * @param ccNum the CC number to look up
+   * @return the last received value of <tt>ccNum</tt> from <tt>channel</tt>
+   */
+  public int getValue(int port, int channel, int ccNum) {
+    return _shards[InputChannels.index(port, channel)].values.get(ccNum);
   }
-  
+
   /**
-   * Gets all of the current CC numbers from a given channel
+   * Gets all of the current CC numbers from a given channel on the first
+   * port
    * @param channel the input channel
-   * @return all of the last received CC numbers from <tt>channel</tt>
+   * @return all of the last received CC numbers from <tt>channel</tt>, -1
+   *         for those not yet received
    */
   public int[] getValues(int channel) {
-    return Arrays.copyOf(_values.get(Integer.valueOf(channel)), 128);
+    return snapshot(0, channel).toArray();
+  }
+
+  /**
+   * Takes a snapshot of the values from a given channel on the first port
+   * @param channel the input channel
+   * @return the current values from <tt>channel</tt>
+   */
+  public Snapshot snapshot(int channel) {
+    return snapshot(0, channel);
+  }
+
+  /**
+   * Takes a snapshot of the values from a given channel.  If nothing has
+   * been received on the channel since the last snapshot, the same
+   * snapshot is returned.
+   * @param port the input port
+   * @param channel the input channel on the port
+   * @return the current values from <tt>channel</tt>
+   */
+  public Snapshot snapshot(int port, int channel) {
+    final Shard shard = _shards[InputChannels.index(port, channel)];
+    final Snapshot cached = shard.snapshot;
+    int version = shard.version.get();
+    if (cached._version == version)
+      return cached;
+
+    final int[] values = new int[128];
+    for (int attempt = 0; ; ++attempt) {
+      for (int ccNum = 0; ccNum < 128; ++ccNum)
+        values[ccNum] = shard.values.get(ccNum);
+
+      // Each value is current on its own, so a snapshot that stays torn
+      // after a few retries is still good enough to use
+      final int after = shard.version.get();
+      if (after == version || attempt == SNAPSHOT_RETRIES)
+        break;
+      version = after;
+    }
+
+    final Snapshot result = new Snapshot(values, version);
+    shard.snapshot = result;
+    return result;
   }
 }
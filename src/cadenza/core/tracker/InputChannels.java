@@ -0,0 +1,29 @@
+package cadenza.core.tracker;
+
+/**
+ * The space of input channels the trackers keep state for.  MIDI
+ * interfaces with multiple I/O ports can use more than 16 channels, so each
+ * port gets its own 16 channels, numbered <tt>port * 16 + channel</tt>.
+ *
+ * @author Matt Putnam
+ */
+final class InputChannels {
+  private InputChannels() {}
+
+  /** The number of input ports tracked */
+  static final int PORTS = 4;
+
+  /** The number of input channels tracked, across all ports */
+  static final int COUNT = PORTS * 16;
+
+  /**
+   * @param port the input port
+   * @param channel the channel on the port, 0-15
+   * @return the index of the channel in the tracked channel space
+   */
+  static int index(int port, int channel) {
+    if (port < 0 || port >= PORTS || channel < 0 || channel >= 16)
+      throw new IllegalArgumentException("Untracked input port " + port + " channel " + channel);
+    return (port << 4) | channel;
+  }
+}
@@ -0,0 +1,72 @@
+package cadenza.core.tracker;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the notes held down on each input channel, and when they were
+ * pressed.  Trigger predicates only see the messages sent while their cue
+ * is active, so this is used to bring them up to date when a cue is
+ * loaded.
+ *
+ * @author Matt Putnam
+ */
+public final class NoteTracker {
+  private static final NoteTracker INSTANCE = new NoteTracker();
+  public static NoteTracker getInstance() {
+    return INSTANCE;
+  }
+
+  /** The held notes of each channel, as two words of a 128-bit mask */
+  private final long[] _held;
+
+  /** When each note was last pressed, indexed [channel * 128 + midiNumber] */
+  private final long[] _pressNanos;
+
+  private NoteTracker() {
+    _held = new long[16*2];
+    _pressNanos = new long[16*128];
+  }
+
+  /**
+   * Notifies the NoteTracker that a note was pressed
+   * @param channel the input channel
+   * @param midiNumber the note pressed
+   * @param nanos when it was pressed, in System.nanoTime() terms
+   */
+  public synchronized void noteOn(int channel, int midiNumber, long nanos) {
+    _held[2*channel + (midiNumber >>> 6)] |= 1L << (midiNumber & 63);
+    _pressNanos[channel*128 + midiNumber] = nanos;
+  }
+
+  /**
+   * Notifies the NoteTracker that a note was released
+   * @param channel the input channel
+   * @param midiNumber the note released
+   */
+  public synchronized void noteOff(int channel, int midiNumber) {
+    _held[2*channel + (midiNumber >>> 6)] &= ~(1L << (midiNumber & 63));
+  }
+
+  /**
+   * Forgets all held notes
+   */
+  public synchronized void clear() {
+    Arrays.fill(_held, 0);
+  }
+
+  /**
+   * Copies the notes held on a channel
+   * @param channel the input channel
+   * @param held receives the held notes at <tt>held[heldOffset]</tt> (notes
+   *             0-63) and <tt>held[heldOffset+1]</tt> (notes 64-127)
+   * @param heldOffset where to put the held notes
+   * @param pressNanos receives when each note was pressed, at
+   *                   <tt>pressNanos[pressOffset + midiNumber]</tt>
+   * @param pressOffset where to put the press times
+   */
+  public synchronized void copyHeldNotes(int channel, long[] held, int heldOffset, long[] pressNanos, int pressOffset) {
+    held[heldOffset] = _held[2*channel];
+    held[heldOffset+1] = _held[2*channel + 1];
+    System.arraycopy(_pressNanos, channel*128, pressNanos, pressOffset, 128);
+  }
+}
@@ -1,77 +1,121 @@
 package cadenza.core.tracker;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import common.collection.buffer.FixedSizeIntBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * Tracks the average velocity from each input channel.  This is used to send
+ * <p>Tracks the average velocity from each input channel.  This is used to send
  * volume changes for patches that aren't velocity-sensitive so they can
  * somewhat pretend to be velocity-sensitive, instead of just always playing
- * at max volume.
- * 
+ * at max volume.</p>
+ *
+ * <p>Each channel keeps a ring of its most recent velocities and a running
+ * sum of them.  The sum, the number of velocities and the next ring slot
+ * are packed into one atomic int, so a velocity is added with a single
+ * compare-and-set and the average is read from one value, without
+ * locking.</p>
+ *
  * @author Matt Putnam
  */
 public final class VelocityTracker {
   private static final int BUFFER_SIZE = 15;
-  
+
   private static final VelocityTracker INSTANCE = new VelocityTracker();
   public static VelocityTracker getInstance() {
     return INSTANCE;
   }
-  
-  private final Map<Integer, FixedSizeIntBuffer> _buffers;
-  
+
+  /*
+   * State packing: bits 0-7 are the next ring slot, bits 8-15 are the
+   * number of velocities in the ring, and bits 16 and up are their sum.
+   */
+  private static int sumOf(int state)   { return state >>> 16; }
+  private static int countOf(int state) { return (state >>> 8) & 0xFF; }
+  private static int nextOf(int state)  { return state & 0xFF; }
+  private static int pack(int sum, int count, int next) {
+    return (sum << 16) | (count << 8) | next;
+  }
+
+  private final AtomicIntegerArray _states;
+
+  /** The recent velocities of each channel, indexed [channel * BUFFER_SIZE + slot] */
+  private final AtomicIntegerArray _velocities;
+
   private VelocityTracker() {
-    _buffers = new HashMap<>();
+    _states = new AtomicIntegerArray(InputChannels.COUNT);
+    _velocities = new AtomicIntegerArray(InputChannels.COUNT * BUFFER_SIZE);
   }
-  
+
   /**
    * Notifies the VelocityTracker that a note with the given velocity was
-   * played on the given input channel
+   * played on the given input channel of the first port
    * @param inputChannel the input channel
    * @param velocity the velocity of the note played
    */
   public void notify(int inputChannel, int velocity) {
-    final Integer key = Integer.valueOf(inputChannel);
-    FixedSizeIntBuffer buffer = _buffers.get(key);
-    if (buffer == null) {
-      buffer = new FixedSizeIntBuffer(BUFFER_SIZE);
-      _buffers.put(key, buffer);
+    notify(0, inputChannel, velocity);
+  }
+
+  /**
+   * Notifies the VelocityTracker that a note with the given velocity was
+   * played on the given input channel
+   * @param port the input port
+   * @param inputChannel the input channel on the port
+   * @param velocity the velocity of the note played
+   */
+  public void notify(int port, int inputChannel, int velocity) {
+    final int channel = InputChannels.index(port, inputChannel);
+    while (true) {
+      final int state = _states.get(channel);
+      final int count = countOf(state);
+      final int next = nextOf(state);
+      final int slot = channel * BUFFER_SIZE + next;
+      final int dropped = count == BUFFER_SIZE ? _velocities.get(slot) : 0;
+
+      final int updated = pack(sumOf(state) - dropped + velocity, Math.min(count+1, BUFFER_SIZE),
+          (next+1) % BUFFER_SIZE);
+      if (_states.compareAndSet(channel, state, updated)) {
+        _velocities.set(slot, velocity);
+        return;
+      }
     }
-    
-    buffer.add(velocity);
   }
-  
+
   /**
    * Clears all buffers
    */
   public void clear() {
-    _buffers.clear();
+    for (int channel = 0; channel < InputChannels.COUNT; ++channel)
+      _states.set(channel, 0);
   }
-  
+
   /**
    * Gets the average of the most recently received velocities from the
-   * given channel.  The size of the buffer is a constant.  If the given
-   * input channel has not yet received any input, -1 is returned.
+   * given channel of the first port.  The size of the buffer is a constant.
+   * If the given input channel has not yet received any input, -1 is
+   * returned.
    * @param inputChannel the input channel
    * @return the average of the most recently received velocities from
    *     <tt>inputChannel</tt>, or -1 if none has been received.
    */
   public int getAverage(int inputChannel) {
-    final Integer key = Integer.valueOf(inputChannel);
-    final FixedSizeIntBuffer buffer = _buffers.get(key);
-    if (buffer == null)
+    return getAverage(0, inputChannel);
+  }
+
+  /**
+   * Gets the average of the most recently received velocities from the
+   * given channel.  The size of the buffer is a constant.  If the given
+   * input channel has not yet received any input, -1 is returned.
+   * @param port the input port
+   * @param inputChannel the input channel on the port
+   * @return the average of the most recently received velocities from
+   *     <tt>inputChannel</tt>, or -1 if none has been received.
+   */
+  public int getAverage(int port, int inputChannel) {
+    final int state = _states.get(InputChannels.index(port, inputChannel));
+    final int count = countOf(state);
+    if (count == 0)
       return -1;
     else
-      return average(buffer.getValues());
-  }
-  
-  private static int average(int[] values) {
-    int sum = 0;
-    for (final int value : values)
-      sum += value;
-    return Math.round(sum / ((float) values.length));
+      return Math.round(sumOf(state) / ((float) count));
   }
 }
@@ -2,7 +2,7 @@ package cadenza.core.trigger;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.BitSet;
 import java.util.List;
 
 import javax.sound.midi.MidiMessage;
@@ -13,15 +13,30 @@ import cadenza.control.PerformanceController;
 import cadenza.core.trigger.actions.TriggerAction;
 import cadenza.core.trigger.predicates.TriggerPredicate;
 
+/**
+ * A set of predicates on incoming MIDI messages, and the actions to take
+ * when they are satisfied: all of them (optionally in order), or any one.
+ * In a performance, messages are routed to triggers by a
+ * {@link TriggerIndex}, which tells each trigger which of its predicates a
+ * message can match.
+ * 
+ * @author Matt Putnam
+ */
 public class Trigger implements Serializable {
   private static final long serialVersionUID = 2L;
   
+  /** The most predicates a trigger can have and still be indexed */
+  static final int MAX_INDEXED_PREDICATES = 64;
+  
+  /** A predicate mask that includes every predicate */
+  private static final long ALL_PREDICATES = -1L;
+  
   public List<TriggerPredicate> predicates;
   public boolean AND;
   public boolean inorder;
   
   private int _orderIndex = 0;
-  private List<TriggerPredicate> _remainingPredicates;
+  private transient BitSet _remainingPredicates;
   
   public int safetyDelayMillis;
   private long _lastTriggered = Long.MIN_VALUE;
@@ -36,13 +51,24 @@ public class Trigger implements Serializable {
     actions = new ArrayList<>();
     
     _orderIndex = 0;
-    _remainingPredicates = new ArrayList<>(predicates);
+    _remainingPredicates = new BitSet();
   }
 
   public void receive(MidiMessage message, PerformanceController controller) {
+    receive(message, ALL_PREDICATES, controller);
+  }
+  
+  /**
+   * Receives a message that can only match some of the predicates
+   * @param message the message
+   * @param predicateMask bit <tt>i</tt> is set if the message can match
+   *                      predicate <tt>i</tt>
+   * @param controller the controller to fire actions against
+   */
+  void receive(MidiMessage message, long predicateMask, PerformanceController controller) {
     if (AND) {
       if (inorder) {
-        if (predicates.get(_orderIndex).receive(message)) {
+        if (isCandidate(predicateMask, _orderIndex) && predicates.get(_orderIndex).receive(message)) {
           ++_orderIndex;
           if (_orderIndex == predicates.size()) {
             trigger(controller);
@@ -50,23 +76,23 @@ public class Trigger implements Serializable {
           }
         }
       } else { // !inorder
-        final List<TriggerPredicate> toRemove = new LinkedList<>();
-        for (final TriggerPredicate pred : _remainingPredicates) {
-          if (pred.receive(message)) {
-            toRemove.add(pred);
+        final BitSet remaining = remainingPredicates();
+        boolean matched = false;
+        for (int i = remaining.nextSetBit(0); i >= 0; i = remaining.nextSetBit(i+1)) {
+          if (isCandidate(predicateMask, i) && predicates.get(i).receive(message)) {
+            remaining.clear(i);
+            matched = true;
           }
         }
         
-        _remainingPredicates.removeAll(toRemove);
-        
-        if (_remainingPredicates.isEmpty()) {
+        if (matched && remaining.isEmpty()) {
           trigger(controller);
           reset();
         }
       }
     } else { // OR
-      for (final TriggerPredicate pred : predicates) {
-        if (pred.receive(message)) {
+      for (int i = 0; i < predicates.size(); ++i) {
+        if (isCandidate(predicateMask, i) && predicates.get(i).receive(message)) {
           trigger(controller);
           break;
         }
@@ -74,10 +100,24 @@ public class Trigger implements Serializable {
     }
   }
   
+  private static boolean isCandidate(long predicateMask, int index) {
+    return predicateMask == ALL_PREDICATES ||
+        (index < MAX_INDEXED_PREDICATES && (predicateMask & (1L << index)) != 0);
+  }
+  
+  private BitSet remainingPredicates() {
+    if (_remainingPredicates == null) {
+      _remainingPredicates = new BitSet();
+      _remainingPredicates.set(0, predicates.size());
+    }
+    return _remainingPredicates;
+  }
+  
   public void reset() {
     _orderIndex = 0;
-    _remainingPredicates.clear();
-    _remainingPredicates.addAll(predicates);
+    final BitSet remaining = remainingPredicates();
+    remaining.clear();
+    remaining.set(0, predicates.size());
     
     predicates.forEach(TriggerPredicate::reset);
   }
@@ -89,10 +129,7 @@ public class Trigger implements Serializable {
     
     _lastTriggered = System.currentTimeMillis();
     
-    new Thread(() -> {
-      for (final TriggerAction action : actions)
-        action.takeAction(controller);
-    }).start();
+    controller.runTriggerActions(actions);
   }
   
   @Override
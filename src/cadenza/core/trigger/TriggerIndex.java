@@ -0,0 +1,181 @@
+package cadenza.core.trigger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.midi.ShortMessage;
+
+import cadenza.control.PerformanceController;
+import cadenza.core.NoteRange;
+import cadenza.core.trigger.predicates.TriggerPredicate;
+
+import common.midi.MidiUtilities;
+
+/**
+ * <p>Immutable index of the triggers for a single cue, compiled by the
+ * {@link PerformanceController} when a cue is loaded.  Each predicate
+ * reports the messages it can respond to as keys of (message type,
+ * channel, data1), and each key maps to the triggers with a predicate
+ * for it, along with a bitmask of which of their predicates those are.
+ * A message then only visits the triggers that could possibly match
+ * it.</p>
+ *
+ * <p>Triggers with a predicate that needs to see every message, or with
+ * more predicates than fit in a mask, get every message instead.</p>
+ *
+ * @author Matt Putnam
+ */
+public final class TriggerIndex {
+  private static final int NOTE_ON = 0;
+  private static final int NOTE_OFF = 1;
+  private static final int CONTROL_CHANGE = 2;
+
+  private static final Trigger[] NO_TRIGGERS = new Trigger[0];
+
+  /** An empty index, used before the first cue is loaded */
+  public static final TriggerIndex EMPTY = new TriggerIndex(new Trigger[3*16*128][], new long[3*16*128][], NO_TRIGGERS);
+
+  private final Trigger[][] _triggers;
+  private final long[][] _masks;
+  private final Trigger[] _unindexed;
+
+  private TriggerIndex(Trigger[][] triggers, long[][] masks, Trigger[] unindexed) {
+    _triggers = triggers;
+    _masks = masks;
+    _unindexed = unindexed;
+  }
+
+  /**
+   * Makes the key for a message
+   * @param command the command, one of {@link ShortMessage#NOTE_ON},
+   *                {@link ShortMessage#NOTE_OFF} or
+   *                {@link ShortMessage#CONTROL_CHANGE}
+   * @param channel the channel
+   * @param data1 the note or control number
+   * @return the key
+   */
+  public static int key(int command, int channel, int data1) {
+    final int type;
+    switch (command) {
+      case ShortMessage.NOTE_ON:        type = NOTE_ON; break;
+      case ShortMessage.NOTE_OFF:       type = NOTE_OFF; break;
+      case ShortMessage.CONTROL_CHANGE: type = CONTROL_CHANGE; break;
+      default: throw new IllegalArgumentException("Unindexed command " + command);
+    }
+    return (type << 11) | (channel << 7) | data1;
+  }
+
+  /**
+   * Makes the keys for every note in a note range
+   * @param command {@link ShortMessage#NOTE_ON} or
+   *                {@link ShortMessage#NOTE_OFF}
+   * @param noteRange the note range
+   * @return the keys
+   */
+  public static int[] noteKeys(int command, NoteRange noteRange) {
+    final int channel = noteRange.getKeyboard().channel;
+    int count = 0;
+    for (int midiNumber = 0; midiNumber < 128; ++midiNumber)
+      if (noteRange.contains(midiNumber))
+        ++count;
+
+    final int[] result = new int[count];
+    int next = 0;
+    for (int midiNumber = 0; midiNumber < 128; ++midiNumber)
+      if (noteRange.contains(midiNumber))
+        result[next++] = key(command, channel, midiNumber);
+    return result;
+  }
+
+  /**
+   * Gets the key of a message
+   * @param sm the message
+   * @return the key, or -1 if it isn't a kind of message that's indexed
+   */
+  private static int keyOf(ShortMessage sm) {
+    final int type;
+    if (MidiUtilities.isNoteOn(sm))
+      type = NOTE_ON;
+    else if (MidiUtilities.isNoteOff(sm))
+      type = NOTE_OFF;
+    else if (MidiUtilities.isControlChange(sm))
+      type = CONTROL_CHANGE;
+    else
+      return -1;
+    return (type << 11) | (sm.getChannel() << 7) | sm.getData1();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Trigger, long[]>[] newSlots(int size) {
+    return (Map<Trigger, long[]>[]) new Map<?, ?>[size];
+  }
+
+  /**
+   * Compiles the index for the given triggers
+   * @param triggers the triggers of the cue
+   * @return the index
+   */
+  public static TriggerIndex compile(List<Trigger> triggers) {
+    final Map<Trigger, long[]>[] slots = newSlots(3*16*128);
+    final List<Trigger> unindexed = new ArrayList<>();
+
+    for (final Trigger trigger : triggers) {
+      final List<TriggerPredicate> predicates = trigger.predicates;
+      final int[][] keys = new int[predicates.size()][];
+      boolean indexable = predicates.size() <= Trigger.MAX_INDEXED_PREDICATES;
+      for (int i = 0; indexable && i < predicates.size(); ++i) {
+        keys[i] = predicates.get(i).getMessageKeys();
+        indexable = keys[i] != null;
+      }
+
+      if (!indexable) {
+        unindexed.add(trigger);
+        continue;
+      }
+
+      for (int i = 0; i < predicates.size(); ++i) {
+        for (final int key : keys[i]) {
+          if (slots[key] == null)
+            slots[key] = new LinkedHashMap<>();
+          slots[key].computeIfAbsent(trigger, t -> new long[1])[0] |= 1L << i;
+        }
+      }
+    }
+
+    final Trigger[][] resultTriggers = new Trigger[slots.length][];
+    final long[][] resultMasks = new long[slots.length][];
+    for (int key = 0; key < slots.length; ++key) {
+      if (slots[key] == null)
+        continue;
+
+      resultTriggers[key] = slots[key].keySet().toArray(new Trigger[slots[key].size()]);
+      resultMasks[key] = new long[resultTriggers[key].length];
+      for (int i = 0; i < resultTriggers[key].length; ++i)
+        resultMasks[key][i] = slots[key].get(resultTriggers[key][i])[0];
+    }
+
+    return new TriggerIndex(resultTriggers, resultMasks, unindexed.toArray(new Trigger[unindexed.size()]));
+  }
+
+  /**
+   * Sends a message to the triggers that could match it
+   * @param sm the message
+   * @param controller the controller to fire trigger actions against
+   */
+  public void dispatch(ShortMessage sm, PerformanceController controller) {
+    final int key = keyOf(sm);
+    if (key != -1) {
+      final Trigger[] triggers = _triggers[key];
+      if (triggers != null) {
+        final long[] masks = _masks[key];
+        for (int i = 0; i < triggers.length; ++i)
+          triggers[i].receive(sm, masks[i], controller);
+      }
+    }
+
+    for (final Trigger trigger : _unindexed)
+      trigger.receive(sm, controller);
+  }
+}
@@ -38,6 +38,11 @@ public class CueStepAction implements TriggerAction {
     }
   }
   
+  @Override
+  public boolean changesCue() {
+    return true;
+  }
+  
   @Override
   public String toString() {
     return _type.toString();
@@ -25,6 +25,11 @@ public class GotoAction implements TriggerAction {
     controller.goTo(_song, _measure);
   }
   
+  @Override
+  public boolean changesCue() {
+    return true;
+  }
+  
   @Override
   public String toString() {
     return "go to " + _song + " m. " + _measure;
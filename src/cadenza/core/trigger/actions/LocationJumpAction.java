@@ -40,6 +40,11 @@ public class LocationJumpAction implements TriggerAction {
       controller.goTo(_index);
   }
   
+  @Override
+  public boolean changesCue() {
+    return _type == Type.LOAD;
+  }
+  
   @Override
   public String toString() {
     return _type.toString();
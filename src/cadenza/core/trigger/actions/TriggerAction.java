@@ -6,4 +6,14 @@ import cadenza.control.PerformanceController;
 
 public interface TriggerAction extends Serializable {
   public void takeAction(PerformanceController controller);
+  
+  /**
+   * Whether this action changes the current cue.  Waits in the same
+   * trigger aren't cancelled by the cue changes it makes.  Default
+   * implementation returns <tt>false</tt>.
+   * @return <tt>true</tt> if taking this action changes the cue
+   */
+  public default boolean changesCue() {
+    return false;
+  }
 }
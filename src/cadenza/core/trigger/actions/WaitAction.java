@@ -1,5 +1,7 @@
 package cadenza.core.trigger.actions;
 
+import java.util.concurrent.CountDownLatch;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -8,6 +10,14 @@ import cadenza.core.metronome.Metronome;
 import cadenza.core.metronome.Metronome.Subdivision;
 import cadenza.core.metronome.MetronomeListener;
 
+/**
+ * Waits for a number of milliseconds or metronome beats before the rest
+ * of the trigger's actions.  When a trigger fires in a performance, the
+ * PerformanceController schedules the rest of the actions for after the
+ * wait instead of calling {@link #takeAction}, so no thread is held up.
+ * 
+ * @author Matt Putnam
+ */
 public class WaitAction implements TriggerAction {
   private static final Logger LOG = LogManager.getLogger(WaitAction.class);
   
@@ -17,8 +27,6 @@ public class WaitAction implements TriggerAction {
   private final boolean _isMillis;
   private final Subdivision _subdivision;
   
-  private volatile int _beatCounter;
-  
   private WaitAction(int num, boolean isMillis, Subdivision subdivision) {
     _num = num;
     _isMillis = isMillis;
@@ -37,25 +45,30 @@ public class WaitAction implements TriggerAction {
     return _subdivision;
   }
 
+  /**
+   * Waits on the calling thread
+   */
   @Override
   public void takeAction(PerformanceController controller) {
-    if (_isMillis) {
-      try {
+    try {
+      if (_isMillis) {
         Thread.sleep(_num);
-      } catch (InterruptedException e) {
-        LOG.warn("Exception during wait action", e);
+      } else {
+        Metronome.getInstance().start();
+        final CountDownLatch clicks = new CountDownLatch(_num);
+        final MetronomeListener clickCounter = subdivision -> {
+          if (_subdivision.matches(subdivision))
+            clicks.countDown();
+        };
+        Metronome.getInstance().addMetronomeListener(clickCounter);
+        try {
+          clicks.await();
+        } finally {
+          Metronome.getInstance().removeMetronomeListener(clickCounter);
+        }
       }
-    } else {
-      Metronome.getInstance().start();
-      _beatCounter = 0;
-      final MetronomeListener clickCounter = subdivision -> {
-        if (_subdivision.matches(subdivision))
-          ++_beatCounter;
-      };
-      Metronome.getInstance().addMetronomeListener(clickCounter);
-      while (_beatCounter < _num)
-        Thread.yield();
-      Metronome.getInstance().removeMetronomeListener(clickCounter);
+    } catch (InterruptedException e) {
+      LOG.warn("Exception during wait action", e);
     }
   }
   
@@ -1,78 +1,330 @@
 package cadenza.core.trigger.predicates;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 
+import cadenza.core.Chord;
 import cadenza.core.Keyboard;
+import cadenza.core.Note.PitchClass;
+import cadenza.core.tracker.NoteTracker;
+import cadenza.core.trigger.TriggerIndex;
 import common.Utils;
 import common.midi.MidiUtilities;
 import common.tuple.Pair;
 
+/**
+ * <p>Predicate for a chord being played.  The chord is either a set of
+ * exact notes, possibly on different keyboards, which must all be held
+ * (other notes may be held too), or a {@link Chord} on a keyboard, which
+ * may be played in any voicing or inversion but with no other pitch
+ * classes held.  The chord is played when the note that completes it is
+ * pressed, and optionally only if all of its notes were pressed within a
+ * time window of each other.</p>
+ *
+ * <p>The held notes of each channel are kept as a 128-bit mask, so
+ * matching is a few mask compares.  They are brought up to date from the
+ * {@link NoteTracker} when the predicate is reset, so notes pressed or
+ * released while the cue wasn't active are accounted for.</p>
+ *
+ * @author Matt Putnam
+ */
 public class ChordPredicate implements TriggerPredicate {
   private static final long serialVersionUID = 2L;
-  
+
+  public static enum Mode {
+    EXACT("Exact notes"),
+    VOICING("Chord, any voicing");
+
+    private final String _displayName;
+
+    private Mode(String displayName) {
+      _displayName = displayName;
+    }
+
+    @Override
+    public String toString() {
+      return _displayName;
+    }
+  }
+
+  /** The root given to match a chord on any root */
+  public static final int ANY_ROOT = -1;
+
+  /** The notes of each pitch class, as two words of a 128-bit mask */
+  private static final long[] PITCH_CLASS_MASKS = new long[12*2];
+  static {
+    for (int midiNumber = 0; midiNumber < 128; ++midiNumber)
+      PITCH_CLASS_MASKS[2*(midiNumber % 12) + (midiNumber >>> 6)] |= 1L << (midiNumber & 63);
+  }
+
   private final List<Pair<Integer, Integer>> _notes;
-  
+
   private final List<Pair<Keyboard, Integer>> _originalInput;
-  
+
   private final String _chordDescription;
-  
-  private final List<Pair<Integer, Integer>> _currentNotes;
-  
+
+  // Null in predicates saved before modes, which are all exact
+  private Mode _mode;
+  private Keyboard _keyboard;
+  private Chord _chord;
+  private int _root;
+  private int _windowMillis;
+
+  /*
+   * Held note state.  Each channel the predicate listens to has a slot,
+   * with its held notes at _held[2*slot] and _held[2*slot+1], and the time
+   * each note was pressed at _pressNanos[128*slot + midiNumber].
+   */
+  private transient int[] _slots;
+  private transient int[] _channels;
+  private transient long[] _required;
+  private transient int[] _shapes;
+  private transient long[] _held;
+  private transient long[] _pressNanos;
+
+  /**
+   * Creates a predicate for exact notes, pressed at any time
+   * @param notes the notes, and the keyboards they are played on
+   */
   public ChordPredicate(List<Pair<Keyboard, Integer>> notes) {
+    this(notes, 0);
+  }
+
+  /**
+   * Creates a predicate for exact notes
+   * @param notes the notes, and the keyboards they are played on
+   * @param windowMillis the most time between the first and last notes of
+   *                     the chord being pressed, or 0 for no limit
+   */
+  public ChordPredicate(List<Pair<Keyboard, Integer>> notes, int windowMillis) {
     _notes = new ArrayList<>();
-    
+
     _originalInput = new ArrayList<>(notes);
-    
+
     final List<String> noteNames = new LinkedList<>();
     for (Pair<Keyboard, Integer> p : notes) {
       _notes.add(Pair.make(Integer.valueOf(p._1().channel), p._2()));
       noteNames.add(MidiUtilities.noteNumberToName(p._2().intValue()));
     }
     _chordDescription = Utils.mkString(noteNames, "[", ", ", "]");
-    
-    _currentNotes = new ArrayList<>();
+
+    _mode = Mode.EXACT;
+    _root = ANY_ROOT;
+    _windowMillis = windowMillis;
+
+    compile();
+  }
+
+  /**
+   * Creates a predicate for a chord in any voicing
+   * @param keyboard the keyboard the chord is played on
+   * @param chord the chord
+   * @param root the pitch class of the root, 0 (C) to 11 (B), or
+   *             {@link #ANY_ROOT}
+   * @param windowMillis the most time between the first and last notes of
+   *                     the chord being pressed, or 0 for no limit
+   */
+  public ChordPredicate(Keyboard keyboard, Chord chord, int root, int windowMillis) {
+    _notes = new ArrayList<>();
+    _originalInput = new ArrayList<>();
+    _chordDescription = root == ANY_ROOT ? "any " + chord.getName()
+                                         : PitchClass.getNormal(root) + chord.getAbbreviation();
+
+    _mode = Mode.VOICING;
+    _keyboard = keyboard;
+    _chord = chord;
+    _root = root;
+    _windowMillis = windowMillis;
+
+    compile();
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (_mode == null) {
+      _mode = Mode.EXACT;
+      _root = ANY_ROOT;
+    }
+    compile();
+  }
+
+  private void compile() {
+    final List<Integer> channels = new ArrayList<>();
+    if (_mode == Mode.VOICING) {
+      channels.add(Integer.valueOf(_keyboard.channel));
+    } else {
+      for (final Pair<Integer, Integer> note : _notes)
+        if (!channels.contains(note._1()))
+          channels.add(note._1());
+    }
+
+    _slots = new int[16];
+    Arrays.fill(_slots, -1);
+    _channels = new int[channels.size()];
+    for (int slot = 0; slot < _channels.length; ++slot) {
+      _channels[slot] = channels.get(slot).intValue();
+      _slots[_channels[slot]] = slot;
+    }
+
+    _required = new long[2*_channels.length];
+    for (final Pair<Integer, Integer> note : _notes) {
+      final int midiNumber = note._2().intValue();
+      _required[2*_slots[note._1().intValue()] + (midiNumber >>> 6)] |= 1L << (midiNumber & 63);
+    }
+
+    if (_mode == Mode.VOICING) {
+      final int shape = _chord.getPitchClasses();
+      if (_root == ANY_ROOT) {
+        _shapes = new int[12];
+        for (int root = 0; root < 12; ++root)
+          _shapes[root] = rotate(shape, root);
+      } else {
+        _shapes = new int[] { rotate(shape, _root) };
+      }
+    }
+
+    _held = new long[2*_channels.length];
+    _pressNanos = new long[128*_channels.length];
+  }
+
+  private static int rotate(int pitchClasses, int halfSteps) {
+    return ((pitchClasses << halfSteps) | (pitchClasses >>> (12 - halfSteps))) & 0xFFF;
   }
 
   @Override
   public boolean receive(MidiMessage message) {
-    if (message instanceof ShortMessage) {
-      final ShortMessage sm = (ShortMessage) message;
-      final int channel = sm.getChannel();
-      
-      final int midiNumber = sm.getData1();
-      final Pair<Integer, Integer> entry = Pair.make(Integer.valueOf(channel), Integer.valueOf(midiNumber));
-      
-      if (MidiUtilities.isNoteOn(sm))
-        _currentNotes.add(entry);
-      else if (MidiUtilities.isNoteOff(sm))
-        _currentNotes.remove(entry);
+    if (!(message instanceof ShortMessage))
+      return false;
+
+    final ShortMessage sm = (ShortMessage) message;
+    final int slot = _slots[sm.getChannel()];
+    if (slot == -1)
+      return false;
+
+    final int midiNumber = sm.getData1();
+    final int word = 2*slot + (midiNumber >>> 6);
+    final long bit = 1L << (midiNumber & 63);
+    if (MidiUtilities.isNoteOn(sm)) {
+      _held[word] |= bit;
+      _pressNanos[128*slot + midiNumber] = System.nanoTime();
+      return _mode == Mode.VOICING ? matchesVoicing() : matchesExact();
+    } else if (MidiUtilities.isNoteOff(sm)) {
+      _held[word] &= ~bit;
+    }
+    return false;
+  }
+
+  private boolean matchesExact() {
+    for (int i = 0; i < _required.length; ++i)
+      if ((_held[i] & _required[i]) != _required[i])
+        return false;
+
+    return isWithinWindow(_required);
+  }
+
+  private boolean matchesVoicing() {
+    final long low = _held[0];
+    final long high = _held[1];
+    int pitchClasses = 0;
+    for (int pc = 0; pc < 12; ++pc)
+      if ((low & PITCH_CLASS_MASKS[2*pc]) != 0 || (high & PITCH_CLASS_MASKS[2*pc+1]) != 0)
+        pitchClasses |= 1 << pc;
+
+    for (final int shape : _shapes)
+      if (pitchClasses == shape)
+        return isWithinWindow(_held);
+    return false;
+  }
+
+  /**
+   * @param masks the notes of the chord, as held in each slot
+   * @return whether the notes were all pressed within the time window
+   */
+  private boolean isWithinWindow(long[] masks) {
+    if (_windowMillis <= 0)
+      return true;
+
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    for (int i = 0; i < masks.length; ++i) {
+      final int base = 64*i;
+      for (long bits = masks[i]; bits != 0; bits &= bits-1) {
+        final long pressed = _pressNanos[base + Long.numberOfTrailingZeros(bits)];
+        first = Math.min(first, pressed);
+        last = Math.max(last, pressed);
+      }
+    }
+    return last - first <= _windowMillis * 1000000L;
+  }
+
+  @Override
+  public int[] getMessageKeys() {
+    if (_mode == Mode.VOICING) {
+      // every note, to see pitch classes that aren't in the chord
+      final int[] result = new int[2*128];
+      for (int midiNumber = 0; midiNumber < 128; ++midiNumber) {
+        result[2*midiNumber] = TriggerIndex.key(ShortMessage.NOTE_ON, _keyboard.channel, midiNumber);
+        result[2*midiNumber+1] = TriggerIndex.key(ShortMessage.NOTE_OFF, _keyboard.channel, midiNumber);
+      }
+      return result;
+    }
+
+    final int[] result = new int[2 * _notes.size()];
+    for (int i = 0; i < _notes.size(); ++i) {
+      final int channel = _notes.get(i)._1().intValue();
+      final int midiNumber = _notes.get(i)._2().intValue();
+      result[2*i] = TriggerIndex.key(ShortMessage.NOTE_ON, channel, midiNumber);
+      result[2*i+1] = TriggerIndex.key(ShortMessage.NOTE_OFF, channel, midiNumber);
     }
-    
-    return _currentNotes.containsAll(_notes);
+    return result;
   }
-  
+
   @Override
   public void reset() {
-    /*
-     * FIXME: this shouldn't be necessary.  What's happening is that if the
-     * trigger fires a cue advance action, the note offs never make it back
-     * to this predicate.
-     */
-    _currentNotes.clear();
-  }
-  
+    // Catch up on the notes pressed and released while this wasn't listening
+    for (int slot = 0; slot < _channels.length; ++slot)
+      NoteTracker.getInstance().copyHeldNotes(_channels[slot], _held, 2*slot, _pressNanos, 128*slot);
+  }
+
   @Override
   public String toString() {
-    return "chord " + _chordDescription + " played";
+    final String played = _mode == Mode.VOICING ? " played in any voicing" : " played";
+    final String window = _windowMillis > 0 ? " within " + _windowMillis + "ms" : "";
+    return "chord " + _chordDescription + played + window;
+  }
+
+  public Mode getMode() {
+    return _mode;
   }
 
   public List<Pair<Keyboard, Integer>> getNotes() {
     return new ArrayList<>(_originalInput);
   }
 
+  public Keyboard getKeyboard() {
+    return _keyboard;
+  }
+
+  public Chord getChord() {
+    return _chord;
+  }
+
+  /**
+   * @return the pitch class of the root, or {@link #ANY_ROOT}
+   */
+  public int getRoot() {
+    return _root;
+  }
+
+  public int getWindowMillis() {
+    return _windowMillis;
+  }
+
 }
@@ -5,6 +5,7 @@ import javax.sound.midi.ShortMessage;
 
 import cadenza.core.ControlNames;
 import cadenza.core.Keyboard;
+import cadenza.core.trigger.TriggerIndex;
 
 import common.midi.MidiUtilities;
 
@@ -46,6 +47,11 @@ public class ControlValuePredicate implements TriggerPredicate {
     }
   }
   
+  @Override
+  public int[] getMessageKeys() {
+    return new int[] { TriggerIndex.key(ShortMessage.CONTROL_CHANGE, _keyboard.channel, _cc) };
+  }
+  
   @Override
   public String toString() {
     final String prefix = "control " + _cc + " (" + ControlNames.getName(_cc) + ") on kbd '" + _keyboard.name;
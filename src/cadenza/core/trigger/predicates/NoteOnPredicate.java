@@ -4,6 +4,7 @@ import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 
 import cadenza.core.NoteRange;
+import cadenza.core.trigger.TriggerIndex;
 
 import common.midi.MidiUtilities;
 
@@ -32,6 +33,11 @@ public class NoteOnPredicate implements TriggerPredicate, HasNoteRange {
     }
   }
   
+  @Override
+  public int[] getMessageKeys() {
+    return TriggerIndex.noteKeys(ShortMessage.NOTE_ON, _noteRange);
+  }
+  
   @Override
   public String toString() {
     return _noteRange.toString() + " pressed";
@@ -4,6 +4,8 @@ import java.io.Serializable;
 
 import javax.sound.midi.MidiMessage;
 
+import cadenza.core.trigger.TriggerIndex;
+
 
 /**
  * Interface for events that can trigger Triggers
@@ -23,4 +25,16 @@ public interface TriggerPredicate extends Serializable {
    * implementation does nothing.
    */
   public default void reset() {}
+  
+  /**
+   * Gets the messages this predicate can respond to, made with
+   * {@link TriggerIndex#key(int, int, int)}, so that the triggers of a cue
+   * can be indexed by message.  Default implementation returns
+   * <tt>null</tt>, meaning the predicate must see every message.
+   * @return the keys of the messages the predicate responds to, or
+   *         <tt>null</tt> for all messages
+   */
+  public default int[] getMessageKeys() {
+    return null;
+  }
 }
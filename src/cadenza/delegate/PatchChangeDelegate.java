@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.SysexMessage;
@@ -72,7 +73,24 @@ public class PatchChangeDelegate {
   
   public static void performPatchChange(Receiver receiver, Patch patch, int channel)
       throws InvalidMidiDataException {
-    getDelegate(patch.getSynthesizer().getName()).sendPatchChange(receiver, patch, channel);
+    for (final MidiMessage message : buildPatchChange(patch, channel))
+      receiver.send(message, -1);
+  }
+  
+  /**
+   * Builds the messages needed to select a patch on a channel, without
+   * sending them.  The messages are newly created and may be kept and sent
+   * any number of times.
+   * @param patch the patch to select
+   * @param channel the output channel
+   * @return the messages to send, in order
+   * @throws InvalidMidiDataException if the patch cannot be selected
+   */
+  public static List<MidiMessage> buildPatchChange(Patch patch, int channel)
+      throws InvalidMidiDataException {
+    final List<MidiMessage> result = new ArrayList<>(4);
+    getDelegate(patch.getSynthesizer().getName()).buildPatchChange(patch, channel, result);
+    return result;
   }
 
   private final List<DelegateEntry> _entries;
@@ -80,30 +98,19 @@ public class PatchChangeDelegate {
     _entries = entries;
   }
   
-  private void sendPatchChange(Receiver receiver, Patch patch, int channel) throws InvalidMidiDataException {
+  private void buildPatchChange(Patch patch, int channel, List<MidiMessage> result) throws InvalidMidiDataException {
     final int patchNum = patch.number;
-    final ShortMessage msg = new ShortMessage();
     
     if (patch.bank.equals(Bank.GM1_BANK)) {
-      msg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 0, 121);
-      receiver.send(msg, -1);
-      
-      msg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 32, 0);
-      receiver.send(msg, -1);
-      
-      msg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, patchNum-1, 0);
-      receiver.send(msg, -1);
+      result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0, 121));
+      result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 32, 0));
+      result.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, patchNum-1, 0));
     } else if (patch.bank.equals(Bank.GM2_BANK)) {
       final Pair<Integer, Integer> GM2_PCNum_LSB = GeneralMIDI.getGM2_PCNum_LSB(patchNum);
       
-      msg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 0, 121);
-      receiver.send(msg, -1);
-      
-      msg.setMessage(ShortMessage.CONTROL_CHANGE, channel, 32, GM2_PCNum_LSB._2().intValue());
-      receiver.send(msg, -1);
-      
-      msg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, GM2_PCNum_LSB._1().intValue()-1, 0);
-      receiver.send(msg, -1);
+      result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0, 121));
+      result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 32, GM2_PCNum_LSB._2().intValue()));
+      result.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, GM2_PCNum_LSB._1().intValue()-1, 0));
     } else {
       final String selector = patch.bank.getSelector();
       DelegateEntry entry = null;
@@ -119,15 +126,12 @@ public class PatchChangeDelegate {
       
       for (final Triple<MessageType, Integer, ?> command : entry.commands) {
         if (command._1() == MessageType.CONTROL_CHANGE) {
-          msg.setMessage(ShortMessage.CONTROL_CHANGE, channel, command._2().intValue(), ((Integer) command._3()).intValue());
-          receiver.send(msg, -1);
+          result.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, command._2().intValue(), ((Integer) command._3()).intValue()));
         } else if (command._1() == MessageType.PROGRAM_CHANGE) {
-          msg.setMessage(ShortMessage.PROGRAM_CHANGE, channel, patchNum - entry.minNum + ((Integer) command._3()).intValue(), 0);
-          receiver.send(msg, -1);
+          result.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, patchNum - entry.minNum + ((Integer) command._3()).intValue(), 0));
         } else if (command._1() == MessageType.SYSEX) {
           final byte[] bytes = (byte[]) command._3();
-          final SysexMessage sm = new SysexMessage(bytes, bytes.length);
-          receiver.send(sm, -1);
+          result.add(new SysexMessage(bytes, bytes.length));
         } else {
           throw new InvalidMidiDataException("Unknown message type: " + command._1());
         }
@@ -36,6 +36,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import cadenza.control.MidiSolutionsMessageSender;
+import cadenza.control.OutputScheduler;
 import cadenza.control.PerformanceController;
 import cadenza.control.PreviewController;
 import cadenza.control.QuickPreviewController;
@@ -47,18 +48,22 @@ import cadenza.core.Keyboard;
 import cadenza.core.Patch;
 import cadenza.core.Song;
 import cadenza.core.Synthesizer;
+import cadenza.core.effects.ControlEffect;
 import cadenza.core.effects.Effect;
 import cadenza.core.metronome.Metronome;
 import cadenza.core.tracker.CCTracker;
+import cadenza.core.tracker.NoteTracker;
 import cadenza.core.tracker.VelocityTracker;
 import cadenza.core.trigger.Trigger;
 import cadenza.gui.control.ControlWindow;
+import cadenza.gui.controlmap.ControlEffectPanel;
 import cadenza.gui.controlmap.ControlMapPanel;
 import cadenza.gui.effects.edit.EffectChainViewerEditor;
 import cadenza.gui.keyboard.KeyboardListEditor;
 import cadenza.gui.preferences.PreferencesDialog;
 import cadenza.gui.synthesizer.SynthesizerListEditor;
 import cadenza.gui.trigger.TriggerPanel;
+import cadenza.preferences.PerformanceOptions;
 import cadenza.preferences.Preferences;
 import cadenza.synths.Synthesizers;
 import common.collection.ListAdapter;
@@ -103,6 +108,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
   
   private MidiDevice _inDevice;
   private MidiDevice _outDevice;
+  private OutputScheduler _outputScheduler;
   
   private MidiSolutionsMessageSender _msmSender;
   
@@ -111,12 +117,21 @@ public class CadenzaFrame extends JFrame implements Receiver {
   private boolean _dirty;
   
   private InputMonitor _inputMonitor;
+  private DiagnosticsWindow _diagnosticsWindow;
   
   public CadenzaFrame(CadenzaData data) {
     super();
     
     _data = data;
     _performanceController = new PerformanceController(_data, this);
+    final PerformanceOptions performanceOptions = Preferences.getPerformanceOptions();
+    if (performanceOptions != null && performanceOptions.useEventLoop())
+      _performanceController.startEventLoop(performanceOptions.getEventQueueCapacity());
+    if (performanceOptions != null) {
+      _performanceController.setLookahead(performanceOptions.getLookaheadCues(), performanceOptions.getLookaheadBudget());
+      Metronome.getInstance().setClockSource(performanceOptions.followExternalClock()
+          ? Metronome.ClockSource.EXTERNAL : Metronome.ClockSource.INTERNAL);
+    }
     _previewController = new PreviewController(_data);
     _quickPreviewer = new QuickPreviewController(_data);
     
@@ -124,6 +139,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
     _data.globalTriggers.addListener(new Dirtyer<Trigger>());
     _data.globalControlMap.addListener(new Dirtyer<ControlMapEntry>());
     _data.globalEffects.addListener(new Dirtyer<Effect>());
+    _data.globalControlEffects.addListener(new Dirtyer<ControlEffect>());
     _data.patches.addListener(new Dirtyer<Patch>());
     _data.cues.addListener(new Dirtyer<Cue>());
     _data.keyboards.addListener(new Dirtyer<Keyboard>());
@@ -143,6 +159,14 @@ public class CadenzaFrame extends JFrame implements Receiver {
     _data.patches.add(patch);
   }
   
+  /**
+   * @return the output scheduler for the current output device, for reading
+   *         its metrics, or <tt>null</tt> if output is not scheduled
+   */
+  public OutputScheduler getOutputScheduler() {
+    return _outputScheduler;
+  }
+  
   public void notifyPerformLocationChanged(int cueIndex, boolean notifyCueListEditor) {
     _patchEditor.clearSelection();
     _previewMixer.goPerformMode();
@@ -160,6 +184,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
     if (_controlWindow != null)
       _controlWindow.updatePreviewPatches(previewPatches);
     _cueListEditor.clearSelection();
+    _performanceController.invalidateLoadedPatches();
     
     _mode = Mode.PREVIEW;
   }
@@ -168,23 +193,35 @@ public class CadenzaFrame extends JFrame implements Receiver {
     _cueListEditor.clearSelection();
     _patchEditor.clearSelection();
     _quickPreviewer.setPatch(patch);
+    _performanceController.invalidateLoadedPatches();
     _mode = Mode.QUICK_PREVIEW;
   }
   
   @Override
   public void send(MidiMessage message, long timestamp) {
+    final long receivedNanos = System.nanoTime();
+    
     // This gets called from a thread in the MIDI system, any runtime
     // exception that gets thrown gets swallowed.  Catch them here:
     try {
       if (message instanceof ShortMessage) {
         final ShortMessage sm = (ShortMessage) message;
         
+        // clock messages are system messages, check before the channel shim
+        if (Metronome.isClockMessage(sm)) {
+          Metronome.getInstance().receiveClockMessage(sm, receivedNanos);
+          return;
+        }
+        
         // shim for now:
         if (sm.getChannel() == 8)
   		  return;
         
-        if (MidiUtilities.isNoteOn(sm))
+        if (MidiUtilities.isNoteOn(sm)) {
           VelocityTracker.getInstance().notify(sm.getChannel(), sm.getData2());
+          NoteTracker.getInstance().noteOn(sm.getChannel(), sm.getData1(), receivedNanos);
+        } else if (MidiUtilities.isNoteOff(sm))
+          NoteTracker.getInstance().noteOff(sm.getChannel(), sm.getData1());
         else if (MidiUtilities.isControlChange(sm))
           CCTracker.getInstance().notify(sm.getChannel(), sm.getData1(), sm.getData2());
       }
@@ -192,7 +229,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
       if (Preferences.getMIDIInputOptions().allowMIDIInput() && MIDIInputControlCenter.getInstance().isActive())
         MIDIInputControlCenter.getInstance().send(message);
       else if (_mode == Mode.PERFORM)
-        _performanceController.send(message);
+        _performanceController.send(message, receivedNanos);
       else if (_mode == Mode.PREVIEW)
         _previewController.send(message);
       else if (_mode == Mode.QUICK_PREVIEW)
@@ -207,6 +244,9 @@ public class CadenzaFrame extends JFrame implements Receiver {
   
   @Override
   public void close() {
+    _performanceController.shutdown();
+    if (_outputScheduler != null)
+      _outputScheduler.shutdown();
     if (_inDevice != null)
       _inDevice.close();
     if (_outDevice != null)
@@ -313,6 +353,15 @@ public class CadenzaFrame extends JFrame implements Receiver {
         }
       });
     }));
+    setupMenu.add(SwingUtils.menuItem("Configure Global Control Effects", 'N', 'N', e -> {
+      OKCancelDialog.showInDialog(CadenzaFrame.this, "Edit Global Control Effects", new ControlEffectPanel(_data.globalControlEffects), panel -> {
+        final List<ControlEffect> effects = panel.getEffects();
+        if (!effects.equals(_data.globalControlEffects)) {
+          _data.globalControlEffects.clear();
+          _data.globalControlEffects.addAll(effects);
+        }
+      });
+    }));
     
     setupMenu.addSeparator();
     setupMenu.add(SwingUtils.menuItem("Program MIDI Solutions device...", 'G', 'G', new ProgramMidiSolutionsAction()));
@@ -325,6 +374,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
     controlMenu.addSeparator();
     controlMenu.add(SwingUtils.menuItem("Show Effects Monitor", 'X', 'X', e -> EffectMonitor.getInstance().setVisible(true)));
     controlMenu.add(SwingUtils.menuItem("Show Input Monitor", 'I', 'I', e -> showInputMonitor()));
+    controlMenu.add(SwingUtils.menuItem("Show Diagnostics", 'D', 'D', e -> showDiagnosticsWindow()));
     
     final JMenuBar menuBar = new JMenuBar();
     menuBar.add(fileMenu);
@@ -339,6 +389,12 @@ public class CadenzaFrame extends JFrame implements Receiver {
     _inputMonitor.setVisible(true);
   }
   
+  private void showDiagnosticsWindow() {
+    if (_diagnosticsWindow == null)
+      _diagnosticsWindow = new DiagnosticsWindow(this, _data, _performanceController);
+    _diagnosticsWindow.setVisible(true);
+  }
+  
   private class RescanTask extends Thread {
     public RescanTask() {
       super("CadenzaFrame.RescanTask");
@@ -448,7 +504,7 @@ public class CadenzaFrame extends JFrame implements Receiver {
       
       if (_controlWindow == null) {
         _controlWindow = new ControlWindow(_performanceController, _data);
-        Metronome.getInstance().addMetronomeListener(_controlWindow);
+        Metronome.getInstance().addUIMetronomeListener(_controlWindow);
         _controlWindow.setSize(1600, 1000);
         SwingUtils.goInvisibleOnClose(_controlWindow);
         
@@ -503,6 +559,8 @@ public class CadenzaFrame extends JFrame implements Receiver {
   }
   
   private void setOutput(Info info) {
+    if (_outputScheduler != null)
+      _outputScheduler.shutdown();
     if (_outDevice != null)
       _outDevice.close();
     
@@ -511,10 +569,20 @@ public class CadenzaFrame extends JFrame implements Receiver {
     try {
       _outDevice = MidiSystem.getMidiDevice(info);
       _outDevice.open();
-      final Receiver receiver = _outDevice.getReceiver();
+      final Receiver receiver;
+      final PerformanceOptions performanceOptions = Preferences.getPerformanceOptions();
+      if (performanceOptions != null && performanceOptions.useOutputScheduler()) {
+        _outputScheduler = new OutputScheduler(_outDevice.getReceiver(), performanceOptions.getOutputRate());
+        receiver = _outputScheduler;
+      } else {
+        _outputScheduler = null;
+        receiver = _outDevice.getReceiver();
+      }
+      _performanceController.setDeviceClock(_outputScheduler == null && _outDevice.getMicrosecondPosition() != -1 ? _outDevice : null);
       _performanceController.setReceiver(receiver);
       _previewController.setReceiver(receiver);
       _quickPreviewer.setReceiver(receiver);
+      Metronome.getInstance().setClockOutput(performanceOptions != null && performanceOptions.sendClock() ? receiver : null);
       if (_msmSender == null)
         _msmSender = new MidiSolutionsMessageSender(receiver);
       else
@@ -0,0 +1,171 @@
+package cadenza.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import cadenza.control.LatencyHistogram;
+import cadenza.control.LatencyRecorder;
+import cadenza.control.OutputScheduler;
+import cadenza.control.PerformanceController;
+import cadenza.control.PerformanceEventLoop;
+import cadenza.core.CadenzaData;
+import cadenza.core.metronome.Metronome;
+import cadenza.core.tracker.CCTracker;
+import cadenza.core.tracker.VelocityTracker;
+
+import common.io.IOUtils;
+import common.swing.SwingUtils;
+import common.swing.dialog.Dialog;
+
+/**
+ * Shows the performance latency histograms, along with the event loop,
+ * output scheduler, and metronome metrics when those are in use, and the
+ * tracked input controls and velocities.  Refreshes once a second while
+ * visible.
+ *
+ * @author Matt Putnam
+ */
+@SuppressWarnings("serial")
+public class DiagnosticsWindow extends JFrame {
+  private static final Logger LOG = LogManager.getLogger(DiagnosticsWindow.class);
+  
+  private final CadenzaFrame _cadenzaFrame;
+  private final CadenzaData _data;
+  private final PerformanceController _controller;
+  private final LatencyRecorder _recorder;
+  
+  private final JTextArea _textArea;
+  private final Timer _timer;
+  
+  public DiagnosticsWindow(CadenzaFrame cadenzaFrame, CadenzaData data, PerformanceController controller) {
+    _cadenzaFrame = cadenzaFrame;
+    _data = data;
+    _controller = controller;
+    _recorder = controller.getLatencyRecorder();
+    
+    _textArea = new JTextArea(30, 110);
+    _textArea.setEditable(false);
+    _textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+    
+    final JCheckBox recordBox = new JCheckBox("Record latencies", _recorder.isEnabled());
+    recordBox.addActionListener(e -> _recorder.setEnabled(recordBox.isSelected()));
+    
+    final JButton resetButton = SwingUtils.button("Reset", e -> {
+      _recorder.reset();
+      final PerformanceEventLoop loop = _controller.getEventLoop();
+      if (loop != null)
+        loop.resetMetrics();
+      Metronome.getInstance().getJitter().reset();
+      refresh();
+    });
+    
+    final JPanel south = new JPanel(new BorderLayout());
+    south.add(SwingUtils.buildRow(recordBox, resetButton), BorderLayout.WEST);
+    south.add(SwingUtils.button("Save report...", e -> saveReport()), BorderLayout.EAST);
+    
+    setLayout(new BorderLayout());
+    add(new JScrollPane(_textArea), BorderLayout.CENTER);
+    add(south, BorderLayout.SOUTH);
+    
+    _timer = new Timer(1000, e -> refresh());
+    
+    pack();
+    
+    setTitle("Diagnostics");
+    setLocationRelativeTo(null);
+    SwingUtils.goInvisibleOnClose(this);
+  }
+  
+  @Override
+  public void setVisible(boolean visible) {
+    super.setVisible(visible);
+    if (visible) {
+      refresh();
+      _timer.start();
+    } else {
+      _timer.stop();
+    }
+  }
+  
+  private void refresh() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Active voices: %d%n", Integer.valueOf(_controller.getActiveVoiceCount())));
+    
+    final PerformanceEventLoop loop = _controller.getEventLoop();
+    if (loop != null) {
+      sb.append(String.format("Event loop: depth %d (max %d), %d processed, latency mean %.1fus max %.1fus, %d stalls%n",
+          Integer.valueOf(loop.getQueueDepth()), Integer.valueOf(loop.getMaxQueueDepth()),
+          Long.valueOf(loop.getProcessedCount()),
+          Double.valueOf(loop.getAverageLatencyNanos() / 1000.0), Double.valueOf(loop.getMaxLatencyNanos() / 1000.0),
+          Long.valueOf(loop.getOverflowCount())));
+    }
+    
+    final OutputScheduler scheduler = _cadenzaFrame.getOutputScheduler();
+    if (scheduler != null) {
+      sb.append(String.format("Output: backlog %d messages / %d bytes (max %d), wire delay %dms, %d bytes sent, %d coalesced%n",
+          Integer.valueOf(scheduler.getBacklog()), Integer.valueOf(scheduler.getBacklogBytes()),
+          Integer.valueOf(scheduler.getMaxBacklog()), Long.valueOf(scheduler.getWireDelay(TimeUnit.MILLISECONDS)),
+          Long.valueOf(scheduler.getBytesSent()), Long.valueOf(scheduler.getCoalescedCount())));
+    }
+    
+    final LatencyHistogram jitter = Metronome.getInstance().getJitter();
+    if (jitter.getCount() > 0) {
+      sb.append(String.format("Metronome: %s, %.2f BPM, %d pulses, lateness mean %.1fus p99 %.1fus max %.1fus%n",
+          Metronome.getInstance().getClockSource(),
+          Double.valueOf(Metronome.getInstance().getExactBPM()), Long.valueOf(jitter.getCount()),
+          Double.valueOf(jitter.getMean() / 1000.0), Double.valueOf(jitter.getPercentile(99) / 1000.0),
+          Double.valueOf(jitter.getMax() / 1000.0)));
+    }
+    
+    for (int channel = 0; channel < 16; ++channel) {
+      final CCTracker.Snapshot controls = CCTracker.getInstance().snapshot(channel);
+      final int velocity = VelocityTracker.getInstance().getAverage(channel);
+      if (!controls.isEmpty() || velocity != -1)
+        sb.append(String.format("Input channel %d: average velocity %d, controls %s%n",
+            Integer.valueOf(channel+1), Integer.valueOf(velocity), controls));
+    }
+    
+    sb.append(String.format("%n"));
+    if (_recorder.isEnabled())
+      sb.append(_recorder.buildReport(_data.cues));
+    else
+      sb.append("Latency recording is off");
+    
+    final int caret = _textArea.getCaretPosition();
+    _textArea.setText(sb.toString());
+    _textArea.setCaretPosition(Math.min(caret, _textArea.getDocument().getLength()));
+  }
+  
+  private void saveReport() {
+    File selected = IOUtils.showSaveFileDialog(this, null, ".txt", "Text Files");
+    if (selected == null)
+      return;
+    
+    if (!selected.getName().toLowerCase().endsWith(".txt"))
+      selected = new File(selected.getAbsolutePath() + ".txt");
+    
+    final File file = selected;
+    new Thread(() -> {
+      try {
+        _recorder.writeReport(file, _data.cues);
+      } catch (IOException e) {
+        LOG.error("Error writing latency report", e);
+        SwingUtils.doInSwing(() -> Dialog.error(DiagnosticsWindow.this, "Unable to write report: " + e.getMessage()), false);
+      }
+    }).start();
+  }
+}
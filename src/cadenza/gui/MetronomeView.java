@@ -61,7 +61,7 @@ public class MetronomeView extends JFrame implements MetronomeListener {
     setTitle("Metronome");
     setAlwaysOnTop(true);
     SwingUtils.goInvisibleOnClose(this);
-    Metronome.getInstance().addMetronomeListener(this);
+    Metronome.getInstance().addUIMetronomeListener(this);
   }
 
   @Override
@@ -206,7 +206,7 @@ public class ControlWindow extends JFrame implements MetronomeListener {
   
   @Override
   public void bpmSet(int bpm) {
-    _metronomeLabel.setText("Metronome: " + bpm + " bpm");
+    SwingUtils.doInSwing(() -> _metronomeLabel.setText("Metronome: " + bpm + " bpm"), false);
   }
   
   @Override
@@ -0,0 +1,87 @@
+package cadenza.gui.controlmap;
+
+import java.awt.Component;
+
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+import cadenza.control.midiinput.AcceptsKeyboardInput;
+import cadenza.control.midiinput.MIDIInputControlCenter;
+import cadenza.core.effects.ControlEffect;
+import cadenza.core.effects.ControlEffect.Curve;
+import cadenza.gui.common.ControlCombo;
+import cadenza.preferences.Preferences;
+import common.swing.IntField;
+import common.swing.SimpleGrid;
+import common.swing.VerificationException;
+import common.swing.dialog.OKCancelDialog;
+
+@SuppressWarnings("serial")
+public class ControlEffectEditDialog extends OKCancelDialog implements AcceptsKeyboardInput {
+  private final ControlEffect _effect;
+
+  private ControlCombo _controlCombo;
+  private JComboBox<Curve> _curveCombo;
+  private IntField _lowField;
+  private IntField _highField;
+  private IntField _smoothingField;
+  private IntField _deadbandField;
+  private IntField _intervalField;
+
+  public ControlEffectEditDialog(Component parent, ControlEffect effect) {
+    super(parent);
+    _effect = effect;
+
+    if (Preferences.getMIDIInputOptions().allowMIDIInput())
+      MIDIInputControlCenter.installWindowFocusGrabber(this);
+  }
+
+  @Override
+  protected JComponent buildContent() {
+    _controlCombo = new ControlCombo(_effect == null ? null : Integer.valueOf(_effect.getControl()));
+    _curveCombo = new JComboBox<>(Curve.values());
+    _lowField = new IntField(_effect == null ? 0 : _effect.getLow(), 0, 127);
+    _highField = new IntField(_effect == null ? 127 : _effect.getHigh(), 0, 127);
+    _smoothingField = new IntField(_effect == null ? 0 : _effect.getSmoothingMillis(), 0, Integer.MAX_VALUE);
+    _deadbandField = new IntField(_effect == null ? 0 : _effect.getDeadband(), 0, 127);
+    _intervalField = new IntField(_effect == null ? 0 : _effect.getMinIntervalMillis(), 0, Integer.MAX_VALUE);
+
+    if (_effect != null)
+      _curveCombo.setSelectedItem(_effect.getCurve());
+
+    return new SimpleGrid(new JComponent[][]
+    {
+      { new JLabel("Input control:"),          _controlCombo   },
+      { new JLabel("Curve:"),                  _curveCombo     },
+      { new JLabel("Output at 0:"),            _lowField       },
+      { new JLabel("Output at 127:"),          _highField      },
+      { new JLabel("Smoothing (ms):"),         _smoothingField },
+      { new JLabel("Deadband:"),               _deadbandField  },
+      { new JLabel("Minimum interval (ms):"),  _intervalField  }
+    });
+  }
+
+  @Override
+  protected String declareTitle() {
+    return _effect == null ? "Create Control Effect" : "Edit Control Effect";
+  }
+
+  @Override
+  public void controlReceived(int channel, int ccNumber, int value) {
+    SwingUtilities.invokeLater(() -> _controlCombo.setSelectedIndex(ccNumber));
+  }
+
+  @Override
+  protected void verify() throws VerificationException {
+    if (_controlCombo.getSelectedIndex() == 64)
+      throw new VerificationException("Control effects are not applied to the sustain pedal", _controlCombo);
+  }
+
+  public ControlEffect getEffect() {
+    return new ControlEffect(_controlCombo.getSelectedIndex(), (Curve) _curveCombo.getSelectedItem(),
+        _lowField.getInt(), _highField.getInt(), _smoothingField.getInt(), _deadbandField.getInt(),
+        _intervalField.getInt());
+  }
+}
@@ -0,0 +1,100 @@
+package cadenza.gui.controlmap;
+
+import java.awt.BorderLayout;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.swing.Box;
+import javax.swing.JPanel;
+
+import org.apache.commons.lang3.text.WordUtils;
+
+import cadenza.core.ControlNames;
+import cadenza.core.effects.ControlEffect;
+import cadenza.gui.common.CadenzaTable;
+import cadenza.gui.common.HelpButton;
+import common.swing.dialog.OKCancelDialog;
+import common.swing.table.ListTableModel;
+
+@SuppressWarnings("serial")
+public class ControlEffectPanel extends JPanel {
+  private static final String HELP_TEXT = "<html>Define control effects.<br><br>" +
+      WordUtils.wrap("A control effect shapes the values of an input control change, " +
+      "such as an expression pedal or breath controller.  The curve and range change " +
+      "how the input maps to the output, smoothing ramps the output instead of jumping, " +
+      "and the deadband and minimum interval cut down on how many messages are sent.", 60, "<br>", false) + "<br><br>" +
+      WordUtils.wrap("Control effects apply to the input control number, after the control " +
+      "map.  Patch control effects apply first, then cue, then global.", 60, "<br>", false) + "<br><br>" +
+      WordUtils.wrap("Control effects are not applied to the sustain pedal (CC#64).", 60, "<br>", false);
+
+  private final List<ControlEffect> _effects;
+
+  private final ControlEffectTable _table;
+
+  public ControlEffectPanel(List<ControlEffect> effects) {
+    _effects = new ArrayList<>(effects);
+
+    _table = new ControlEffectTable();
+
+    setLayout(new BorderLayout());
+    add(_table, BorderLayout.CENTER);
+  }
+
+  private class ControlEffectTable extends CadenzaTable<ControlEffect> {
+    public ControlEffectTable() {
+      super(_effects, true, false, null, Box.createHorizontalStrut(16), new HelpButton(HELP_TEXT));
+    }
+
+    @Override
+    protected ListTableModel<ControlEffect> createTableModel() {
+      return new ListTableModel<ControlEffect>() {
+        @Override
+        public String[] declareColumns() {
+          return new String[] {"Input Control Change", "Curve", "Range", "Smoothing", "Deadband", "Interval"};
+        }
+
+        @Override
+        public Object resolveValue(ControlEffect row, int column) {
+          switch (column) {
+            case 0: return row.getControl() + ": " + ControlNames.getName(row.getControl());
+            case 1: return row.getCurve();
+            case 2: return row.getLow() + "-" + row.getHigh();
+            case 3: return row.getSmoothingMillis() == 0 ? "" : row.getSmoothingMillis() + "ms";
+            case 4: return row.getDeadband() == 0 ? "" : String.valueOf(row.getDeadband());
+            case 5: return row.getMinIntervalMillis() == 0 ? "" : row.getMinIntervalMillis() + "ms";
+            default: throw new IllegalStateException("Unknown Column!");
+          }
+        }
+      };
+    }
+
+    @Override
+    protected String declareTypeName() {
+      return "control effect";
+    }
+
+    @Override
+    protected void takeActionOnAdd() {
+      OKCancelDialog.showDialog(new ControlEffectEditDialog(ControlEffectPanel.this, null), dialog -> {
+        _effects.add(dialog.getEffect());
+        _effects.sort(COMPARATOR);
+      });
+    }
+
+    @Override
+    protected void takeActionOnEdit(ControlEffect item) {
+      final int index = _effects.indexOf(item);
+      OKCancelDialog.showDialog(new ControlEffectEditDialog(ControlEffectPanel.this, item), dialog -> {
+        _effects.set(index, dialog.getEffect());
+        _effects.sort(COMPARATOR);
+      });
+    }
+  }
+
+  public List<ControlEffect> getEffects() {
+    return _effects;
+  }
+
+  private static final Comparator<ControlEffect> COMPARATOR = (ce1, ce2) -> ce1.getControl() - ce2.getControl();
+}
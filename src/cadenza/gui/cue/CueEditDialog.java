@@ -28,6 +28,7 @@ import cadenza.core.Song;
 import cadenza.core.patchusage.PatchUsage;
 import cadenza.gui.CadenzaFrame;
 import cadenza.gui.common.LocationField;
+import cadenza.gui.controlmap.ControlEffectPanel;
 import cadenza.gui.controlmap.ControlMapPanel;
 import cadenza.gui.effects.edit.EffectChainViewerEditor;
 import cadenza.gui.patchusage.PatchUsagePanel;
@@ -57,6 +58,7 @@ public class CueEditDialog extends OKCancelDialog implements ControlMapProvider,
   private TriggerPanel _triggerPanel;
   private ControlMapPanel _controlPanel;
   private EffectChainViewerEditor _effectsPanel;
+  private ControlEffectPanel _controlEffectsPanel;
   
   private JCheckBox _disableGlobalTriggersCheckBox;
   private JCheckBox _disableGlobalControlCheckBox;
@@ -95,6 +97,7 @@ public class CueEditDialog extends OKCancelDialog implements ControlMapProvider,
     _triggerPanel = new TriggerPanel(_cue, _data);
     _controlPanel = new ControlMapPanel(_cue);
     _effectsPanel = new EffectChainViewerEditor(_cue.effects, true);
+    _controlEffectsPanel = new ControlEffectPanel(_cue.controlEffects);
     
     _disableGlobalTriggersCheckBox = new JCheckBox("Disable global triggers", _cue.disableGlobalTriggers);
     _disableGlobalControlCheckBox = new JCheckBox("Disable global control map", _cue.disableGlobalControlMap);
@@ -111,6 +114,7 @@ public class CueEditDialog extends OKCancelDialog implements ControlMapProvider,
     final JPanel pp = new JPanel(new BorderLayout());
     pp.add(_disableGlobalEffectsCheckBox, BorderLayout.NORTH);
     pp.add(_effectsPanel, BorderLayout.CENTER);
+    pp.add(_controlEffectsPanel, BorderLayout.SOUTH);
     
     final CollapsiblePanel collapsePatches = new CollapsiblePanel(
         _patchUsagePanel, Orientation.VERTICAL, Icon.ARROW,"Patches", null);
@@ -123,7 +127,7 @@ public class CueEditDialog extends OKCancelDialog implements ControlMapProvider,
     
     collapseTrigger.setExpanded(!_cue.triggers.isEmpty() || _cue.disableGlobalTriggers);
     collapseControl.setExpanded(!_cue.getControlMap().isEmpty() || _cue.disableGlobalControlMap);
-    collapseEffects.setExpanded(!_cue.effects.isEmpty() || _cue.disableGlobalEffects);
+    collapseEffects.setExpanded(!_cue.effects.isEmpty() || !_cue.controlEffects.isEmpty() || _cue.disableGlobalEffects);
     
     final Box measure = Box.createHorizontalBox();
     measure.add(new JLabel("Measure: "));
@@ -165,6 +169,7 @@ public class CueEditDialog extends OKCancelDialog implements ControlMapProvider,
     _cue.setControlMap(_controlPanel.getMapping());
     _cue.disableGlobalControlMap = _disableGlobalControlCheckBox.isSelected();
     _cue.effects = _effectsPanel.getEffects();
+    _cue.controlEffects = _controlEffectsPanel.getEffects();
     _cue.disableGlobalEffects = _disableGlobalEffectsCheckBox.isSelected();
   }
   
@@ -0,0 +1,114 @@
+package cadenza.gui.effects.edit;
+
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.text.DecimalFormat;
+import java.util.function.IntConsumer;
+
+import javax.swing.BoxLayout;
+import javax.swing.GroupLayout.Alignment;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JSlider;
+
+import cadenza.core.effects.DynamicCompressor;
+import cadenza.gui.effects.view.DynamicCompressorView;
+import common.swing.DoubleField;
+import common.swing.IntField;
+import common.swing.SimpleGrid;
+import common.swing.SwingUtils;
+
+@SuppressWarnings("serial")
+public class DynamicCompressorEditor extends EffectEditor {
+  private static final DecimalFormat RATIO_FORMAT = new DecimalFormat("0.000");
+  private static final int MAX_ATTACK = 2000;
+  private static final int MAX_RELEASE = 5000;
+  
+  private final DynamicCompressor _compressor;
+  private final DynamicCompressorView _compressorView;
+  
+  private final DoubleField _ratioField;
+  
+  public DynamicCompressorEditor(DynamicCompressor initial) {
+    super();
+    _compressor = (DynamicCompressor) initial.copy();
+    _compressorView = new DynamicCompressorView(_compressor);
+    
+    _ratioField = new DoubleField(1.0, 1.0, Double.POSITIVE_INFINITY);
+    _ratioField.setText(RATIO_FORMAT.format(initial.getRatio()));
+    _ratioField.setColumns(5);
+    SwingUtils.freezeSize(_ratioField);
+    _ratioField.addActionListener(e -> updateRatio());
+    _ratioField.addFocusListener(new FocusAdapter() {
+      @Override
+      public void focusLost(FocusEvent e) {
+        updateRatio();
+      }
+    });
+    
+    final SliderField threshold = new SliderField(0, 127, initial.getThreshold(), _compressor::setThreshold);
+    final SliderField knee = new SliderField(0, 64, initial.getKnee(), _compressor::setKnee);
+    final SliderField makeup = new SliderField(0, 64, initial.getMakeupGain(), _compressor::setMakeupGain);
+    final SliderField attack = new SliderField(0, MAX_ATTACK, initial.getAttackMillis(), _compressor::setAttackMillis);
+    final SliderField release = new SliderField(0, MAX_RELEASE, initial.getReleaseMillis(), _compressor::setReleaseMillis);
+    
+    setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+    add(_compressorView);
+    add(new SimpleGrid(new JComponent[][]
+    {
+      { new JLabel("  Threshold:"),   threshold.slider, threshold.field },
+      { new JLabel("Ratio:"),         new JLabel(),     _ratioField     },
+      { new JLabel("Knee:"),          knee.slider,      knee.field      },
+      { new JLabel("Makeup gain:"),   makeup.slider,    makeup.field    },
+      { new JLabel("Attack (ms):"),   attack.slider,    attack.field    },
+      { new JLabel("Release (ms):"),  release.slider,   release.field   }
+    }, Alignment.CENTER, Alignment.TRAILING));
+  }
+  
+  @Override
+  public DynamicCompressor getEffect() {
+    return _compressor;
+  }
+  
+  private void updateRatio() {
+    double ratio = _ratioField.getDouble();
+    if (ratio < 1.0) {
+      ratio = 1.0;
+      _ratioField.setText("1.0");
+    }
+    _compressor.setRatio(ratio);
+    _compressorView.repaint();
+  }
+  
+  /**
+   * A slider and a field kept in sync, setting a value of the compressor
+   */
+  private class SliderField {
+    final JSlider slider;
+    final IntField field;
+    
+    SliderField(int min, int max, int initial, IntConsumer setter) {
+      slider = new JSlider(min, max, initial);
+      field = new IntField(initial, min, max);
+      field.setColumns(5);
+      SwingUtils.freezeSize(field);
+      
+      final IntConsumer update = value -> {
+        final int clamped = Math.max(min, Math.min(max, value));
+        slider.setValue(clamped);
+        field.setText(String.valueOf(clamped));
+        setter.accept(clamped);
+        _compressorView.repaint();
+      };
+      
+      slider.addChangeListener(e -> update.accept(slider.getValue()));
+      field.addActionListener(e -> update.accept(field.getInt()));
+      field.addFocusListener(new FocusAdapter() {
+        @Override
+        public void focusLost(FocusEvent e) {
+          update.accept(field.getInt());
+        }
+      });
+    }
+  }
+}
@@ -24,6 +24,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
 
 import cadenza.core.effects.Compressor;
+import cadenza.core.effects.DynamicCompressor;
 import cadenza.core.effects.Effect;
 import cadenza.core.effects.GraphicEQ;
 import cadenza.core.effects.ParametricEQ;
@@ -180,6 +181,7 @@ public class EffectChainViewerEditor extends JPanel {
       
       _tabbed = new JTabbedPane();
       _tabbed.addTab("Compressor/Limiter", new CompressorEditor(new Compressor(80, 2.5)));
+      _tabbed.addTab("Dynamic Compressor", new DynamicCompressorEditor(new DynamicCompressor(80, 2.5, 16, 0, 50, 500)));
       _tabbed.addTab("Parametric EQ", new ParametricEQEditor(new ParametricEQ(Collections.singletonList(band))));
       _tabbed.addTab("128-Band Graphic EQ", new GraphicEQEditor(new GraphicEQ(new int[128])));
       
@@ -0,0 +1,91 @@
+package cadenza.gui.effects.view;
+
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.util.Optional;
+
+import cadenza.core.effects.DynamicCompressor;
+import cadenza.gui.effects.edit.DynamicCompressorEditor;
+import cadenza.gui.effects.edit.EffectEditor;
+import common.Utils;
+import common.midi.MidiUtilities;
+import common.swing.GraphicsUtils;
+import common.swing.SwingUtils;
+import common.swing.Tooltip;
+
+/**
+ * Shows the static curve of a {@link DynamicCompressor}, which is how it
+ * responds to a steady level of playing
+ * 
+ * @author Matt Putnam
+ */
+@SuppressWarnings("serial")
+public class DynamicCompressorView extends EffectView {
+  private static final int SIZE = 128 + MARGIN + MARGIN;
+  
+  private final DynamicCompressor _compressor;
+  
+  public DynamicCompressorView(DynamicCompressor compressor) {
+    super();
+    _compressor = compressor;
+    
+    SwingUtils.freezeSize(this, SIZE, SIZE);
+    Tooltip.registerTooltip(this, e -> {
+      final int x = e.getPoint().x;
+      if (x >= MARGIN && x < SIZE-MARGIN) {
+        final int velocity = x - MARGIN;
+        final int output = MidiUtilities.clamp(_compressor.process(0, velocity));
+        return Optional.of(Utils.renderForSwingHTML(_compressor.toString() +
+            "\nSteady input=" + velocity + " / Output=" + output));
+      } else {
+        return Optional.empty();
+      }
+    });
+  }
+  
+  @Override
+  protected void paintComponent(Graphics g) {
+    final Graphics2D g2d = (Graphics2D) g;
+    
+    g2d.setColor(BACKGROUND);
+    g2d.fillRect(0, 0, SIZE, SIZE);
+    
+    g2d.setColor(AXES);
+    g2d.drawLine(MARGIN, MARGIN, MARGIN, SIZE-MARGIN);
+    g2d.drawLine(MARGIN, SIZE-MARGIN, SIZE-MARGIN, SIZE-MARGIN);
+    
+    g2d.setColor(DATA);
+    final int[] xPoints = new int[128];
+    final int[] yPoints = new int[128];
+    for (int velocity = 0; velocity < 128; ++velocity) {
+      xPoints[velocity] = MARGIN + velocity;
+      yPoints[velocity] = SIZE - MARGIN - MidiUtilities.clamp(_compressor.process(0, velocity));
+    }
+    g2d.drawPolyline(xPoints, yPoints, 128);
+    
+    if (_velocity != -1) {
+      g2d.setColor(_velocity > _compressor.getThreshold() ? INPUT_GR : INPUT);
+      g2d.drawLine(MARGIN+_velocity, SIZE-MARGIN,
+                   MARGIN+_velocity, SIZE-MARGIN-MidiUtilities.clamp(_compressor.process(0, _velocity)));
+    }
+    
+    g2d.setColor(AXES);
+    g2d.setFont(AXIS_FONT);
+    final FontMetrics metrics = g2d.getFontMetrics();
+    int width = (int) metrics.getStringBounds(AXIS_LABEL_INPUT_VELOCITY, g2d).getWidth();
+    g2d.drawString(AXIS_LABEL_INPUT_VELOCITY, SIZE-MARGIN-width, SIZE-3);
+    
+    final AffineTransform saved = g2d.getTransform();
+    g2d.rotate(-Math.PI/2, 0, SIZE);
+    width = (int) metrics.getStringBounds(AXIS_LABEL_OUTPUT_VELOCITY, g2d).getWidth();
+    GraphicsUtils.drawString(g2d, AXIS_LABEL_OUTPUT_VELOCITY, SIZE-MARGIN-width, SIZE+10);
+    g2d.setTransform(saved);
+  }
+  
+  @Override
+  public EffectEditor createEditor() {
+    return new DynamicCompressorEditor(_compressor);
+  }
+}
@@ -35,6 +35,7 @@ import cadenza.gui.common.HelpButton;
 import cadenza.gui.common.NoteRangeEditPanel;
 import cadenza.gui.common.TranspositionEditor;
 import cadenza.gui.common.VolumeField;
+import cadenza.gui.controlmap.ControlEffectPanel;
 import cadenza.gui.effects.edit.EffectChainViewerEditor;
 import cadenza.gui.patch.PatchSelector;
 import cadenza.gui.patchusage.editor.CustomScalePatchUsageEditor;
@@ -58,6 +59,7 @@ public class PatchUsageEditDialog extends OKCancelDialog implements AcceptsKeybo
   private VolumeField _volumeField;
   private NoteRangeEditPanel _noteRangeSelector;
   private EffectChainViewerEditor _effectPanel;
+  private ControlEffectPanel _controlEffectPanel;
   
   private JTabbedPane _tabbedPane;
   private SimplePatchUsagePane _simplePane;
@@ -88,10 +90,12 @@ public class PatchUsageEditDialog extends OKCancelDialog implements AcceptsKeybo
     _volumeField = new VolumeField(_startingPatchUsage.volume);
     _noteRangeSelector = new NoteRangeEditPanel(_data.keyboards, _startingPatchUsage.getNoteRange(), true);
     _effectPanel = new EffectChainViewerEditor(_startingPatchUsage.effects, true);
+    _controlEffectPanel = new ControlEffectPanel(_startingPatchUsage.controlEffects);
     
     _patchSelector.accessCombo().addActionListener(e -> _volumeField.setVolume(_patchSelector.getSelectedPatch().defaultVolume));
     _noteRangeSelector.setBorder(BorderFactory.createTitledBorder("Note Range"));
     _effectPanel.setBorder(BorderFactory.createTitledBorder("Effects"));
+    _controlEffectPanel.setBorder(BorderFactory.createTitledBorder("Control Effects"));
     
     _tabbedPane = new JTabbedPane();
     _simplePane = new SimplePatchUsagePane();
@@ -129,6 +133,7 @@ public class PatchUsageEditDialog extends OKCancelDialog implements AcceptsKeybo
     box.add(SwingUtils.buildCenteredRow(_patchSelector, new JLabel("Volume: "), _volumeField));
     if (_allowRangeEdit) box.add(_noteRangeSelector);
     box.add(_effectPanel);
+    box.add(_controlEffectPanel);
     box.add(_tabbedPane);
     return box;
   }
@@ -168,6 +173,7 @@ public class PatchUsageEditDialog extends OKCancelDialog implements AcceptsKeybo
     }
     
     newPatchUsage.effects = _effectPanel.getEffects();
+    newPatchUsage.controlEffects = _controlEffectPanel.getEffects();
     return newPatchUsage;
   }
   
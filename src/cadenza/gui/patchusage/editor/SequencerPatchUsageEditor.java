@@ -3,6 +3,7 @@ package cadenza.gui.patchusage.editor;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.util.ArrayList;
+import java.util.stream.Collectors;
 
 import javax.swing.JPanel;
 import javax.swing.JTable;
@@ -81,7 +82,9 @@ public class SequencerPatchUsageEditor extends JPanel {
           switch (column) {
             case 0: return row.getName();
             case 1: return row; // handled by renderer
-            case 2: return row.getSubdivision();
+            case 2: return row.getLanes().stream()
+                                     .map(lane -> lane.getSubdivision().toString())
+                                     .collect(Collectors.joining(", "));
             case 3: final Scale scale = row.getScale();
                 return scale == null ? "None-chromatic" : scale.getName();
             default: throw new IllegalStateException("Unknown Column!");
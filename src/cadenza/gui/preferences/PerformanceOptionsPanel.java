@@ -0,0 +1,83 @@
+package cadenza.gui.preferences;
+
+import java.awt.BorderLayout;
+
+import javax.swing.Box;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+import cadenza.preferences.PerformanceOptions;
+
+import common.swing.IntField;
+import common.swing.SwingUtils;
+
+@SuppressWarnings("serial")
+public class PerformanceOptionsPanel extends JPanel {
+  private final JCheckBox _eventLoopBox;
+  private final IntField _queueCapacityField;
+  
+  private final IntField _lookaheadField;
+  private final IntField _lookaheadBudgetField;
+  
+  private final JCheckBox _outputSchedulerBox;
+  private final IntField _outputRateField;
+  
+  private final JCheckBox _clockInBox;
+  private final JCheckBox _clockOutBox;
+  
+  public PerformanceOptionsPanel() {
+    _eventLoopBox = new JCheckBox("Process performance input on a dedicated thread");
+    _queueCapacityField = new IntField(PerformanceOptions.DEFAULT_EVENT_QUEUE_CAPACITY, 16, 1 << 20);
+    
+    _lookaheadField = new IntField(0, 0, 2);
+    _lookaheadBudgetField = new IntField(PerformanceOptions.DEFAULT_LOOKAHEAD_BUDGET, 1, 16);
+    
+    _outputSchedulerBox = new JCheckBox("Pace MIDI output to the port's bandwidth, merging controller bursts");
+    _outputRateField = new IntField(PerformanceOptions.DEFAULT_OUTPUT_RATE, 0, 1000000);
+    
+    _clockInBox = new JCheckBox("Follow MIDI clock from the input device for the metronome");
+    _clockOutBox = new JCheckBox("Send MIDI clock to the output device while the metronome runs");
+    
+    _outputSchedulerBox.addActionListener(e -> _outputRateField.setEnabled(_outputSchedulerBox.isSelected()));
+    _eventLoopBox.addActionListener(e -> _queueCapacityField.setEnabled(_eventLoopBox.isSelected()));
+    
+    final Box box = Box.createVerticalBox();
+    box.add(SwingUtils.buildLeftAlignedRow(_eventLoopBox));
+    box.add(SwingUtils.buildLeftAlignedRow(Box.createHorizontalStrut(16), new JLabel("Event queue capacity: "), _queueCapacityField));
+    box.add(Box.createVerticalStrut(16));
+    box.add(SwingUtils.buildLeftAlignedRow(new JLabel("Preload patches for the next "), _lookaheadField, new JLabel(" cues (0-2) onto idle channels")));
+    box.add(SwingUtils.buildLeftAlignedRow(Box.createHorizontalStrut(16), new JLabel("Maximum channels preloaded per synthesizer per cue: "), _lookaheadBudgetField));
+    box.add(Box.createVerticalStrut(16));
+    box.add(SwingUtils.buildLeftAlignedRow(_outputSchedulerBox));
+    box.add(SwingUtils.buildLeftAlignedRow(Box.createHorizontalStrut(16), new JLabel("Output bytes per second (3125 for 5-pin DIN, 0 for unlimited): "), _outputRateField));
+    box.add(Box.createVerticalStrut(16));
+    box.add(SwingUtils.buildLeftAlignedRow(_clockInBox));
+    box.add(SwingUtils.buildLeftAlignedRow(_clockOutBox));
+    box.add(Box.createVerticalStrut(16));
+    box.add(SwingUtils.buildLeftAlignedRow(new JLabel("These options take effect for newly opened files")));
+    
+    setLayout(new BorderLayout());
+    add(SwingUtils.hugNorth(box), BorderLayout.WEST);
+  }
+  
+  public void setSelectedOptions(PerformanceOptions options) {
+    _eventLoopBox.setSelected(options.useEventLoop());
+    _queueCapacityField.setInt(options.getEventQueueCapacity());
+    _queueCapacityField.setEnabled(options.useEventLoop());
+    _lookaheadField.setInt(options.getLookaheadCues());
+    _lookaheadBudgetField.setInt(options.getLookaheadBudget());
+    _outputSchedulerBox.setSelected(options.useOutputScheduler());
+    _outputRateField.setInt(options.getOutputRate());
+    _outputRateField.setEnabled(options.useOutputScheduler());
+    _clockInBox.setSelected(options.followExternalClock());
+    _clockOutBox.setSelected(options.sendClock());
+  }
+  
+  public PerformanceOptions getSelectedOptions() {
+    return new PerformanceOptions(_eventLoopBox.isSelected(), _queueCapacityField.getInt(),
+                                  _lookaheadField.getInt(), _lookaheadBudgetField.getInt(),
+                                  _outputSchedulerBox.isSelected(), _outputRateField.getInt(),
+                                  _clockInBox.isSelected(), _clockOutBox.isSelected());
+  }
+}
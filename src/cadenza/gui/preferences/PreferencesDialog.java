@@ -19,6 +19,7 @@ import cadenza.gui.common.SynthConfigPanel;
 import cadenza.gui.keyboard.KeyboardEditPanel;
 import cadenza.preferences.MIDIInputOptions;
 import cadenza.preferences.PatchSearchOptions;
+import cadenza.preferences.PerformanceOptions;
 import cadenza.preferences.PreferencesLoader;
 
 import common.io.PropertiesFileReader;
@@ -41,6 +42,7 @@ public class PreferencesDialog extends OKCancelDialog {
   private DefaultMIDIPortsPanel _midiPortsPanel;
   private MIDIInputPrefPanel _midiInputPrefPanel;
   private PatchSearchOptionsPanel _patchSearchOptionsPanel;
+  private PerformanceOptionsPanel _performanceOptionsPanel;
 
   public PreferencesDialog(Component parent) {
     super(parent);
@@ -53,12 +55,13 @@ public class PreferencesDialog extends OKCancelDialog {
     _midiPortsPanel = new DefaultMIDIPortsPanel();
     _midiInputPrefPanel = new MIDIInputPrefPanel();
     _patchSearchOptionsPanel = new PatchSearchOptionsPanel();
+    _performanceOptionsPanel = new PerformanceOptionsPanel();
     
     loadPreferences();
     
     return new CardPanel(
-        Arrays.asList(SwingUtils.hugNorth(_defaultKeyboardPanel), _defaultSynthPanel, _midiPortsPanel, _midiInputPrefPanel, _patchSearchOptionsPanel),
-        Arrays.asList("Default Keyboard", "Default Synthesizer", "Default MIDI Ports", "MIDI Input Preferences", "Patch Search Options"));
+        Arrays.asList(SwingUtils.hugNorth(_defaultKeyboardPanel), _defaultSynthPanel, _midiPortsPanel, _midiInputPrefPanel, _patchSearchOptionsPanel, _performanceOptionsPanel),
+        Arrays.asList("Default Keyboard", "Default Synthesizer", "Default MIDI Ports", "MIDI Input Preferences", "Patch Search Options", "Performance"));
   }
   
   private void loadPreferences() {
@@ -76,6 +79,7 @@ public class PreferencesDialog extends OKCancelDialog {
       final String[] midiPorts = PreferencesLoader.buildDefaultMIDIPorts(_preferences);
       final MIDIInputOptions inputPrefs = PreferencesLoader.buildMIDIInputOptions(_preferences);
       final PatchSearchOptions patchSearchOptions = PreferencesLoader.buildPatchSearchOptions(_preferences);
+      final PerformanceOptions performanceOptions = PreferencesLoader.buildPerformanceOptions(_preferences);
       
       SwingUtils.doInSwing(() -> {
         _defaultKeyboardPanel.match(kbd);
@@ -83,6 +87,7 @@ public class PreferencesDialog extends OKCancelDialog {
         _midiPortsPanel.match(midiPorts);
         _midiInputPrefPanel.match(inputPrefs);
         _patchSearchOptionsPanel.setSelectedOptions(patchSearchOptions);
+        _performanceOptionsPanel.setSelectedOptions(performanceOptions);
       }, true);
     }).start();
   }
@@ -94,6 +99,7 @@ public class PreferencesDialog extends OKCancelDialog {
       PreferencesLoader.commitDefaultMIDIPorts(_preferences, _midiPortsPanel.getSelectedPorts());
       PreferencesLoader.commitInputOptions(_preferences, _midiInputPrefPanel.getSelectedOptions());
       PreferencesLoader.commitPatchSearchOptions(_preferences, _patchSearchOptionsPanel.getSelectedOptions());
+      PreferencesLoader.commitPerformanceOptions(_preferences, _performanceOptionsPanel.getSelectedOptions());
       
       try {
         PreferencesLoader.writePreferences(_preferences);
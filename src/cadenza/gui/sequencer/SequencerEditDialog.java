@@ -3,6 +3,7 @@ package cadenza.gui.sequencer;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.FlowLayout;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.Box;
@@ -12,12 +13,13 @@ import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 
 import cadenza.core.Scale;
-import cadenza.core.metronome.Metronome.Subdivision;
 import cadenza.core.sequencer.Sequencer;
 import cadenza.core.sequencer.Sequencer.NoteChangeBehavior;
+import cadenza.core.sequencer.SequencerLane;
 import cadenza.gui.common.ScaleSelector;
 import common.swing.IntField;
 import common.swing.SwingUtils;
@@ -38,13 +40,13 @@ public class SequencerEditDialog extends OKCancelDialog {
   private final Sequencer _initial;
   
   private JTextField _nameField;
-  private JComboBox<Subdivision> _subdivisionCombo;
   private JComboBox<NoteChangeBehavior> _noteChangeCombo;
   private JCheckBox _startOnDownbeatBox;
   
   private ScaleSelector _scaleSelector;
   
-  private SequencerGridEditPanel _gridPanel;
+  private JTabbedPane _laneTabs;
+  private List<SequencerGridEditPanel> _gridPanels;
   
   private IntField _columnsToAddField;
   
@@ -58,19 +60,19 @@ public class SequencerEditDialog extends OKCancelDialog {
   @Override
   protected JComponent buildContent() {
     _nameField = new JTextField();
-    _subdivisionCombo = new JComboBox<>(Subdivision.values());
     _noteChangeCombo = new JComboBox<>(NoteChangeBehavior.values());
     _startOnDownbeatBox = new JCheckBox("Start on a downbeat");
     
     _scaleSelector = new ScaleSelector(SCALES, NAMES, _initial == null ? null : _initial.getScale(), "Chromatic");
     
+    _laneTabs = new JTabbedPane();
+    _gridPanels = new ArrayList<>();
     if (_initial == null) {
-      _gridPanel = new SequencerGridEditPanel(Sequencer.DEFAULT);
+      addLane(Sequencer.DEFAULT.getLanes().get(0));
     } else {
-      _gridPanel = new SequencerGridEditPanel(_initial);
+      _initial.getLanes().forEach(this::addLane);
       
       _nameField.setText(_initial.getName());
-      _subdivisionCombo.setSelectedItem(_initial.getSubdivision());
       _noteChangeCombo.setSelectedItem(_initial.getNoteChangeBehavior());
       _startOnDownbeatBox.setSelected(_initial.isStartOnDownbeat());
     }
@@ -81,7 +83,6 @@ public class SequencerEditDialog extends OKCancelDialog {
     
     final JPanel north = new JPanel(new FlowLayout());
     north.add(new JLabel("Name: ")); north.add(_nameField);
-    north.add(new JLabel(" Subdivision: ")); north.add(_subdivisionCombo);
     north.add(new JLabel(" On note change: ")); north.add(_noteChangeCombo);
     north.add(_startOnDownbeatBox);
     
@@ -90,30 +91,58 @@ public class SequencerEditDialog extends OKCancelDialog {
     west.add(_scaleSelector);
     
     final Box east = Box.createVerticalBox();
-    east.add(SwingUtils.buildLeftAlignedRow(SwingUtils.button("Add columns: ", e -> _gridPanel.addColumns(_columnsToAddField.getInt())), _columnsToAddField));
-    east.add(SwingUtils.hugWest(SwingUtils.button("Trim unused columns", e -> _gridPanel.trimColumns())));
+    east.add(SwingUtils.buildLeftAlignedRow(SwingUtils.button("Add columns: ", e -> selectedGridPanel().addColumns(_columnsToAddField.getInt())), _columnsToAddField));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Trim unused columns", e -> selectedGridPanel().trimColumns())));
     east.add(Box.createVerticalStrut(24));
-    east.add(SwingUtils.hugWest(SwingUtils.button("Add row to top", e -> _gridPanel.addRowToTop())));
-    east.add(SwingUtils.hugWest(SwingUtils.button("Add row to bottom", e -> _gridPanel.addRowToBottom())));
-    east.add(SwingUtils.hugWest(SwingUtils.button("Trim unused rows", e -> _gridPanel.trimUnusedRows())));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Add row to top", e -> selectedGridPanel().addRowToTop())));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Add row to bottom", e -> selectedGridPanel().addRowToBottom())));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Trim unused rows", e -> selectedGridPanel().trimUnusedRows())));
+    east.add(Box.createVerticalStrut(24));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Add lane", e -> {
+      addLane(Sequencer.DEFAULT.getLanes().get(0));
+      _laneTabs.setSelectedIndex(_gridPanels.size()-1);
+    })));
+    east.add(SwingUtils.hugWest(SwingUtils.button("Remove lane", e -> removeSelectedLane())));
     
     final JPanel content = new JPanel(new BorderLayout());
     content.add(SwingUtils.hugNorth(west), BorderLayout.WEST);
-    content.add(new JScrollPane(_gridPanel), BorderLayout.CENTER);
+    content.add(_laneTabs, BorderLayout.CENTER);
     content.add(SwingUtils.hugNorth(east), BorderLayout.EAST);
     content.add(north, BorderLayout.NORTH);
     return content;
   }
   
+  private void addLane(SequencerLane lane) {
+    final SequencerGridEditPanel gridPanel = new SequencerGridEditPanel(lane);
+    _gridPanels.add(gridPanel);
+    _laneTabs.addTab("Lane " + _gridPanels.size(), new JScrollPane(gridPanel));
+  }
+  
+  private void removeSelectedLane() {
+    if (_gridPanels.size() == 1)
+      return;
+    
+    final int selected = _laneTabs.getSelectedIndex();
+    _gridPanels.remove(selected);
+    _laneTabs.removeTabAt(selected);
+    for (int i = 0; i < _gridPanels.size(); ++i)
+      _laneTabs.setTitleAt(i, "Lane " + (i+1));
+  }
+  
+  private SequencerGridEditPanel selectedGridPanel() {
+    return _gridPanels.get(_laneTabs.getSelectedIndex());
+  }
+  
   @Override
   protected String declareTitle() {
     return _initial == null ? "Create Sequencer" : "Edit Sequencer";
   }
   
   public Sequencer getSequencer() {
-    return new Sequencer(_nameField.getText().trim(), _gridPanel.getGrid(),
-        _gridPanel.getIntervals(), _scaleSelector.getSelectedScale(),
-        (Subdivision) _subdivisionCombo.getSelectedItem(),
+    final List<SequencerLane> lanes = new ArrayList<>(_gridPanels.size());
+    _gridPanels.forEach(panel -> lanes.add(panel.getLane()));
+    return new Sequencer(_nameField.getText().trim(), lanes,
+        _scaleSelector.getSelectedScale(),
         (NoteChangeBehavior) _noteChangeCombo.getSelectedItem(),
         _startOnDownbeatBox.isSelected());
   }
@@ -122,18 +151,12 @@ public class SequencerEditDialog extends OKCancelDialog {
   protected void verify() throws VerificationException {
     if (_nameField.getText().trim().isEmpty())
       throw new VerificationException("Please enter a name", _nameField);
-    if (_subdivisionCombo.getSelectedIndex() == -1)
-      throw new VerificationException("Please select a subdivision", _subdivisionCombo);
     
-    final boolean[][] grid = _gridPanel.getGrid();
     boolean found = false;
-    outer:
-    for (int row = 0; row < grid.length; ++row) {
-      for (int col = 0; col < grid[row].length; ++col) {
-        if (grid[row][col]) {
-          found = true;
-          break outer;
-        }
+    for (final SequencerGridEditPanel panel : _gridPanels) {
+      if (!panel.isEmpty()) {
+        found = true;
+        break;
       }
     }
     
@@ -2,45 +2,75 @@ package cadenza.gui.sequencer;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.FlowLayout;
+import java.awt.Graphics;
 import java.awt.event.InputEvent;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.MouseInputAdapter;
 
-import cadenza.core.sequencer.Sequencer;
+import cadenza.core.metronome.Metronome.Subdivision;
+import cadenza.core.sequencer.SequencerLane;
 
 import common.swing.SimpleGrid;
 import common.swing.SwingUtils;
+import common.swing.dialog.OKCancelDialog;
 
+/**
+ * Edits one {@link SequencerLane}.  Clicking (or dragging across) a step
+ * turns it on or off; right clicking an on step edits its velocity, gate
+ * length, probability and tie.
+ * 
+ * @author Matt Putnam
+ */
 @SuppressWarnings("serial")
 public class SequencerGridEditPanel extends JPanel {
   private static final Color ON = Color.GREEN;
   private static final Color OFF = Color.RED;
   private static final int PREF_SIZE = new JSpinner().getPreferredSize().height;
   
+  /** The step a newly turned on cell gets */
+  private static final int DEFAULT_STEP = SequencerLane.step(127, SequencerLane.MAX_GATE, 100, false);
+  
+  private final JComboBox<Subdivision> _subdivisionCombo;
+  private final JSpinner _swingSpinner;
+  
   private JPanel _content;
   private JComponent[][] _grid;
   
-  public SequencerGridEditPanel(Sequencer sequencer) {
-    _grid = new JComponent[sequencer.getNotes().length][sequencer.getLength()+1];
-    for (int note = 0; note < sequencer.getNotes().length; ++note) {
-      final JSpinner spinner = new JSpinner(new SpinnerNumberModel(sequencer.getNotes()[note], -64, 64, 1));
+  public SequencerGridEditPanel(SequencerLane lane) {
+    _grid = new JComponent[lane.getRowCount()][lane.getLength()+1];
+    for (int note = 0; note < lane.getRowCount(); ++note) {
+      final JSpinner spinner = new JSpinner(new SpinnerNumberModel(lane.getNotes()[note], -64, 64, 1));
       SwingUtils.freezeSize(spinner);
       _grid[note][0] = spinner;
       
-      for (int index = 0; index < sequencer.getLength(); ++index)
-        _grid[note][index+1] = new NotePanel(sequencer.isOn(note, index));
+      for (int index = 0; index < lane.getLength(); ++index)
+        _grid[note][index+1] = new NotePanel(lane.getStep(note, index));
     }
     _content = new SimpleGrid(_grid);
     
+    _subdivisionCombo = new JComboBox<>(Subdivision.values());
+    _subdivisionCombo.setSelectedItem(lane.getSubdivision());
+    _swingSpinner = new JSpinner(new SpinnerNumberModel(lane.getSwing(), SequencerLane.MIN_SWING, SequencerLane.MAX_SWING, 1));
+    
+    final JPanel north = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    north.add(new JLabel("Subdivision: ")); north.add(_subdivisionCombo);
+    north.add(new JLabel(" Swing %: ")); north.add(_swingSpinner);
+    
     setLayout(new BorderLayout());
+    add(north, BorderLayout.NORTH);
     add(_content, BorderLayout.CENTER);
   }
   
@@ -52,7 +82,7 @@ public class SequencerGridEditPanel extends JPanel {
         newGrid[note][index] = _grid[note][index];
       }
       for (; index < _grid[0].length + numToAdd; ++index) {
-        newGrid[note][index] = new NotePanel(false);
+        newGrid[note][index] = new NotePanel(SequencerLane.OFF);
       }
     }
     
@@ -94,7 +124,7 @@ public class SequencerGridEditPanel extends JPanel {
     // new row:
     newGrid[0][0] = spinner;
     for (int index = 1; index < _grid[0].length; ++index)
-      newGrid[0][index] = new NotePanel(false);
+      newGrid[0][index] = new NotePanel(SequencerLane.OFF);
     
     // existing rows:
     for (int note = 0; note < _grid.length; ++note)
@@ -116,7 +146,7 @@ public class SequencerGridEditPanel extends JPanel {
     // new row:
     newGrid[_grid.length][0] = spinner;
     for (int index = 1; index < _grid[0].length; ++index)
-      newGrid[_grid.length][index] = new NotePanel(false);
+      newGrid[_grid.length][index] = new NotePanel(SequencerLane.OFF);
     
     for (int note = 0; note < _grid.length; ++note)
       for (int index = 0; index < _grid[0].length; ++index)
@@ -165,7 +195,7 @@ public class SequencerGridEditPanel extends JPanel {
   public void clear() {
     for (int note = 0; note < _grid.length; ++note) {
       for (int index = 1; index < _grid[note].length; ++index) {
-        ((NotePanel) _grid[note][index]).setOn(false);
+        ((NotePanel) _grid[note][index]).setStep(SequencerLane.OFF);
       }
     }
   }
@@ -178,55 +208,123 @@ public class SequencerGridEditPanel extends JPanel {
     return result;
   }
   
-  public boolean[][] getGrid() {
-    final boolean[][] result = new boolean[_grid.length][_grid[0].length-1];
+  public boolean isEmpty() {
+    for (int note = 0; note < _grid.length; ++note)
+      for (int index = 1; index < _grid[note].length; ++index)
+        if (((NotePanel) _grid[note][index]).isOn())
+          return false;
+    return true;
+  }
+  
+  public SequencerLane getLane() {
+    final int[][] steps = new int[_grid.length][_grid[0].length-1];
     for (int note = 0; note < _grid.length; ++note) {
       for (int index = 1; index < _grid[0].length;  ++index) {
-        result[note][index-1] = ((NotePanel) _grid[note][index]).isOn();
+        steps[note][index-1] = ((NotePanel) _grid[note][index]).getStep();
       }
     }
-    return result;
+    return new SequencerLane(getIntervals(), (Subdivision) _subdivisionCombo.getSelectedItem(),
+        ((Integer) _swingSpinner.getValue()).intValue(), steps);
   }
   
   private static class NotePanel extends JPanel {
-    private boolean _isOn;
+    private int _step;
     
-    public NotePanel(boolean isOn) {
-      _isOn = isOn;
+    public NotePanel(int step) {
+      _step = step;
       
       SwingUtils.freezeSize(this, PREF_SIZE, PREF_SIZE);
       
       addMouseListener(new MouseInputAdapter() {
         @Override
         public void mousePressed(MouseEvent e) {
-          _isOn = !_isOn;
-          setColor();
+          if (SwingUtilities.isRightMouseButton(e)) {
+            if (isOn())
+              editStep();
+          } else {
+            toggle();
+          }
         }
         
         @Override
         public void mouseEntered(MouseEvent e) {
           if (e.getModifiersEx() == InputEvent.BUTTON1_DOWN_MASK) {
-            _isOn = !_isOn;
-            setColor();
+            toggle();
           }
         }
       });
-      setColor();
+      update();
       
       setBorder(BorderFactory.createLineBorder(Color.BLACK));
     }
     
     public boolean isOn() {
-      return _isOn;
+      return SequencerLane.isOn(_step);
+    }
+    
+    public int getStep() {
+      return _step;
     }
     
-    public void setOn(boolean on) {
-      _isOn = on;
-      setColor();
+    public void setStep(int step) {
+      _step = step;
+      update();
     }
     
-    private void setColor() {
-      setBackground(_isOn ? ON : OFF);
+    private void toggle() {
+      setStep(isOn() ? SequencerLane.OFF : DEFAULT_STEP);
+    }
+    
+    private void editStep() {
+      final JSpinner velocity = new JSpinner(new SpinnerNumberModel(SequencerLane.velocityOf(_step), 1, 127, 1));
+      final JSpinner gate = new JSpinner(new SpinnerNumberModel(SequencerLane.gateOf(_step), 1, SequencerLane.MAX_GATE, 1));
+      final JSpinner probability = new JSpinner(new SpinnerNumberModel(SequencerLane.probabilityOf(_step), 1, 100, 1));
+      final JCheckBox tie = new JCheckBox("Tie to next step", SequencerLane.isTied(_step));
+      
+      final JPanel panel = new JPanel(new BorderLayout());
+      panel.add(new SimpleGrid(new JComponent[][] {
+        { new JLabel("Velocity: "), velocity },
+        { new JLabel("Gate %: "), gate },
+        { new JLabel("Probability %: "), probability }
+      }), BorderLayout.CENTER);
+      panel.add(tie, BorderLayout.SOUTH);
+      
+      if (OKCancelDialog.showInDialog(this, "Edit Step", panel)) {
+        setStep(SequencerLane.step(((Integer) velocity.getValue()).intValue(),
+                                   ((Integer) gate.getValue()).intValue(),
+                                   ((Integer) probability.getValue()).intValue(),
+                                   tie.isSelected()));
+      }
+    }
+    
+    private void update() {
+      if (isOn()) {
+        // fade towards white for quieter and less likely steps
+        final float amount = (SequencerLane.velocityOf(_step) / 127f) * (SequencerLane.probabilityOf(_step) / 100f);
+        setBackground(new Color(Math.round(255 + (ON.getRed()   - 255) * amount),
+                                Math.round(255 + (ON.getGreen() - 255) * amount),
+                                Math.round(255 + (ON.getBlue()  - 255) * amount)));
+        setToolTipText("Velocity " + SequencerLane.velocityOf(_step) +
+                       ", gate " + SequencerLane.gateOf(_step) + "%" +
+                       ", probability " + SequencerLane.probabilityOf(_step) + "%" +
+                       (SequencerLane.isTied(_step) ? ", tied" : ""));
+      } else {
+        setBackground(OFF);
+        setToolTipText(null);
+      }
+      repaint();
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+      super.paintComponent(g);
+      if (isOn()) {
+        // gate length as a bar along the bottom, tie as a bar on the right
+        g.setColor(Color.BLACK);
+        g.fillRect(0, getHeight()-3, getWidth() * SequencerLane.gateOf(_step) / SequencerLane.MAX_GATE, 3);
+        if (SequencerLane.isTied(_step))
+          g.fillRect(getWidth()-3, 0, 3, getHeight());
+      }
     }
   }
 }
@@ -7,6 +7,7 @@ import javax.swing.BorderFactory;
 import javax.swing.JPanel;
 
 import cadenza.core.sequencer.Sequencer;
+import cadenza.core.sequencer.SequencerLane;
 
 import common.swing.SimpleGrid;
 import common.swing.SwingUtils;
@@ -18,14 +19,35 @@ public class SequencerGridPreviewPanel extends JPanel {
   private static final Color OFF = Color.RED;
   
   public SequencerGridPreviewPanel(Sequencer sequencer) {
-    final JPanel[][] grid = new JPanel[sequencer.getNotes().length][sequencer.getLength()];
-    for (int note = 0; note < sequencer.getNotes().length; ++note) {
-      for (int index = 0; index < sequencer.getLength(); ++index) {
-        final JPanel panel = new JPanel();
-        SwingUtils.freezeSize(panel, GRID_SIZE, GRID_SIZE);
-        panel.setBackground(sequencer.isOn(note, index) ? ON : OFF);
-        panel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
-        grid[note][index] = panel;
+    // lanes are stacked, with an empty row between each
+    int rows = -1;
+    int columns = 0;
+    for (final SequencerLane lane : sequencer.getLanes()) {
+      rows += lane.getRowCount() + 1;
+      columns = Math.max(columns, lane.getLength());
+    }
+    
+    final JPanel[][] grid = new JPanel[rows][columns];
+    int row = 0;
+    for (final SequencerLane lane : sequencer.getLanes()) {
+      for (int note = 0; note < lane.getRowCount(); ++note, ++row) {
+        for (int index = 0; index < columns; ++index) {
+          final JPanel panel = new JPanel();
+          SwingUtils.freezeSize(panel, GRID_SIZE, GRID_SIZE);
+          if (index < lane.getLength()) {
+            panel.setBackground(SequencerLane.isOn(lane.getStep(note, index)) ? ON : OFF);
+            panel.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+          }
+          grid[row][index] = panel;
+        }
+      }
+      
+      if (row < rows) {
+        for (int index = 0; index < columns; ++index) {
+          grid[row][index] = new JPanel();
+          SwingUtils.freezeSize(grid[row][index], GRID_SIZE, GRID_SIZE);
+        }
+        ++row;
       }
     }
     
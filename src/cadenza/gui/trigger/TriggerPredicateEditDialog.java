@@ -12,6 +12,7 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -22,9 +23,11 @@ import javax.swing.SwingUtilities;
 import cadenza.control.midiinput.AcceptsKeyboardInput;
 import cadenza.control.midiinput.NoteRangeEntryTracker;
 import cadenza.control.midiinput.MIDIInputControlCenter;
+import cadenza.core.Chord;
 import cadenza.core.Keyboard;
 import cadenza.core.NoteRange;
 import cadenza.core.Note;
+import cadenza.core.Note.PitchClass;
 import cadenza.core.trigger.predicates.ChordPredicate;
 import cadenza.core.trigger.predicates.ControlValuePredicate;
 import cadenza.core.trigger.predicates.NoteOffPredicate;
@@ -274,11 +277,38 @@ public class TriggerPredicateEditDialog extends OKCancelDialog implements Accept
     final List<KeyboardPanel> _keyboardPanels;
     final List<Pair<Keyboard, Integer>> _notes;
     
+    private final JRadioButton _exactButton;
+    private final JRadioButton _voicingButton;
+    private final JComboBox<Chord> _chordCombo;
+    private final JComboBox<String> _rootCombo;
+    private final KeyboardSelector _keyboardSelector;
+    private final IntField _windowField;
+    
     public ChordPredicatePane() {
       _keyboardPanels = new ArrayList<>(_keyboards.size());
       _notes = new ArrayList<>();
       
+      _exactButton = new JRadioButton(ChordPredicate.Mode.EXACT.toString());
+      _voicingButton = new JRadioButton(ChordPredicate.Mode.VOICING.toString() + ":");
+      SwingUtils.groupAndSelectFirst(_exactButton, _voicingButton);
+      
+      _chordCombo = new JComboBox<>(Chord.getAll().toArray(new Chord[0]));
+      _rootCombo = new JComboBox<>();
+      _rootCombo.addItem("Any root");
+      for (int pc = 0; pc < 12; ++pc)
+        _rootCombo.addItem(PitchClass.getNormal(pc).toString());
+      _keyboardSelector = new KeyboardSelector(_keyboards);
+      
+      _windowField = new IntField(0, 0, Integer.MAX_VALUE);
+      _windowField.setColumns(5);
+      
       setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+      add(SwingUtils.buildCenteredRow(_exactButton, _voicingButton, _rootCombo, _chordCombo,
+          new JLabel(" on "), _keyboardSelector));
+      add(SwingUtils.buildCenteredRow(new JLabel("All notes pressed within "), _windowField,
+          new JLabel(" ms (0 for any time)")));
+      add(Box.createVerticalStrut(8));
+      
       for (int i = 0; i < _keyboards.size(); ++i) {
         final Keyboard keyboard = _keyboards.get(i);
         final KeyboardPanel panel = new KeyboardPanel(keyboard.soundingLow, keyboard.soundingHigh);
@@ -295,6 +325,7 @@ public class TriggerPredicateEditDialog extends OKCancelDialog implements Accept
             else
               _notes.add(pair);
             
+            _exactButton.setSelected(true);
             updateDisplay();
           }
         });
@@ -309,7 +340,17 @@ public class TriggerPredicateEditDialog extends OKCancelDialog implements Accept
     
     @Override
     public void initialize(ChordPredicate initial) {
-      _notes.addAll(initial.getNotes());
+      if (initial.getMode() == ChordPredicate.Mode.VOICING) {
+        _voicingButton.setSelected(true);
+        for (int i = 0; i < _chordCombo.getItemCount(); ++i)
+          if (_chordCombo.getItemAt(i).getName().equals(initial.getChord().getName()))
+            _chordCombo.setSelectedIndex(i);
+        _rootCombo.setSelectedIndex(initial.getRoot() + 1);
+        _keyboardSelector.setSelectedItem(initial.getKeyboard());
+      } else {
+        _notes.addAll(initial.getNotes());
+      }
+      _windowField.setInt(initial.getWindowMillis());
       
       updateDisplay();
     }
@@ -324,6 +365,7 @@ public class TriggerPredicateEditDialog extends OKCancelDialog implements Accept
       } else {
         _notes.add(Pair.make(keyboard, Integer.valueOf(noteNumber)));
       }
+      _exactButton.setSelected(true);
       updateDisplay();
     }
     
@@ -334,9 +376,19 @@ public class TriggerPredicateEditDialog extends OKCancelDialog implements Accept
                                          .highlightNote(Note.valueOf(p._2().intValue())));
     }
     
+    @Override
+    public void verify() throws VerificationException {
+      if (_exactButton.isSelected() && _notes.isEmpty())
+        throw new VerificationException("Please select the notes of the chord");
+    }
+    
     @Override
     public ChordPredicate createPredicate() {
-      return new ChordPredicate(_notes);
+      if (_voicingButton.isSelected()) {
+        return new ChordPredicate(_keyboardSelector.getSelectedKeyboard(), (Chord) _chordCombo.getSelectedItem(),
+            _rootCombo.getSelectedIndex() - 1, _windowField.getInt());
+      }
+      return new ChordPredicate(_notes, _windowField.getInt());
     }
   }
   
@@ -40,4 +40,18 @@ final class Keys {
     static String EXCLUDE_USER   = "patchsearch.excludeuser";
     static String EXCLUDE_GM     = "patchsearch.excludegm";
   }
+  
+  static class Performance {
+    static String EVENT_LOOP       = "performance.eventloop";
+    static String EVENT_QUEUE      = "performance.eventqueue";
+    
+    static String LOOKAHEAD        = "performance.lookahead";
+    static String LOOKAHEAD_BUDGET = "performance.lookaheadbudget";
+    
+    static String OUTPUT_SCHEDULER = "performance.outputscheduler";
+    static String OUTPUT_RATE      = "performance.outputrate";
+    
+    static String CLOCK_IN         = "performance.clockin";
+    static String CLOCK_OUT        = "performance.clockout";
+  }
 }
@@ -0,0 +1,39 @@
+package cadenza.preferences;
+
+public class PerformanceOptions {
+  public static final int DEFAULT_EVENT_QUEUE_CAPACITY = 4096;
+  public static final int DEFAULT_LOOKAHEAD_BUDGET = 4;
+  public static final int DEFAULT_OUTPUT_RATE = 3125;
+  
+  private boolean _useEventLoop;
+  private int _eventQueueCapacity;
+  private int _lookaheadCues;
+  private int _lookaheadBudget;
+  private boolean _useOutputScheduler;
+  private int _outputRate;
+  private boolean _followExternalClock;
+  private boolean _sendClock;
+  
+  public PerformanceOptions(boolean useEventLoop, int eventQueueCapacity,
+      int lookaheadCues, int lookaheadBudget,
+      boolean useOutputScheduler, int outputRate,
+      boolean followExternalClock, boolean sendClock) {
+    _useEventLoop = useEventLoop;
+    _eventQueueCapacity = eventQueueCapacity;
+    _lookaheadCues = lookaheadCues;
+    _lookaheadBudget = lookaheadBudget;
+    _useOutputScheduler = useOutputScheduler;
+    _outputRate = outputRate;
+    _followExternalClock = followExternalClock;
+    _sendClock = sendClock;
+  }
+  
+  public boolean useEventLoop() { return _useEventLoop; }
+  public int getEventQueueCapacity() { return _eventQueueCapacity; }
+  public int getLookaheadCues() { return _lookaheadCues; }
+  public int getLookaheadBudget() { return _lookaheadBudget; }
+  public boolean useOutputScheduler() { return _useOutputScheduler; }
+  public int getOutputRate() { return _outputRate; }
+  public boolean followExternalClock() { return _followExternalClock; }
+  public boolean sendClock() { return _sendClock; }
+}
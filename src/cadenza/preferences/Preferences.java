@@ -30,6 +30,7 @@ public final class Preferences {
     _defaultMIDIPorts = PreferencesLoader.buildDefaultMIDIPorts(prefs);
     _midiInputOptions = PreferencesLoader.buildMIDIInputOptions(prefs);
     _patchSearchOptions = PreferencesLoader.buildPatchSearchOptions(prefs);
+    _performanceOptions = PreferencesLoader.buildPerformanceOptions(prefs);
   }
   
   static Keyboard _defaultKeyboard;
@@ -46,4 +47,7 @@ public final class Preferences {
   
   static PatchSearchOptions _patchSearchOptions;
   public static PatchSearchOptions getPatchSearchOptions() { return _patchSearchOptions; }
+  
+  static PerformanceOptions _performanceOptions;
+  public static PerformanceOptions getPerformanceOptions() { return _performanceOptions; }
 }
@@ -201,6 +201,38 @@ public final class PreferencesLoader {
         Boolean.parseBoolean(loadedPrefs.get(Keys.PatchSearch.EXCLUDE_GM)));
   }
   
+  /**
+   * Reads the performance options from the preferences file.  This is an IO
+   * operation and cannot be called from the Swing Event thread.
+   * @return the performance options
+   * @throws Exception If any IO exception occurs
+   */
+  public static PerformanceOptions readPerformanceOptions() throws Exception {
+    return buildPerformanceOptions(readAllPreferences());
+  }
+  
+  /**
+   * Builds the performance options from the given preferences map.  This is
+   * not an IO operation and can be called from anywhere.  Missing values
+   * (from preferences files older than these options) take their defaults.
+   * @param loadedPrefs the pre-loaded preferences map
+   * @return the performance options
+   */
+  public static PerformanceOptions buildPerformanceOptions(Map<String, String> loadedPrefs) {
+    return new PerformanceOptions(
+        Boolean.parseBoolean(loadedPrefs.get(Keys.Performance.EVENT_LOOP)),
+        parseInt(loadedPrefs.get(Keys.Performance.EVENT_QUEUE), PerformanceOptions.DEFAULT_EVENT_QUEUE_CAPACITY),
+        
+        parseInt(loadedPrefs.get(Keys.Performance.LOOKAHEAD), 0),
+        parseInt(loadedPrefs.get(Keys.Performance.LOOKAHEAD_BUDGET), PerformanceOptions.DEFAULT_LOOKAHEAD_BUDGET),
+        
+        Boolean.parseBoolean(loadedPrefs.get(Keys.Performance.OUTPUT_SCHEDULER)),
+        parseInt(loadedPrefs.get(Keys.Performance.OUTPUT_RATE), PerformanceOptions.DEFAULT_OUTPUT_RATE),
+        
+        Boolean.parseBoolean(loadedPrefs.get(Keys.Performance.CLOCK_IN)),
+        Boolean.parseBoolean(loadedPrefs.get(Keys.Performance.CLOCK_OUT)));
+  }
+  
   /////////////////////////////////////////////////////////////////////////////
   // Write block
   
@@ -283,6 +315,28 @@ public final class PreferencesLoader {
     Preferences._patchSearchOptions = options;
   }
   
+  /**
+   * Commits the given performance options to the given preferences map.
+   * This is not an IO operation and can be called from anywhere.
+   * @param preferences the loaded preferences map
+   * @param options the performance options
+   */
+  public static void commitPerformanceOptions(Map<String, String> preferences, PerformanceOptions options) {
+    preferences.put(Keys.Performance.EVENT_LOOP,       Boolean.toString(options.useEventLoop()));
+    preferences.put(Keys.Performance.EVENT_QUEUE,      Integer.toString(options.getEventQueueCapacity()));
+    
+    preferences.put(Keys.Performance.LOOKAHEAD,        Integer.toString(options.getLookaheadCues()));
+    preferences.put(Keys.Performance.LOOKAHEAD_BUDGET, Integer.toString(options.getLookaheadBudget()));
+    
+    preferences.put(Keys.Performance.OUTPUT_SCHEDULER, Boolean.toString(options.useOutputScheduler()));
+    preferences.put(Keys.Performance.OUTPUT_RATE,      Integer.toString(options.getOutputRate()));
+    
+    preferences.put(Keys.Performance.CLOCK_IN,         Boolean.toString(options.followExternalClock()));
+    preferences.put(Keys.Performance.CLOCK_OUT,        Boolean.toString(options.sendClock()));
+    
+    Preferences._performanceOptions = options;
+  }
+  
   /**
    * Writes the given preferences to the file.  This is an IO operation and
    * cannot be called from the Swing Event thread.
@@ -300,6 +354,10 @@ public final class PreferencesLoader {
     }
   }
   
+  private static int parseInt(String value, int defaultValue) {
+    return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+  }
+  
   private static Note[] parse(String range) {
     final int hyphenIndex = range.indexOf("-");
     if (hyphenIndex == -1) {